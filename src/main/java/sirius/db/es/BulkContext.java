@@ -10,14 +10,17 @@ package sirius.db.es;
 
 import com.alibaba.fastjson.JSONObject;
 import sirius.db.mixing.EntityDescriptor;
+import sirius.db.mixing.Mapping;
 import sirius.kernel.di.std.Part;
 import sirius.kernel.health.Exceptions;
+import sirius.kernel.health.HandledException;
 
 import javax.annotation.Nonnull;
 import javax.annotation.concurrent.NotThreadSafe;
 import java.io.Closeable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Simplifies bulk inserts, updates and deletes against Elasticsearch.
@@ -30,8 +33,9 @@ import java.util.List;
  * determine the current number of commands using {@link #countQueuedCommands()} and determine when
  * {@link #autocommit()} will be invoked (when reaching {@link #MAX_BATCH_SIZE}.
  * <p>
- * Note that {@link sirius.db.mixing.annotations.AfterSave} and {@link sirius.db.mixing.types.BaseEntityRef.OnDelete}
- * handlers are <tt>not</tt> executed!
+ * Note that {@link sirius.db.mixing.annotations.AfterSave} handlers are only executed for {@link #upsert upserts}
+ * (once these have been successfully committed). {@link sirius.db.mixing.types.BaseEntityRef.OnDelete} handlers
+ * are <tt>not</tt> executed at all!
  * <p>
  * This class is not thread-safe.
  */
@@ -46,6 +50,8 @@ public class BulkContext implements Closeable {
     private static final String KEY_PRIMARY_TERM = "if_primary_term";
     private static final String KEY_SEQ_NO = "if_seq_no";
     private static final String KEY_ROUTING = "routing";
+    private static final String KEY_DOC = "doc";
+    private static final String KEY_DOC_AS_UPSERT = "doc_as_upsert";
 
     protected static final String COMMAND_INDEX = "index";
     protected static final String COMMAND_DELETE = "delete";
@@ -54,6 +60,7 @@ public class BulkContext implements Closeable {
 
     private LowLevelClient client;
     private List<JSONObject> commands;
+    private List<ElasticEntity> upsertedEntities = new ArrayList<>();
 
     @Part
     private static Elastic elastic;
@@ -113,6 +120,35 @@ public class BulkContext implements Closeable {
         return this;
     }
 
+    /**
+     * Queues an {@link Elastic#upsert(sirius.db.mixing.BaseEntity, Mapping...)} in the batch context.
+     * <p>
+     * Note that this is sent as partial update using <tt>doc_as_upsert</tt> so that the document is created if
+     * it doesn't exist yet. As the bulk response isn't inspected per entity, the outcome (inserted or updated)
+     * isn't reported back. The <tt>afterSave</tt> handlers of the entity are invoked once the upsert has been
+     * successfully executed by {@link #commit()}.
+     *
+     * @param entity    the entity to upsert
+     * @param keyFields the fields which make up the natural key of the entity
+     * @return the batch context itself for fluent method calls
+     */
+    public BulkContext upsert(ElasticEntity entity, Mapping... keyFields) {
+        EntityDescriptor ed = entity.getDescriptor();
+
+        ed.beforeSave(entity);
+
+        entity.setId(elastic.determineUpsertId(entity, ed, keyFields));
+        JSONObject meta = builtMetadata(entity, true, ed);
+        JSONObject data = new JSONObject();
+        elastic.toJSON(ed, entity, data);
+
+        commands.add(new JSONObject().fluentPut(COMMAND_UPDATE, meta));
+        commands.add(new JSONObject().fluentPut(KEY_DOC, data).fluentPut(KEY_DOC_AS_UPSERT, true));
+        upsertedEntities.add(entity);
+        autocommit();
+        return this;
+    }
+
     private void update(ElasticEntity entity, boolean force) {
         EntityDescriptor ed = entity.getDescriptor();
 
@@ -182,12 +218,16 @@ public class BulkContext implements Closeable {
         }
 
         try {
-            JSONObject bulkResponse = client.bulk(commands);
+            JSONObject bulkResponse = client.bulkWithFailedItems(commands);
             if (Elastic.LOG.isFINE()) {
                 Elastic.LOG.FINE(bulkResponse);
             }
 
-            return new BulkResult(bulkResponse);
+            BulkResult result = new BulkResult(bulkResponse);
+            invokeAfterSaveForUpserts(result);
+            return result;
+        } catch (HandledException e) {
+            throw e;
         } catch (Exception e) {
             throw Exceptions.handle()
                             .to(Elastic.LOG)
@@ -197,6 +237,16 @@ public class BulkContext implements Closeable {
                             .handle();
         } finally {
             commands.clear();
+            upsertedEntities.clear();
+        }
+    }
+
+    private void invokeAfterSaveForUpserts(BulkResult result) {
+        Set<String> failedIds = result.getFailedIds();
+        for (ElasticEntity entity : upsertedEntities) {
+            if (!failedIds.contains(entity.getId())) {
+                entity.getDescriptor().afterSave(entity);
+            }
         }
     }
 
@@ -0,0 +1,199 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.es;
+
+import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONObject;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+import sirius.kernel.health.Exceptions;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Provides the body of a bulk request as newline delimited JSON.
+ * <p>
+ * Instead of rendering the whole request into a string, the commands are serialized as UTF-8 bytes chunk by chunk
+ * while the request is being sent. Optionally, the body is compressed using gzip.
+ */
+class BulkRequestEntity extends AbstractHttpEntity implements HttpAsyncContentProducer {
+
+    private static final ContentType CONTENT_TYPE_NDJSON =
+            ContentType.create("application/x-ndjson", StandardCharsets.UTF_8);
+    private static final String CONTENT_ENCODING_GZIP = "gzip";
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int NEWLINE = '\n';
+
+    /**
+     * Provides direct access to the buffered bytes, so that these can be handed to the encoder without copying them.
+     */
+    private static class ChunkBuffer extends ByteArrayOutputStream {
+
+        ChunkBuffer() {
+            super(CHUNK_SIZE);
+        }
+
+        ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * Permits to close a wrapping stream without closing the stream which is owned by the caller.
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            out.write(data, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+
+    private final List<JSONObject> commands;
+    private final boolean compress;
+    private final ChunkBuffer buffer = new ChunkBuffer();
+    private OutputStream output;
+    private ByteBuffer pendingChunk;
+    private int nextCommand;
+    private boolean completed;
+
+    /**
+     * Creates a new entity for the given commands.
+     *
+     * @param commands the commands to send. Note that the list must not be modified until the request is completed
+     * @param compress <tt>true</tt> to compress the body using gzip, <tt>false</tt> otherwise
+     */
+    BulkRequestEntity(List<JSONObject> commands, boolean compress) {
+        this.commands = commands;
+        this.compress = compress;
+        setContentType(CONTENT_TYPE_NDJSON.toString());
+        if (compress) {
+            setContentEncoding(CONTENT_ENCODING_GZIP);
+        }
+    }
+
+    @Override
+    public void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException {
+        if (pendingChunk == null || !pendingChunk.hasRemaining()) {
+            if (completed) {
+                encoder.complete();
+                return;
+            }
+
+            pendingChunk = nextChunk();
+        }
+
+        encoder.write(pendingChunk);
+    }
+
+    /**
+     * Serializes the next commands until either a chunk is full or all commands have been written.
+     *
+     * @return the bytes to send next
+     * @throws IOException in case of an error while compressing the data
+     */
+    private ByteBuffer nextChunk() throws IOException {
+        if (output == null) {
+            output = compress ? new GZIPOutputStream(buffer, CHUNK_SIZE) : buffer;
+        }
+
+        buffer.reset();
+        while (buffer.size() < CHUNK_SIZE && nextCommand < commands.size()) {
+            JSON.writeJSONString(output, commands.get(nextCommand++));
+            output.write(NEWLINE);
+        }
+
+        if (nextCommand >= commands.size()) {
+            // Writes the remaining compressed data (if any)...
+            output.close();
+            completed = true;
+        }
+
+        return buffer.asByteBuffer();
+    }
+
+    @Override
+    public void close() {
+        // Ends a partially written gzip stream, as this releases its native Deflater...
+        if (output != null && !completed) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                Exceptions.ignore(e);
+            }
+        }
+
+        // Resets the entity, so that the request can be sent again (e.g. to another node)...
+        buffer.reset();
+        output = null;
+        pendingChunk = null;
+        nextCommand = 0;
+        completed = false;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        writeTo(content);
+        return new ByteArrayInputStream(content.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+        OutputStream target =
+                compress ? new GZIPOutputStream(new NonClosingOutputStream(outputStream), CHUNK_SIZE) : outputStream;
+        for (JSONObject command : commands) {
+            JSON.writeJSONString(target, command);
+            target.write(NEWLINE);
+        }
+
+        if (compress) {
+            // Writes the remaining compressed data and releases the Deflater, but keeps the given stream open...
+            target.close();
+        } else {
+            target.flush();
+        }
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
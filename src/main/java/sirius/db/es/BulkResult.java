@@ -38,6 +38,9 @@ public class BulkResult {
 
     /**
      * Creates a new response based on the given JSON returned by ES.
+     * <p>
+     * Note that only the items which reported an error need to be present, as {@link BulkContext#commit()} only
+     * materializes these.
      *
      * @param bulkResponse the response returned by Elasticsearch or <tt>null</tt> to indicate an empty response. An
      *                     empty response may be created if {@link BulkContext#commit()} was called without any
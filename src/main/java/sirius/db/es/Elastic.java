@@ -10,6 +10,7 @@ package sirius.db.es;
 
 import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
+import com.google.common.hash.Hashing;
 import org.apache.http.HttpHost;
 import org.elasticsearch.client.Request;
 import org.elasticsearch.client.RestClient;
@@ -22,9 +23,12 @@ import sirius.db.mixing.ContextInfo;
 import sirius.db.mixing.EntityDescriptor;
 import sirius.db.mixing.Mapping;
 import sirius.db.mixing.Property;
+import sirius.db.mixing.UpsertResult;
 import sirius.db.mixing.query.constraints.FilterFactory;
 import sirius.kernel.async.ExecutionPoint;
 import sirius.kernel.async.Future;
+import sirius.kernel.cache.Cache;
+import sirius.kernel.cache.CacheManager;
 import sirius.kernel.commons.Strings;
 import sirius.kernel.commons.Tuple;
 import sirius.kernel.commons.Value;
@@ -39,6 +43,7 @@ import sirius.kernel.health.Log;
 import sirius.kernel.settings.PortMapper;
 
 import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.Arrays;
 import java.util.EnumSet;
@@ -50,6 +55,7 @@ import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * Provides the {@link BaseMapper mapper} used to communicate with <tt>Elasticsearch</tt>.
@@ -78,6 +84,8 @@ public class Elastic extends BaseMapper<ElasticEntity, ElasticConstraint, Elasti
     private static final String RESPONSE_SEQ_NO = "_seq_no";
     private static final String RESPONSE_FOUND = "found";
     private static final String RESPONSE_SOURCE = "_source";
+    private static final String RESPONSE_RESULT = "result";
+    private static final String RESULT_CREATED = "created";
     private static final String MATCHED_QUERIES = "matched_queries";
 
     /**
@@ -87,6 +95,12 @@ public class Elastic extends BaseMapper<ElasticEntity, ElasticConstraint, Elasti
 
     private static final int DEFAULT_HTTP_PORT = 9200;
 
+    /**
+     * Contains the first version (major, minor) which supports points in time along with the implicit
+     * <tt>_shard_doc</tt> tiebreaker.
+     */
+    private static final int[] MIN_VERSION_POINT_IN_TIME = {7, 12};
+
     private static final String SERVICE_ELASTICSEARCH = "elasticsearch";
     private static final String SCHEME_HTTP = "http";
 
@@ -118,6 +132,21 @@ public class Elastic extends BaseMapper<ElasticEntity, ElasticConstraint, Elasti
         READ, WRITE
     }
 
+    @ConfigValue("elasticsearch.compressBulkRequests")
+    private boolean compressBulkRequests;
+
+    @ConfigValue("elasticsearch.iteration.pageTargetBytes")
+    private int pageTargetBytes;
+
+    @ConfigValue("elasticsearch.iteration.minPageSize")
+    private int minPageSize;
+
+    @ConfigValue("elasticsearch.iteration.maxPageSize")
+    private int maxPageSize;
+
+    private Cache<String, Integer> pageSizes = CacheManager.createLocalCache("elastic-page-sizes");
+    private Boolean pointInTimeSupported;
+
     @ConfigValue("elasticsearch.suppressedRoutings")
     private List<String> suppressedRoutings;
     private Map<EntityDescriptor, EnumSet<RoutingAccessMode>> suppressedRoutingsMap = new HashMap<>();
@@ -182,7 +211,9 @@ public class Elastic extends BaseMapper<ElasticEntity, ElasticConstraint, Elasti
                                          .map(this::mapPort)
                                          .map(this::makeHttpHost)
                                          .toArray(size -> new HttpHost[size]);
-            client = new LowLevelClient(RestClient.builder(httpHosts).setRequestConfigCallback(configCallback).build());
+            client = new LowLevelClient(RestClient.builder(httpHosts)
+                                                  .setRequestConfigCallback(configCallback)
+                                                  .build(), compressBulkRequests);
 
             // If we're using a docker container (most probably for testing), we give ES some time
             // to fully boot up. Otherwise strange connection issues might arise.
@@ -262,6 +293,53 @@ public class Elastic extends BaseMapper<ElasticEntity, ElasticConstraint, Elasti
         }
     }
 
+    @Override
+    protected UpsertResult upsertEntity(ElasticEntity entity, EntityDescriptor ed, Mapping[] keyFields)
+            throws Exception {
+        JSONObject data = new JSONObject();
+        toJSON(ed, entity, data);
+
+        String id = determineUpsertId(entity, ed, keyFields);
+        JSONObject response = getLowLevelClient().index(determineWriteAlias(ed),
+                                                        id,
+                                                        determineRouting(ed, entity, RoutingAccessMode.WRITE),
+                                                        null,
+                                                        null,
+                                                        data);
+        entity.setId(id);
+        if (ed.isVersioned()) {
+            entity.setPrimaryTerm(response.getLong(RESPONSE_PRIMARY_TERM));
+            entity.setSeqNo(response.getLong(RESPONSE_SEQ_NO));
+        }
+
+        return RESULT_CREATED.equals(response.getString(RESPONSE_RESULT)) ?
+               UpsertResult.INSERTED :
+               UpsertResult.UPDATED;
+    }
+
+    /**
+     * Determines the id to use when upserting the given entity.
+     * <p>
+     * As Elasticsearch can only detect existing documents by their id, we derive a deterministic id from the
+     * values of the given key fields. If no key fields are given, the regular id of the entity is used.
+     *
+     * @param entity    the entity to upsert
+     * @param ed        the descriptor of the entity
+     * @param keyFields the fields which make up the natural key of the entity
+     * @return the id to use for the upserted document
+     */
+    protected String determineUpsertId(ElasticEntity entity, EntityDescriptor ed, Mapping... keyFields) {
+        if (keyFields.length == 0) {
+            return determineId(entity);
+        }
+
+        String naturalKey = Arrays.stream(keyFields)
+                                  .map(field -> String.valueOf(ed.getProperty(field)
+                                                                 .getValueForDatasource(Elastic.class, entity)))
+                                  .collect(Collectors.joining("|"));
+        return Hashing.sha256().hashString(naturalKey, StandardCharsets.UTF_8).toString();
+    }
+
     /**
      * Determines the routing value to be used for the given entity.
      *
@@ -666,6 +744,82 @@ public class Elastic extends BaseMapper<ElasticEntity, ElasticConstraint, Elasti
         return logQueryThresholdMillis;
     }
 
+    /**
+     * Determines the page size to use when iterating over all entities of the given type.
+     * <p>
+     * The page size is chosen so that a page roughly contains <tt>elasticsearch.iteration.pageTargetBytes</tt>,
+     * based on the average document size of the index. It is limited by <tt>elasticsearch.iteration.minPageSize</tt>
+     * and <tt>elasticsearch.iteration.maxPageSize</tt>.
+     *
+     * @param ed the descriptor of the entities to iterate over
+     * @return the number of documents to fetch per page
+     */
+    protected int determinePageSize(EntityDescriptor ed) {
+        String alias = determineReadAlias(ed);
+        Integer pageSize = pageSizes.get(alias);
+        if (pageSize == null) {
+            pageSize = computePageSize(alias);
+            pageSizes.put(alias, pageSize);
+        }
+
+        return pageSize;
+    }
+
+    private int computePageSize(String alias) {
+        try {
+            JSONObject primaries =
+                    getLowLevelClient().indexStats(alias).getJSONObject("_all").getJSONObject("primaries");
+            JSONObject docs = primaries.getJSONObject("docs");
+            long numberOfDocs = docs.getLongValue("count") + docs.getLongValue("deleted");
+            long sizeInBytes = primaries.getJSONObject("store").getLongValue("size_in_bytes");
+            if (numberOfDocs == 0 || sizeInBytes == 0) {
+                return maxPageSize;
+            }
+
+            long averageDocSize = Math.max(1, sizeInBytes / numberOfDocs);
+            return (int) Math.max(minPageSize, Math.min(maxPageSize, pageTargetBytes / averageDocSize));
+        } catch (Exception e) {
+            Exceptions.handle()
+                      .to(LOG)
+                      .error(e)
+                      .withSystemErrorMessage("Failed to determine the page size for '%s': %s (%s)", alias)
+                      .handle();
+            return minPageSize;
+        }
+    }
+
+    /**
+     * Determines if the cluster supports points in time (with an implicit <tt>_shard_doc</tt> tiebreaker).
+     *
+     * @return <tt>true</tt> if points in time can be used, <tt>false</tt> otherwise
+     */
+    protected boolean isPointInTimeSupported() {
+        if (pointInTimeSupported == null) {
+            pointInTimeSupported = checkPointInTimeSupport();
+        }
+
+        return pointInTimeSupported;
+    }
+
+    private boolean checkPointInTimeSupport() {
+        try {
+            String version = getLowLevelClient().clusterInfo().getJSONObject("version").getString("number");
+            String[] parts = version.split("\\.");
+            int major = Integer.parseInt(parts[0]);
+            int minor = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+
+            return major > MIN_VERSION_POINT_IN_TIME[0]
+                   || (major == MIN_VERSION_POINT_IN_TIME[0] && minor >= MIN_VERSION_POINT_IN_TIME[1]);
+        } catch (Exception e) {
+            Exceptions.handle()
+                      .to(LOG)
+                      .error(e)
+                      .withSystemErrorMessage("Failed to determine the version of Elasticsearch: %s (%s)")
+                      .handle();
+            return false;
+        }
+    }
+
     @Override
     public <E extends ElasticEntity> ElasticQuery<E> select(Class<E> type) {
         return new ElasticQuery<>(mixing.getDescriptor(type), getLowLevelClient());
@@ -19,6 +19,7 @@ import sirius.db.mixing.DateRange;
 import sirius.db.mixing.EntityDescriptor;
 import sirius.db.mixing.Mapping;
 import sirius.db.mixing.Mixing;
+import sirius.db.mixing.ParallelScan;
 import sirius.db.mixing.query.Query;
 import sirius.db.mixing.query.constraints.FilterFactory;
 import sirius.kernel.async.ExecutionPoint;
@@ -27,8 +28,10 @@ import sirius.kernel.commons.Limit;
 import sirius.kernel.commons.RateLimit;
 import sirius.kernel.commons.Strings;
 import sirius.kernel.commons.Tuple;
+import sirius.kernel.commons.ValueHolder;
 import sirius.kernel.di.std.Part;
 import sirius.kernel.health.Exceptions;
+import sirius.kernel.health.HandledException;
 
 import javax.annotation.Nullable;
 import java.time.format.DateTimeFormatter;
@@ -37,6 +40,8 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
@@ -55,11 +60,18 @@ public class ElasticQuery<E extends ElasticEntity> extends Query<ElasticQuery<E>
      */
     public static final int DEFAULT_TERM_AGGREGATION_BUCKET_COUNT = 25;
 
-    private static final int SCROLL_TTL_SECONDS = 60 * 5;
-    private static final int MAX_SCROLL_RESULTS_FOR_SINGLE_SHARD = 50;
-    private static final int MAX_SCROLL_RESULTS_PER_SHARD = 10;
+    private static final int KEEP_ALIVE_SECONDS = 60 * 5;
+    private static final String KEY_SHARD_DOC = "_shard_doc";
+    private static final String KEY_SEARCH_AFTER = "search_after";
+    private static final String KEY_PIT = "pit";
+    private static final String KEY_PIT_ID = "pit_id";
+    private static final String KEY_ID = "id";
+    private static final String KEY_KEEP_ALIVE = "keep_alive";
     private static final String KEY_SCROLL_ID = "_scroll_id";
     private static final String KEY_DOC_ID = "_doc";
+    private static final String KEY_SLICE = "slice";
+    private static final String KEY_MAX = "max";
+    private static final String EXECUTOR_PARALLEL_SCAN = "es-parallel-scan";
 
     private static final String KEY_FIELD = "field";
     private static final String KEY_TERMS = "terms";
@@ -684,7 +696,7 @@ public class ElasticQuery<E extends ElasticEntity> extends Query<ElasticQuery<E>
     @Override
     public void iterate(Predicate<E> handler) {
         if (useScrolling()) {
-            scroll(handler);
+            searchAfter(handler);
             return;
         }
 
@@ -864,54 +876,55 @@ public class ElasticQuery<E extends ElasticEntity> extends Query<ElasticQuery<E>
     }
 
     /**
-     * For larger queries, we use a scroll query in Elasticsearch, which provides kind of a
-     * cursor to fetch the results blockwise.
+     * For larger queries, we fetch the results page by page using <tt>search_after</tt>.
+     * <p>
+     * All pages are fetched from a point in time, so that the results are consistent and can be sorted efficiently
+     * by the implicit <tt>_shard_doc</tt> tiebreaker. If the cluster doesn't support points in time, a scroll cursor
+     * is used instead. The page size is determined by {@link Elastic#determinePageSize(EntityDescriptor)}.
      *
      * @param handler the result handler as passed to {@link #iterate(Predicate)}
      */
-    private void scroll(Predicate<E> handler) {
+    private void searchAfter(Predicate<E> handler) {
         try {
-            if (sorts == null || sorts.isEmpty()) {
-                // If no explicit search order is given, we sort by _doc which improves the performance
-                // according to the Elasticsearch documentation.
-                orderAsc(Mapping.named(KEY_DOC_ID));
-            }
-
             String filteredRouting = checkRouting(Elastic.RoutingAccessMode.READ);
+            String alias = elastic.determineReadAlias(descriptor);
+            int pageSize = elastic.determinePageSize(descriptor);
+            TaskContext ctx = TaskContext.get();
+            RateLimit rateLimit = RateLimit.timeInterval(1, TimeUnit.SECONDS);
+            Limit effectiveLimit = new Limit(skip, limit);
+            Predicate<E> limitedHandler = entity -> {
+                // Check if the user aborted processing...
+                if (rateLimit.check() && !ctx.isActive()) {
+                    return false;
+                }
 
-            JSONObject scrollResponse = client.createScroll(elastic.determineReadAlias(descriptor),
-                                                            filteredRouting,
-                                                            0,
-                                                            filteredRouting == null ?
-                                                            MAX_SCROLL_RESULTS_FOR_SINGLE_SHARD :
-                                                            MAX_SCROLL_RESULTS_PER_SHARD,
-                                                            SCROLL_TTL_SECONDS,
-                                                            buildPayload());
-            try {
-                TaskContext ctx = TaskContext.get();
-                RateLimit rateLimit = RateLimit.timeInterval(1, TimeUnit.SECONDS);
-                Limit effectiveLimit = new Limit(skip, limit);
-                scrollResponse = executeScroll(entity -> {
-                    // Check if the user aborted processing...
-                    if (rateLimit.check() && !ctx.isActive()) {
-                        return false;
-                    }
+                // If we are still skipping items, quickly process the next one...
+                if (!effectiveLimit.nextRow()) {
+                    return true;
+                }
 
-                    // If we are still skipping items, quickly process the next one...
-                    if (!effectiveLimit.nextRow()) {
-                        return true;
-                    }
+                // Process entity, abort if the handler isn't interested in continuing...
+                if (!handler.test(entity)) {
+                    return false;
+                }
 
-                    // Process entity, abort if the handler isn't interested in continuing...
-                    if (!handler.test(entity)) {
-                        return false;
-                    }
+                // Let the limit deciede if we should continue or not...
+                return effectiveLimit.shouldContinue();
+            };
+
+            if (!elastic.isPointInTimeSupported()) {
+                // Without a point in time, search_after would require a costly tiebreaker (like _id)...
+                JSONObject payload = buildPayload();
+                payload.put(KEY_SORT, buildScrollSorts());
+                scroll(alias, filteredRouting, pageSize, payload, limitedHandler);
+                return;
+            }
 
-                    // Let the limit deciede if we should continue or not...
-                    return effectiveLimit.shouldContinue();
-                }, scrollResponse);
+            String pointInTime = client.openPointInTime(alias, filteredRouting, KEEP_ALIVE_SECONDS);
+            try {
+                pointInTime = executeSearchAfter(limitedHandler, pageSize, pointInTime);
             } finally {
-                client.closeScroll(scrollResponse.getString(KEY_SCROLL_ID));
+                client.closePointInTime(pointInTime);
             }
         } catch (Exception t) {
             throw Exceptions.handle(Elastic.LOG, t);
@@ -919,36 +932,242 @@ public class ElasticQuery<E extends ElasticEntity> extends Query<ElasticQuery<E>
     }
 
     /**
-     * Loops over the scroll cursor until either processing is aborted or all entities have been read.
+     * Fetches page after page until either processing is aborted or all entities have been read.
+     * <p>
+     * As soon as a page has been received, the next one is requested asynchronously, so that it is transferred while
+     * the current page is being processed. Note that at most one page is in flight at any given time.
      *
-     * @param handler       the handler which processes the entity and determines if we should continue
-     * @param firstResponse the first response we received when creating the scroll query.
-     * @return the last response we received when iterating over the scroll query
+     * @param handler     the handler which processes the entity and determines if we should continue
+     * @param pageSize    the number of entities to fetch per page
+     * @param pointInTime the id of the point in time to search in
+     * @return the id of the point in time as returned by the last search (which has to be closed)
      */
     @SuppressWarnings("unchecked")
-    private JSONObject executeScroll(Predicate<E> handler, JSONObject firstResponse) {
-        long lastScroll = 0;
-        JSONObject scrollResponse = firstResponse;
-        while (true) {
-            // we keep ob executing queries until es returns an empty list of results...
-            JSONArray hits = scrollResponse.getJSONObject(KEY_HITS).getJSONArray(KEY_HITS);
-            if (hits.isEmpty()) {
-                return scrollResponse;
-            }
+    private String executeSearchAfter(Predicate<E> handler, int pageSize, String pointInTime) {
+        JSONObject payload = buildPayload();
+        payload.put(KEY_SORT, buildSearchAfterSorts());
+
+        String effectivePointInTime = pointInTime;
+        List<E> entities = new ArrayList<>(pageSize);
+        ValueHolder<JSONArray> lastSortValues = ValueHolder.of(null);
+        CompletableFuture<RequestBuilder> nextPage = fetchSearchAfterPage(pageSize, payload, effectivePointInTime);
+        try {
+            long lastPage = 0;
+            while (nextPage != null) {
+                entities.clear();
+                JSONObject page = awaitPage(nextPage).streamHits(hit -> {
+                    entities.add((E) Elastic.make(descriptor, hit));
+                    lastSortValues.set(hit.getJSONArray(KEY_SORT));
+                });
+                nextPage = null;
+                effectivePointInTime = page.getString(KEY_PIT_ID);
+
+                if (entities.size() >= pageSize) {
+                    payload.put(KEY_SEARCH_AFTER, lastSortValues.get());
+                    nextPage = fetchSearchAfterPage(pageSize, payload, effectivePointInTime);
+                }
 
-            for (Object obj : hits) {
-                if (!handler.test((E) Elastic.make(descriptor, (JSONObject) obj))) {
-                    return scrollResponse;
+                for (E entity : entities) {
+                    if (!handler.test(entity)) {
+                        return effectivePointInTime;
+                    }
                 }
+
+                lastPage = performScrollMonitoring(lastPage);
+            }
+
+            return effectivePointInTime;
+        } finally {
+            awaitPrefetchedPage(nextPage);
+        }
+    }
+
+    private CompletableFuture<RequestBuilder> fetchSearchAfterPage(int pageSize,
+                                                                   JSONObject payload,
+                                                                   String pointInTime) {
+        payload.put(KEY_PIT,
+                    new JSONObject().fluentPut(KEY_ID, pointInTime)
+                                    .fluentPut(KEY_KEEP_ALIVE, KEEP_ALIVE_SECONDS + "s"));
+        return client.searchWithPointInTimeAsync(pageSize, payload);
+    }
+
+    /**
+     * Waits until the given page has been received.
+     *
+     * @param page the page which has been requested
+     * @return the request which can be used to read the response
+     */
+    private RequestBuilder awaitPage(CompletableFuture<RequestBuilder> page) {
+        try {
+            return page.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof HandledException) {
+                throw (HandledException) e.getCause();
             }
 
-            lastScroll = performScrollMonitoring(lastScroll);
-            scrollResponse = client.continueScroll(SCROLL_TTL_SECONDS, scrollResponse.getString(KEY_SCROLL_ID));
+            throw Exceptions.handle()
+                            .to(Elastic.LOG)
+                            .error(e.getCause())
+                            .withSystemErrorMessage("Failed to fetch the next page of %s: %s (%s)",
+                                                    descriptor.getRelationName())
+                            .handle();
+        }
+    }
+
+    /**
+     * Waits until a page, which has been prefetched but is no longer needed, has been received.
+     * <p>
+     * This ensures that a scroll cursor or point in time isn't closed while a request is still using it.
+     *
+     * @param page the page which has been requested or <tt>null</tt> if there is none
+     */
+    private void awaitPrefetchedPage(@Nullable CompletableFuture<RequestBuilder> page) {
+        if (page == null) {
+            return;
+        }
+
+        try {
+            page.join();
+        } catch (CompletionException e) {
+            // The error has already been logged by the client and the page is discarded anyway...
+            Exceptions.ignore(e);
         }
     }
 
     /**
-     * As a scroll cursor can timeout, we monitor the call interval and emit a warning if a timeout might have occurred.
+     * Builds the sort criteria for a <tt>search_after</tt> iteration, which needs a unique tiebreaker.
+     *
+     * @return the sort criteria to use
+     */
+    private List<Object> buildSearchAfterSorts() {
+        if (sorts == null || sorts.isEmpty()) {
+            // Without an explicit order, _shard_doc is the most efficient order. Otherwise, it is added as
+            // tiebreaker by Elasticsearch itself...
+            return Collections.singletonList(new JSONObject().fluentPut(KEY_SHARD_DOC, KEY_ASC));
+        }
+
+        return new ArrayList<>(sorts);
+    }
+
+    /**
+     * Builds the sort criteria for a scroll cursor.
+     *
+     * @return the sort criteria to use
+     */
+    private List<Object> buildScrollSorts() {
+        if (sorts == null || sorts.isEmpty()) {
+            // If no explicit search order is given, we sort by _doc which improves the performance
+            // according to the Elasticsearch documentation.
+            return Collections.singletonList(new JSONObject().fluentPut(KEY_DOC_ID, KEY_ASC));
+        }
+
+        return new ArrayList<>(sorts);
+    }
+
+    /**
+     * Iterates over all matches of this query using several sliced scroll cursors in parallel.
+     * <p>
+     * Each slice is consumed by its own task in the <tt>es-parallel-scan</tt> executor, therefore the handler has to
+     * be thread safe and the order in which entities are processed is undefined. This method blocks until all slices
+     * have been processed and reports its progress to the current {@link TaskContext}. Stopping the
+     * current task or a failing handler aborts all slices.
+     * <p>
+     * Note that neither <tt>limit</tt> nor <tt>skip</tt> are supported.
+     *
+     * @param slices  the number of slices to process in parallel. Ideally this is a multiple of the number of shards
+     * @param handler the handler to process each entity
+     */
+    public void iterateParallel(int slices, Consumer<E> handler) {
+        if (limit > 0 || skip > 0) {
+            throw Exceptions.handle()
+                            .to(Elastic.LOG)
+                            .withSystemErrorMessage("A parallel scan doesn't support 'limit' or 'skip'. Query: %s",
+                                                    this)
+                            .handle();
+        }
+
+        if (slices <= 1) {
+            iterateAll(handler);
+            return;
+        }
+
+        String filteredRouting = checkRouting(Elastic.RoutingAccessMode.READ);
+        String alias = elastic.determineReadAlias(descriptor);
+        int pageSize = elastic.determinePageSize(descriptor);
+        JSONObject payload = buildPayload();
+        // The order of a parallel scan is undefined anyway, therefore we use the most efficient one...
+        payload.put(KEY_SORT, Collections.singletonList(new JSONObject().fluentPut(KEY_DOC_ID, KEY_ASC)));
+
+        ParallelScan scan = new ParallelScan(Elastic.LOG, EXECUTOR_PARALLEL_SCAN, descriptor.getRelationName());
+        for (int slice = 0; slice < slices; slice++) {
+            JSONObject slicePayload = (JSONObject) payload.clone();
+            slicePayload.put(KEY_SLICE, new JSONObject().fluentPut(KEY_ID, slice).fluentPut(KEY_MAX, slices));
+            scan.fork(() -> scroll(alias, filteredRouting, pageSize, slicePayload, entity -> {
+                handler.accept(entity);
+                scan.processed(1);
+                return scan.isActive();
+            }));
+        }
+
+        scan.await();
+    }
+
+    /**
+     * Consumes a single scroll cursor until either processing is aborted or all entities have been read.
+     *
+     * @param alias           the alias to search in
+     * @param filteredRouting the routing to use
+     * @param pageSize        the number of entities to fetch per page
+     * @param payload         the query to execute, including the <tt>slice</tt> to read (if any)
+     * @param handler         the handler which processes the entity and determines if we should continue
+     */
+    private void scroll(String alias, String filteredRouting, int pageSize, JSONObject payload, Predicate<E> handler) {
+        List<E> entities = new ArrayList<>(pageSize);
+        String scrollId = readScrollPage(client.createScrollAsync(alias,
+                                                                  filteredRouting,
+                                                                  0,
+                                                                  pageSize,
+                                                                  KEEP_ALIVE_SECONDS,
+                                                                  payload), entities);
+        CompletableFuture<RequestBuilder> nextPage = null;
+        try {
+            long lastScroll = 0;
+            while (!entities.isEmpty()) {
+                // Fetch the next page while the current one is being processed...
+                nextPage = client.continueScrollAsync(KEEP_ALIVE_SECONDS, scrollId);
+                for (E entity : entities) {
+                    if (!handler.test(entity)) {
+                        return;
+                    }
+                }
+
+                lastScroll = performScrollMonitoring(lastScroll);
+                scrollId = readScrollPage(nextPage, entities);
+                nextPage = null;
+            }
+        } finally {
+            awaitPrefetchedPage(nextPage);
+            client.closeScroll(scrollId);
+        }
+    }
+
+    /**
+     * Reads the hits of the given scroll page as entities.
+     *
+     * @param page     the page to read
+     * @param entities the list to fill with the entities of the page
+     * @return the scroll id to use for the next page
+     */
+    @SuppressWarnings("unchecked")
+    private String readScrollPage(CompletableFuture<RequestBuilder> page, List<E> entities) {
+        entities.clear();
+        return awaitPage(page).streamHits(hit -> entities.add((E) Elastic.make(descriptor, hit)))
+                              .getString(KEY_SCROLL_ID);
+    }
+
+    /**
+     * As a scroll cursor or point in time can timeout, we monitor the call interval and emit a warning if a timeout
+     * might have occurred.
      *
      * @param lastScroll the timestamp when the last scoll was executed
      * @return the next timestamp
@@ -957,8 +1176,8 @@ public class ElasticQuery<E extends ElasticEntity> extends Query<ElasticQuery<E>
         long now = System.currentTimeMillis();
         if (lastScroll > 0) {
             long deltaInSeconds = TimeUnit.SECONDS.convert(now - lastScroll, TimeUnit.MILLISECONDS);
-            // Warn if processing of one scroll took longer thant our keep alive....
-            if (deltaInSeconds > SCROLL_TTL_SECONDS) {
+            // Warn if processing of one page took longer thant our keep alive....
+            if (deltaInSeconds > KEEP_ALIVE_SECONDS) {
                 Exceptions.handle()
                           .withSystemErrorMessage(
                                   "A scroll query against elasticserach took too long to process its data! "
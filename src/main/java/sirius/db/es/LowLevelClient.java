@@ -17,7 +17,6 @@ import org.elasticsearch.client.Response;
 import org.elasticsearch.client.ResponseException;
 import org.elasticsearch.client.RestClient;
 import sirius.db.mixing.OptimisticLockException;
-import sirius.kernel.commons.Explain;
 import sirius.kernel.commons.Strings;
 import sirius.kernel.health.Exceptions;
 import sirius.kernel.health.HandledException;
@@ -28,8 +27,8 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
-import java.util.stream.Collectors;
 
 /**
  * Provides a low-level client against Elasticsearch.
@@ -42,12 +41,15 @@ public class LowLevelClient {
     private static final String API_ALIAS = "/_alias";
     private static final String API_ALIASES = "/_aliases";
     private static final String API_SEARCH = "/_search";
+    private static final String API_SCROLL = "/_search/scroll";
     private static final String API_DELETE_BY_QUERY = "/_delete_by_query";
     private static final String API_PREFIX_DOC = "/_doc/";
     private static final String API_REFRESH = "/_refresh";
     private static final String API_SETTINGS = "/_settings";
     private static final String API_CLUSTER_HEALTH = "/_cluster/health";
     private static final String API_STATS = "/_stats";
+    private static final String API_POINT_IN_TIME = "/_pit";
+    private static final String API_BULK = "_bulk";
 
     private static final String PARAM_INDEX = "index";
     private static final String PARAM_ALIAS = "alias";
@@ -56,6 +58,7 @@ public class LowLevelClient {
     private static final String ACTION_REMOVE = "remove";
 
     private RestClient restClient;
+    private final boolean compressBulkRequests;
 
     /**
      * Creates a new client based on the given REST client which handles load balancing and connection management.
@@ -63,7 +66,21 @@ public class LowLevelClient {
      * @param restClient the underlying REST client to use
      */
     public LowLevelClient(RestClient restClient) {
+        this(restClient, false);
+    }
+
+    /**
+     * Creates a new client based on the given REST client which handles load balancing and connection management.
+     * <p>
+     * Compressing the bodies of bulk requests using gzip trades some CPU time for less network traffic, which pays
+     * off for slow or expensive network links.
+     *
+     * @param restClient           the underlying REST client to use
+     * @param compressBulkRequests <tt>true</tt> to compress bulk requests, <tt>false</tt> otherwise
+     */
+    public LowLevelClient(RestClient restClient, boolean compressBulkRequests) {
         this.restClient = restClient;
+        this.compressBulkRequests = compressBulkRequests;
     }
 
     /**
@@ -206,12 +223,70 @@ public class LowLevelClient {
      * @return the response of the call
      */
     public JSONObject search(String alias, @Nullable String routing, int from, int size, JSONObject query) {
-        return performGet().routing(routing)
-                           .withParam("size", size)
-                           .withParam("from", from)
-                           .data(query)
-                           .execute(alias + API_SEARCH)
-                           .response();
+        return prepareSearch(routing, from, size, query).execute(alias + API_SEARCH).response();
+    }
+
+    private RequestBuilder prepareSearch(@Nullable String routing, int from, int size, JSONObject query) {
+        return performGet().routing(routing).withParam("size", size).withParam("from", from).data(query);
+    }
+
+    /**
+     * Executes a search within a point in time.
+     * <p>
+     * Note that such a search must neither specify an index nor a routing, as these are determined by the point in
+     * time which has to be given in the query.
+     *
+     * @param size  the maximal result length
+     * @param query the query to execute, including the <tt>pit</tt> section
+     * @return the response of the call
+     * @see #openPointInTime(String, String, int)
+     */
+    public JSONObject searchWithPointInTime(int size, JSONObject query) {
+        return performGet().withParam("size", size).data(query).execute(API_SEARCH).response();
+    }
+
+    /**
+     * Asynchronously executes a search within a point in time.
+     *
+     * @param size  the maximal result length
+     * @param query the query to execute, including the <tt>pit</tt> section
+     * @return a future which is completed once the response of the call is available
+     * @see #searchWithPointInTime(int, JSONObject)
+     */
+    protected CompletableFuture<RequestBuilder> searchWithPointInTimeAsync(int size, JSONObject query) {
+        return performGet().withParam("size", size).data(query).executeAsync(API_SEARCH);
+    }
+
+    /**
+     * Opens a point in time which can be used to perform several consistent searches against a stable view of an
+     * index.
+     * <p>
+     * Note that points in time are only used for Elasticsearch 7.12 or newer (see
+     * {@link Elastic#isPointInTimeSupported()}), as older versions lack the implicit <tt>_shard_doc</tt> tiebreaker.
+     *
+     * @param alias            the alias which determines the indices to search in
+     * @param routing          the routing to use
+     * @param keepAliveSeconds the time in seconds to keep the point in time open between two searches
+     * @return the id of the point in time
+     */
+    public String openPointInTime(String alias, @Nullable String routing, int keepAliveSeconds) {
+        return performPost().routing(routing)
+                            .withParam("keep_alive", keepAliveSeconds + "s")
+                            .execute(alias + API_POINT_IN_TIME)
+                            .response()
+                            .getString("id");
+    }
+
+    /**
+     * Closes a point in time.
+     *
+     * @param pointInTimeId the id of the point in time to close
+     * @return the response of the call
+     */
+    public JSONObject closePointInTime(String pointInTimeId) {
+        return performDelete().data(new JSONObject().fluentPut("id", pointInTimeId))
+                              .execute(API_POINT_IN_TIME)
+                              .response();
     }
 
     /**
@@ -353,13 +428,32 @@ public class LowLevelClient {
                                    int sizePerShard,
                                    int ttlSeconds,
                                    JSONObject query) {
-        return performGet().routing(routing)
-                           .withParam("size", sizePerShard)
-                           .withParam("from", from)
-                           .withParam("scroll", ttlSeconds + "s")
-                           .data(query)
-                           .execute(alias + API_SEARCH)
-                           .response();
+        return prepareScroll(routing, from, sizePerShard, ttlSeconds, query).execute(alias + API_SEARCH).response();
+    }
+
+    /**
+     * Asynchronously creates a new scroll query.
+     *
+     * @param alias        the alias which determines the indices to search in
+     * @param routing      the routing to use
+     * @param from         the number of items to skip
+     * @param sizePerShard the maximal number of results per shard
+     * @param ttlSeconds   the ttl of the scroll cursor in seconds
+     * @param query        the query to execute
+     * @return a future which is completed once the response of the call is available
+     * @see #createScroll(String, String, int, int, int, JSONObject)
+     */
+    protected CompletableFuture<RequestBuilder> createScrollAsync(String alias,
+                                                                  String routing,
+                                                                  int from,
+                                                                  int sizePerShard,
+                                                                  int ttlSeconds,
+                                                                  JSONObject query) {
+        return prepareScroll(routing, from, sizePerShard, ttlSeconds, query).executeAsync(alias + API_SEARCH);
+    }
+
+    private RequestBuilder prepareScroll(String routing, int from, int sizePerShard, int ttlSeconds, JSONObject query) {
+        return prepareSearch(routing, from, sizePerShard, query).withParam("scroll", ttlSeconds + "s");
     }
 
     /**
@@ -370,10 +464,26 @@ public class LowLevelClient {
      * @return the response of the call
      */
     public JSONObject continueScroll(int ttlSeconds, String scrollId) {
+        return prepareContinueScroll(ttlSeconds, scrollId).execute(API_SCROLL).response();
+    }
+
+    /**
+     * Asynchronously continues a scroll query.
+     * <p>
+     * This is used to fetch the next page of a scroll cursor while the current one is still being processed.
+     *
+     * @param ttlSeconds the ttl of the scroll cursor in seconds
+     * @param scrollId   the id of the scroll cursor
+     * @return a future which is completed once the response of the call is available
+     * @see #continueScroll(int, String)
+     */
+    protected CompletableFuture<RequestBuilder> continueScrollAsync(int ttlSeconds, String scrollId) {
+        return prepareContinueScroll(ttlSeconds, scrollId).executeAsync(API_SCROLL);
+    }
+
+    private RequestBuilder prepareContinueScroll(int ttlSeconds, String scrollId) {
         return performGet().data(new JSONObject().fluentPut("scroll", ttlSeconds + "s")
-                                                 .fluentPut("scroll_id", scrollId))
-                           .execute("/_search/scroll")
-                           .response();
+                                                 .fluentPut("scroll_id", scrollId));
     }
 
     /**
@@ -384,7 +494,7 @@ public class LowLevelClient {
      */
     public JSONObject closeScroll(String scrollId) {
         return performDelete().data(new JSONObject().fluentPut("scroll_id", scrollId))
-                              .execute("/_search/scroll")
+                              .execute(API_SCROLL)
                               .response();
     }
 
@@ -420,15 +530,34 @@ public class LowLevelClient {
     /**
      * Executes a list of bulk statements.
      *
+     * <p>
+     * The statements are serialized one by one while the request is being sent (and compressed if
+     * {@link #LowLevelClient(RestClient, boolean) enabled}).
+     *
      * @param bulkData the statements to execute.
      * @return the response of the call
      * @see BulkContext
      */
-    @SuppressWarnings("squid:S1612")
-    @Explain("Due to method overloading the compiler cannot deduce which method to pick")
     public JSONObject bulk(List<JSONObject> bulkData) {
-        return performPost().rawData(bulkData.stream().map(obj -> obj.toJSONString()).collect(Collectors.joining("\n"))
-                                     + "\n").execute("_bulk").response();
+        return prepareBulk(bulkData).execute(API_BULK).response();
+    }
+
+    /**
+     * Executes a list of bulk statements and only materializes the items of the response which reported an error.
+     * <p>
+     * The response is parsed as stream, so that the results of successful commands are skipped without building
+     * a JSON tree for them.
+     *
+     * @param bulkData the statements to execute.
+     * @return the response of the call which only contains the failed commands as <tt>items</tt>
+     * @see BulkResult
+     */
+    protected JSONObject bulkWithFailedItems(List<JSONObject> bulkData) {
+        return prepareBulk(bulkData).execute(API_BULK).streamBulkResponse();
+    }
+
+    private RequestBuilder prepareBulk(List<JSONObject> bulkData) {
+        return performPost().entity(new BulkRequestEntity(bulkData, compressBulkRequests));
     }
 
     /**
@@ -528,4 +657,23 @@ public class LowLevelClient {
     public JSONObject indexStats() {
         return performGet().execute(API_STATS).response();
     }
+
+    /**
+     * Fetches the document and storage statistics for the given index.
+     *
+     * @param index the index (or alias) to fetch the statistics for
+     * @return a JSON object as returned by <tt>/index/_stats/docs,store</tt>
+     */
+    public JSONObject indexStats(String index) {
+        return performGet().execute(index + API_STATS + "/docs,store").response();
+    }
+
+    /**
+     * Fetches the basic information of the cluster.
+     *
+     * @return a JSON object as returned by <tt>/</tt>, which contains the version of Elasticsearch
+     */
+    public JSONObject clusterInfo() {
+        return performGet().execute("/").response();
+    }
 }
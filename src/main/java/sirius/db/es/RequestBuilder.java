@@ -9,7 +9,9 @@
 package sirius.db.es;
 
 import com.alibaba.fastjson.JSON;
+import com.alibaba.fastjson.JSONArray;
 import com.alibaba.fastjson.JSONObject;
+import com.alibaba.fastjson.JSONReader;
 import com.alibaba.fastjson.serializer.SerializerFeature;
 import org.apache.http.HttpEntity;
 import org.apache.http.entity.ContentType;
@@ -33,11 +35,15 @@ import sirius.kernel.health.Microtiming;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -52,6 +58,8 @@ class RequestBuilder {
     private static final String PARAM_IF_PRIMARY_TERM = "if_primary_term";
     private static final String PARAM_IF_SEQ_NO = "if_seq_no";
     private static final String PARAM_ERROR = "error";
+    private static final String PARAM_HITS = "hits";
+    private static final String PARAM_ITEMS = "items";
     private static final int MAX_CONTENT_LONG_LENGTH = 256;
 
     private String method;
@@ -59,6 +67,7 @@ class RequestBuilder {
     private Map<String, String> params;
     private JSONObject data;
     private String rawData;
+    private HttpEntity requestEntity;
     private HttpEntity responseEntity;
     private JSONObject responseObject;
     private Function<ResponseException, HttpEntity> customExceptionHandler;
@@ -93,6 +102,11 @@ class RequestBuilder {
         return this;
     }
 
+    protected RequestBuilder entity(HttpEntity entity) {
+        this.requestEntity = entity;
+        return this;
+    }
+
     protected RequestBuilder withCustomErrorHandler(Function<ResponseException, HttpEntity> errorHandler) {
         this.customExceptionHandler = errorHandler;
         return this;
@@ -126,18 +140,30 @@ class RequestBuilder {
                                     "An IO exception ocurred when performing a request against elasticsearch: %s")
                             .handle();
         } finally {
-            elastic.callDuration.addValue(w.elapsedMillis());
-            if (Microtiming.isEnabled()) {
-                w.submitMicroTiming("elastic", method + ": " + uri);
-            }
-            if (w.elapsedMillis() > Elastic.getLogQueryThresholdMillis()) {
-                elastic.numSlowQueries.inc();
-                DB.SLOW_DB_LOG.INFO("A slow Elasticsearch query was executed (%s): %s\n%s\n%s",
-                                    w.duration(),
-                                    method + ": " + uri,
-                                    Strings.limit(buildContent().orElse("no content"), MAX_CONTENT_LONG_LENGTH),
-                                    ExecutionPoint.snapshot().toString());
-            }
+            recordCall(w, uri, true);
+        }
+    }
+
+    /**
+     * Records the duration of a call and reports it as slow query if it exceeds the configured threshold.
+     *
+     * @param w                     the watch which has been started when the call was made
+     * @param uri                   the uri which has been invoked
+     * @param includeExecutionPoint <tt>true</tt> to log the current stack trace for slow queries. This is
+     *                              pointless for asynchronous calls, as these complete in an I/O thread of the client
+     */
+    private void recordCall(Watch w, String uri, boolean includeExecutionPoint) {
+        elastic.callDuration.addValue(w.elapsedMillis());
+        if (Microtiming.isEnabled()) {
+            w.submitMicroTiming("elastic", method + ": " + uri);
+        }
+        if (w.elapsedMillis() > Elastic.getLogQueryThresholdMillis()) {
+            elastic.numSlowQueries.inc();
+            DB.SLOW_DB_LOG.INFO("A slow Elasticsearch query was executed (%s): %s\n%s\n%s",
+                                w.duration(),
+                                method + ": " + uri,
+                                Strings.limit(buildContent().orElse("no content"), MAX_CONTENT_LONG_LENGTH),
+                                includeExecutionPoint ? ExecutionPoint.snapshot().toString() : "(asynchronous call)");
         }
     }
 
@@ -151,9 +177,12 @@ class RequestBuilder {
 
         Request request = new Request(method, uri);
         request.addParameters(determineParams());
-        NStringEntity requestContent =
-                buildContent().map(content -> new NStringEntity(content, ContentType.APPLICATION_JSON)).orElse(null);
-        request.setEntity(requestContent);
+        if (requestEntity != null) {
+            request.setEntity(requestEntity);
+        } else {
+            request.setEntity(buildContent().map(content -> new NStringEntity(content, ContentType.APPLICATION_JSON))
+                                            .orElse(null));
+        }
         return request;
     }
 
@@ -231,6 +260,31 @@ class RequestBuilder {
         });
     }
 
+    /**
+     * Executes the request asynchronously.
+     * <p>
+     * Note that the response is only parsed once {@link #response()} or one of the streaming methods is invoked, so
+     * that this happens in the thread which picks up the result rather than in the I/O thread of the client.
+     *
+     * @param uri the uri to invoke
+     * @return a future which is either completed with the builder itself, once the response is available, or with
+     * the {@link HandledException} which occurred
+     */
+    protected CompletableFuture<RequestBuilder> executeAsync(String uri) {
+        CompletableFuture<RequestBuilder> result = new CompletableFuture<>();
+        Watch w = Watch.start();
+        executeAsync(uri, response -> {
+            recordCall(w, uri, false);
+            responseEntity = response.getEntity();
+            result.complete(this);
+        }, error -> {
+            recordCall(w, uri, false);
+            result.completeExceptionally(error);
+        });
+
+        return result;
+    }
+
     private HandledException handleAsyncFailure(Exception exception, String uri) {
         return Exceptions.handle()
                          .to(Elastic.LOG)
@@ -275,6 +329,102 @@ class RequestBuilder {
         }
     }
 
+    /**
+     * Parses the response as stream and hands each hit (<tt>hits.hits</tt>) to the given consumer.
+     * <p>
+     * In contrast to {@link #response()}, this neither creates a string containing the whole response nor a tree
+     * containing all hits. Only the hit being passed to the consumer is materialized.
+     *
+     * @param hitConsumer the consumer which is supplied with each hit
+     * @return the response without the hits themselves, but with all metadata like the total number of hits, the
+     * aggregations or the scroll id
+     */
+    protected JSONObject streamHits(Consumer<JSONObject> hitConsumer) {
+        return streamResponse(PARAM_HITS, (reader, result) -> {
+            JSONObject hits = new JSONObject();
+            reader.startObject();
+            while (reader.hasNext()) {
+                String key = reader.readString();
+                if (PARAM_HITS.equals(key)) {
+                    reader.startArray();
+                    while (reader.hasNext()) {
+                        hitConsumer.accept(reader.readObject(JSONObject.class));
+                    }
+                    reader.endArray();
+                } else {
+                    hits.put(key, reader.readObject());
+                }
+            }
+            reader.endObject();
+            result.put(PARAM_HITS, hits);
+        });
+    }
+
+    /**
+     * Parses the response of a bulk request as stream, so that only the items which failed are materialized.
+     *
+     * @return the response where <tt>items</tt> only contains the items which reported an error
+     */
+    protected JSONObject streamBulkResponse() {
+        return streamResponse(PARAM_ITEMS, (reader, result) -> {
+            JSONArray failedItems = new JSONArray();
+            reader.startArray();
+            while (reader.hasNext()) {
+                JSONObject item = reader.readObject(JSONObject.class);
+                if (isFailedBulkItem(item)) {
+                    failedItems.add(item);
+                }
+            }
+            reader.endArray();
+            result.put(PARAM_ITEMS, failedItems);
+        });
+    }
+
+    private boolean isFailedBulkItem(JSONObject item) {
+        return item.values()
+                   .stream()
+                   .filter(JSONObject.class::isInstance)
+                   .anyMatch(command -> ((JSONObject) command).containsKey(PARAM_ERROR));
+    }
+
+    /**
+     * Parses the top-level object of the response as stream.
+     *
+     * @param streamedKey         the key of the value which is handled by the given reader
+     * @param streamedValueReader the reader which consumes the value of the given key and stores the relevant parts
+     *                            in the given result
+     * @return the response as parsed by the given reader
+     */
+    private JSONObject streamResponse(String streamedKey, BiConsumer<JSONReader, JSONObject> streamedValueReader) {
+        if (responseEntity == null) {
+            throw new IllegalStateException("No response is available before making a request.");
+        }
+
+        try (JSONReader reader = new JSONReader(new InputStreamReader(responseEntity.getContent(),
+                                                                      StandardCharsets.UTF_8))) {
+            JSONObject result = new JSONObject();
+            reader.startObject();
+            while (reader.hasNext()) {
+                String key = reader.readString();
+                if (streamedKey.equals(key)) {
+                    streamedValueReader.accept(reader, result);
+                } else {
+                    result.put(key, reader.readObject());
+                }
+            }
+            reader.endObject();
+
+            return result;
+        } catch (IOException e) {
+            throw Exceptions.handle()
+                            .to(Elastic.LOG)
+                            .error(e)
+                            .withSystemErrorMessage(
+                                    "An IO exception ocurred when performing a request against elasticsearch: %s")
+                            .handle();
+        }
+    }
+
     protected RequestBuilder toggle(String param, boolean toggle) {
         return withParam(param, String.valueOf(toggle));
     }
@@ -58,7 +58,22 @@ public enum Capability {
     /**
      * Signales that the database supports DECIMAL fields.
      */
-    DECIMAL_TYPE;
+    DECIMAL_TYPE,
+
+    /**
+     * Signals that the database supports upserts via <tt>INSERT ... ON DUPLICATE KEY UPDATE</tt> (MySQL).
+     */
+    UPSERT_ON_DUPLICATE_KEY,
+
+    /**
+     * Signals that the database supports upserts via <tt>INSERT ... ON CONFLICT (...) DO UPDATE</tt> (Postgres).
+     */
+    UPSERT_ON_CONFLICT,
+
+    /**
+     * Signals that <tt>EXPLAIN SELECT ...</tt> reports the estimated number of rows (MySQL, Postgres).
+     */
+    EXPLAIN_ROW_ESTIMATES;
 
     /**
      * Contains the default capabilities of unknown databases.
@@ -76,13 +91,19 @@ public enum Capability {
             LIMIT,
             GENERATED_KEYS,
             NULL_SAFE_OPERATOR,
-            DECIMAL_TYPE));
+            DECIMAL_TYPE,
+            UPSERT_ON_DUPLICATE_KEY,
+            EXPLAIN_ROW_ESTIMATES));
 
     /**
      * Contains the capabilities of a Postgres database
      */
-    public static final Set<Capability> POSTGRES_CAPABILITIES =
-            Collections.unmodifiableSet(EnumSet.of(LIMIT, GENERATED_KEYS, DECIMAL_TYPE));
+    public static final Set<Capability> POSTGRES_CAPABILITIES = Collections.unmodifiableSet(EnumSet.of(
+            LIMIT,
+            GENERATED_KEYS,
+            DECIMAL_TYPE,
+            UPSERT_ON_CONFLICT,
+            EXPLAIN_ROW_ESTIMATES));
 
     /**
      * Contains the capabilities of a Clickhouse database
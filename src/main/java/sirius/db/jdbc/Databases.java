@@ -73,6 +73,7 @@ public class Databases implements Initializable {
     protected static Counter numQueries = new Counter();
     protected static Counter numSlowQueries = new Counter();
     protected static Average queryDuration = new Average();
+    protected static Average templateCacheHitRate = new Average();
 
     private static final long SECOND_SHIFT = 1;
     private static final long MINUTE_SHIFT = SECOND_SHIFT * 100;
@@ -120,6 +121,11 @@ public class Databases implements Initializable {
                                  "JDBC Query Duration",
                                  queryDuration.getAndClear(),
                                  "ms");
+                collector.metric("jdbc_template_cache_hit_rate",
+                                 "db-template-cache-hit-rate",
+                                 "JDBC Template Cache Hit Rate",
+                                 templateCacheHitRate.getAndClear(),
+                                 "%");
             }
         }
 
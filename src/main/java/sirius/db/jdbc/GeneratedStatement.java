@@ -8,10 +8,12 @@
 
 package sirius.db.jdbc;
 
+import sirius.db.mixing.CountCache;
 import sirius.db.mixing.EntityDescriptor;
 import sirius.db.mixing.Mapping;
 import sirius.kernel.commons.Monoflop;
 import sirius.kernel.commons.Watch;
+import sirius.kernel.di.std.Part;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -51,6 +53,9 @@ abstract class GeneratedStatement<S extends GeneratedStatement<S>> {
      */
     protected final List<Object> parameters = new ArrayList<>();
 
+    @Part
+    private static CountCache countCache;
+
     /**
      * Creates a new instance for the given descriptor and database.
      *
@@ -202,6 +207,7 @@ abstract class GeneratedStatement<S extends GeneratedStatement<S>> {
                 return stmt.executeUpdate();
             }
         } finally {
+            countCache.invalidate(descriptor);
             watch.submitMicroTiming(microtimingKey(), sql);
         }
     }
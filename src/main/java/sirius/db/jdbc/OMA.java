@@ -13,11 +13,13 @@ import sirius.db.jdbc.constraints.SQLConstraint;
 import sirius.db.jdbc.constraints.SQLFilterFactory;
 import sirius.db.jdbc.schema.Schema;
 import sirius.db.mixing.BaseMapper;
+import sirius.db.mixing.CountCache;
 import sirius.db.mixing.EntityDescriptor;
 import sirius.db.mixing.IntegrityConstraintFailedException;
 import sirius.db.mixing.Mapping;
 import sirius.db.mixing.OptimisticLockException;
 import sirius.db.mixing.Property;
+import sirius.db.mixing.UpsertResult;
 import sirius.db.mixing.query.constraints.FilterFactory;
 import sirius.kernel.async.Future;
 import sirius.kernel.commons.Context;
@@ -35,10 +37,15 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * Provides the {@link BaseMapper mapper} used to communicate with JDBC / SQL databases.
@@ -65,6 +72,9 @@ public class OMA extends BaseMapper<SQLEntity, SQLConstraint, SmartQuery<? exten
     @Part
     private Databases dbs;
 
+    @Part
+    private CountCache countCache;
+
     private Boolean ready;
 
     /**
@@ -204,6 +214,7 @@ public class OMA extends BaseMapper<SQLEntity, SQLConstraint, SmartQuery<? exten
 
         try {
             Row keys = getDatabase(ed.getRealm()).insertRow(ed.getRelationName(), insertData);
+            countCache.invalidate(ed);
             loadCreatedId(entity, keys);
             entity.setVersion(1);
         } catch (SQLIntegrityConstraintViolationException e) {
@@ -291,6 +302,7 @@ public class OMA extends BaseMapper<SQLEntity, SQLConstraint, SmartQuery<? exten
                     stmt.setInt(index++, entity.getVersion());
                 }
                 int updatedRows = stmt.executeUpdate();
+                countCache.invalidate(ed);
                 enforceUpdate(entity, force, updatedRows);
 
                 if (ed.isVersioned()) {
@@ -319,6 +331,213 @@ public class OMA extends BaseMapper<SQLEntity, SQLConstraint, SmartQuery<? exten
         }
     }
 
+    @Override
+    protected UpsertResult upsertEntity(SQLEntity entity, EntityDescriptor ed, Mapping[] keyFields) throws Exception {
+        Database db = getDatabase(ed.getRealm());
+        List<Property> properties;
+        List<Property> keyProperties;
+        if (keyFields.length > 0) {
+            properties = getUpsertProperties(ed);
+            keyProperties = Arrays.stream(keyFields).map(ed::getProperty).collect(Collectors.toList());
+        } else {
+            // Without a natural key, we fall back to the id (just like Mango and Elastic do). Therefore a persisted
+            // entity also writes its id, so that its row is updated instead of being inserted a second time...
+            properties = entity.isNew() ? getUpsertProperties(ed) : new ArrayList<>(ed.getProperties());
+            keyProperties = Collections.singletonList(ed.getProperty(SQLEntity.ID));
+        }
+        String sql = createUpsertSQL(db, ed, properties, keyProperties, true);
+
+        try (Connection c = db.getConnection()) {
+            if (db.hasCapability(Capability.UPSERT_ON_CONFLICT)) {
+                return executeUpsertWithReturning(c, sql, entity, ed, properties);
+            } else {
+                return executeUpsertWithGeneratedKeys(c, sql, entity, ed, properties);
+            }
+        } catch (SQLIntegrityConstraintViolationException e) {
+            throw new IntegrityConstraintFailedException(e);
+        } finally {
+            countCache.invalidate(ed);
+        }
+    }
+
+    /**
+     * Determines the properties which are written by an upsert of the given entity type.
+     *
+     * @param ed the descriptor of the entity type
+     * @return all properties except the id, as this is always generated by the database
+     */
+    public static List<Property> getUpsertProperties(EntityDescriptor ed) {
+        return ed.getProperties()
+                 .stream()
+                 .filter(p -> !SQLEntity.ID.getName().equals(p.getName()))
+                 .collect(Collectors.toList());
+    }
+
+    /**
+     * Creates the dialect specific SQL statement used to perform an upsert.
+     * <p>
+     * For MySQL / MariaDB this generates an <tt>INSERT ... ON DUPLICATE KEY UPDATE</tt> which relies on a unique
+     * index being present for the given key properties. For Postgres an <tt>INSERT ... ON CONFLICT (...) DO UPDATE</tt>
+     * is generated. The generated statement expects one parameter per given property in the given order.
+     *
+     * @param db            the database to generate the statement for
+     * @param ed            the descriptor of the entity type to upsert
+     * @param properties    the properties to write
+     * @param keyProperties the properties which make up the natural key. These are not updated for existing rows.
+     * @param fetchResult   <tt>true</tt> to generate a statement which reports the id (and the insert / update
+     *                      state) of the effected row, <tt>false</tt> to generate a statement suitable for
+     *                      batch execution
+     * @return the generated SQL statement
+     * @throws sirius.kernel.health.HandledException if the database doesn't support upserts
+     */
+    public static String createUpsertSQL(Database db,
+                                         EntityDescriptor ed,
+                                         List<Property> properties,
+                                         List<Property> keyProperties,
+                                         boolean fetchResult) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ");
+        sql.append(ed.getRelationName());
+        sql.append(" (");
+        sql.append(properties.stream().map(Property::getPropertyName).collect(Collectors.joining(", ")));
+        sql.append(ed.isVersioned() ? ", " + VERSION : "");
+        sql.append(") VALUES(");
+        sql.append(properties.stream().map(p -> "?").collect(Collectors.joining(", ")));
+        sql.append(ed.isVersioned() ? ", 1" : "");
+        sql.append(")");
+
+        List<Property> propertiesToUpdate =
+                properties.stream().filter(p -> !keyProperties.contains(p)).collect(Collectors.toList());
+
+        if (db.hasCapability(Capability.UPSERT_ON_DUPLICATE_KEY)) {
+            // Updating the id via LAST_INSERT_ID makes MySQL report the id of an updated row as generated key...
+            sql.append(" ON DUPLICATE KEY UPDATE ");
+            sql.append(fetchResult ? "id = LAST_INSERT_ID(id)" : "id = id");
+            for (Property property : propertiesToUpdate) {
+                sql.append(", ");
+                sql.append(property.getPropertyName());
+                sql.append(" = VALUES(");
+                sql.append(property.getPropertyName());
+                sql.append(")");
+            }
+            sql.append(ed.isVersioned() ? ", version = version + 1" : "");
+        } else if (db.hasCapability(Capability.UPSERT_ON_CONFLICT)) {
+            if (keyProperties.isEmpty()) {
+                throw Exceptions.handle()
+                                .to(LOG)
+                                .withSystemErrorMessage("An upsert of %s against %s requires at least one key field.",
+                                                        ed.getType().getName(),
+                                                        db)
+                                .handle();
+            }
+
+            sql.append(" ON CONFLICT (");
+            sql.append(keyProperties.stream().map(Property::getPropertyName).collect(Collectors.joining(", ")));
+            sql.append(") DO UPDATE SET ");
+            List<String> assignments = propertiesToUpdate.stream()
+                                                         .map(Property::getPropertyName)
+                                                         .map(name -> name + " = EXCLUDED." + name)
+                                                         .collect(Collectors.toList());
+            if (ed.isVersioned()) {
+                assignments.add("version = " + ed.getRelationName() + ".version + 1");
+            }
+            if (assignments.isEmpty()) {
+                // We need at least one assignment so that RETURNING also reports existing rows...
+                String keyColumn = keyProperties.get(0).getPropertyName();
+                assignments.add(keyColumn + " = EXCLUDED." + keyColumn);
+            }
+            sql.append(Strings.join(assignments, ", "));
+            if (fetchResult) {
+                sql.append(" RETURNING id, (xmax = 0) AS inserted");
+                sql.append(ed.isVersioned() ? ", version" : "");
+            }
+        } else {
+            throw Exceptions.handle()
+                            .to(LOG)
+                            .withSystemErrorMessage("The database %s does not support upserts (required for %s).",
+                                                    db,
+                                                    ed.getType().getName())
+                            .handle();
+        }
+
+        return sql.toString();
+    }
+
+    /**
+     * Fills the parameters of a statement created by {@link #createUpsertSQL(Database, EntityDescriptor, List, List,
+     * boolean)}.
+     *
+     * @param stmt       the statement to fill
+     * @param entity     the entity to read the values from
+     * @param properties the properties to write (in the same order as passed to <tt>createUpsertSQL</tt>)
+     * @throws SQLException in case of a database error
+     */
+    public static void fillUpsertParameters(PreparedStatement stmt, SQLEntity entity, List<Property> properties)
+            throws SQLException {
+        int index = 1;
+        for (Property property : properties) {
+            stmt.setObject(index++, Databases.convertValue(property.getValueForDatasource(OMA.class, entity)));
+        }
+    }
+
+    private UpsertResult executeUpsertWithReturning(Connection c,
+                                                    String sql,
+                                                    SQLEntity entity,
+                                                    EntityDescriptor ed,
+                                                    List<Property> properties) throws SQLException {
+        try (PreparedStatement stmt = c.prepareStatement(sql)) {
+            fillUpsertParameters(stmt, entity, properties);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    throw new SQLException("The upsert didn't report the effected row: " + sql);
+                }
+
+                entity.setId(rs.getLong("id"));
+                if (ed.isVersioned()) {
+                    entity.setVersion(rs.getInt(VERSION));
+                }
+
+                return rs.getBoolean("inserted") ? UpsertResult.INSERTED : UpsertResult.UPDATED;
+            }
+        }
+    }
+
+    /**
+     * Executes an <tt>INSERT ... ON DUPLICATE KEY UPDATE</tt>.
+     * <p>
+     * MySQL reports one effected row for an insert and two for an update. Note that a matching row which already
+     * contains all given values is reported as one effected row by drivers which use "found rows" semantics
+     * (<tt>useAffectedRows=false</tt>, which is the default of Connector/J). As this cannot be distinguished from
+     * an insert, such a row is reported as {@link UpsertResult#INSERTED}.
+     */
+    private UpsertResult executeUpsertWithGeneratedKeys(Connection c,
+                                                        String sql,
+                                                        SQLEntity entity,
+                                                        EntityDescriptor ed,
+                                                        List<Property> properties) throws SQLException {
+        try (PreparedStatement stmt = c.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+            fillUpsertParameters(stmt, entity, properties);
+            UpsertResult result = stmt.executeUpdate() == 1 ? UpsertResult.INSERTED : UpsertResult.UPDATED;
+            loadCreatedId(entity, dbs.fetchGeneratedKeys(stmt));
+
+            if (ed.isVersioned()) {
+                entity.setVersion(result == UpsertResult.INSERTED ? 1 : fetchVersion(c, ed, entity));
+            }
+
+            return result;
+        }
+    }
+
+    private int fetchVersion(Connection c, EntityDescriptor ed, SQLEntity entity) throws SQLException {
+        try (PreparedStatement stmt = c.prepareStatement("SELECT version FROM "
+                                                         + ed.getRelationName()
+                                                         + SQL_WHERE_ID)) {
+            stmt.setLong(1, entity.getId());
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 1;
+            }
+        }
+    }
+
     @Override
     protected void deleteEntity(SQLEntity entity, boolean force, EntityDescriptor ed) throws Exception {
         StringBuilder sb = new StringBuilder("DELETE FROM ");
@@ -336,6 +555,7 @@ public class OMA extends BaseMapper<SQLEntity, SQLConstraint, SmartQuery<? exten
                     stmt.setInt(2, entity.getVersion());
                 }
                 int updatedRows = stmt.executeUpdate();
+                countCache.invalidate(ed);
                 if (updatedRows == 0 && find(entity.getClass(), entity.getId()).isPresent()) {
                     throw new OptimisticLockException();
                 }
@@ -0,0 +1,80 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.jdbc;
+
+import sirius.db.jdbc.batch.BatchContext;
+import sirius.db.jdbc.batch.CustomQuery;
+import sirius.db.mixing.CounterBuffer;
+import sirius.db.mixing.EntityDescriptor;
+import sirius.kernel.Stoppable;
+import sirius.kernel.di.std.Register;
+import sirius.kernel.timer.EveryTenSeconds;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Provides a {@link CounterBuffer} for {@link SQLEntity SQL entities}.
+ * <p>
+ * This can be used instead of {@link UpdateStatement#inc(sirius.db.mixing.Mapping)} for heavily updated counters.
+ * All pending deltas of a row are written by a single {@code UPDATE table SET a = a + ?, b = b + ? WHERE id = ?}
+ * which is executed as batch via a {@link BatchContext}. Therefore, cached counts of the entity type are invalidated
+ * once the deltas have been written.
+ */
+@Register(classes = {SQLCounterBuffer.class, EveryTenSeconds.class, Stoppable.class})
+public class SQLCounterBuffer extends CounterBuffer<SQLEntity> {
+
+    @Override
+    protected void writeDeltas(EntityDescriptor ed, Map<Object, Map<String, Long>> deltas) throws Exception {
+        try (BatchContext ctx = new BatchContext(() -> "Flushing counters of " + ed.getType().getName(),
+                                                 Duration.ofMinutes(1))) {
+            Map<List<String>, CustomQuery> queries = new HashMap<>();
+            for (Map.Entry<Object, Map<String, Long>> row : deltas.entrySet()) {
+                List<String> columns = new ArrayList<>(row.getValue().keySet());
+                Collections.sort(columns);
+                CustomQuery query = queries.computeIfAbsent(columns, ignored -> createIncrementQuery(ctx, ed, columns));
+                int index = 1;
+                for (String column : columns) {
+                    query.setParameter(index++, row.getValue().get(column));
+                }
+                query.setParameter(index, row.getKey());
+                query.executeBatchUpdate();
+            }
+
+            ctx.tryCommit();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private CustomQuery createIncrementQuery(BatchContext ctx, EntityDescriptor ed, List<String> columns) {
+        return ctx.customQuery((Class<? extends SQLEntity>) ed.getType(), false, createIncrementSQL(ed, columns));
+    }
+
+    private String createIncrementSQL(EntityDescriptor ed, List<String> columns) {
+        StringBuilder sql = new StringBuilder("UPDATE ");
+        sql.append(ed.getRelationName());
+        sql.append(" SET ");
+        for (int i = 0; i < columns.size(); i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append(columns.get(i));
+            sql.append(" = ");
+            sql.append(columns.get(i));
+            sql.append(" + ?");
+        }
+        sql.append(" WHERE id = ?");
+
+        return sql.toString();
+    }
+}
@@ -11,7 +11,10 @@ package sirius.db.jdbc;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import sirius.db.jdbc.constraints.SQLConstraint;
+import sirius.db.jdbc.facets.SQLFacet;
 import sirius.db.mixing.BaseMapper;
+import sirius.db.mixing.CountAccuracy;
+import sirius.db.mixing.CountCache;
 import sirius.db.mixing.EntityDescriptor;
 import sirius.db.mixing.Mapping;
 import sirius.db.mixing.properties.SQLEntityRefProperty;
@@ -48,6 +51,9 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
  * Provides a query DSL which is used to query {@link SQLEntity} instances from the database.
@@ -57,6 +63,10 @@ import java.util.function.Predicate;
 public class SmartQuery<E extends SQLEntity> extends Query<SmartQuery<E>, E, SQLConstraint> {
 
     private static final Duration QUERY_ITERATE_TIMEOUT = Duration.ofMinutes(15);
+    private static final String EXPLAIN_COLUMN_ROWS = "ROWS";
+    private static final String EXPLAIN_COLUMN_FILTERED = "FILTERED";
+    private static final String EXPLAIN_COLUMN_ID = "ID";
+    private static final Pattern EXPLAIN_ROWS_PATTERN = Pattern.compile("rows=(\\d+)");
 
     @Part
     private static OMA oma;
@@ -64,11 +74,16 @@ public class SmartQuery<E extends SQLEntity> extends Query<SmartQuery<E>, E, SQL
     @Part
     private static Databases dbs;
 
+    @Part
+    private static CountCache countCache;
+
     protected List<Mapping> fields = Collections.emptyList();
     protected boolean distinct;
     protected List<Tuple<Mapping, Boolean>> orderBys = Lists.newArrayList();
     protected List<SQLConstraint> constaints = Lists.newArrayList();
     protected Database db;
+    protected List<SQLFacet> facets;
+    protected boolean useCountCache;
 
     /**
      * Creates a new query instance.
@@ -143,13 +158,55 @@ public class SmartQuery<E extends SQLEntity> extends Query<SmartQuery<E>, E, SQL
         return this;
     }
 
+    /**
+     * Enables caching of the results of {@link #count(CountAccuracy)}.
+     * <p>
+     * The results are cached for a short period (<tt>cache.mixing-count.ttl</tt>) or until an entity of the
+     * queried type is written via {@link OMA}. This is mostly useful for paged lists which repeatedly count the
+     * same query.
+     *
+     * @return the query itself for fluent method calls
+     */
+    public SmartQuery<E> withCountCache() {
+        this.useCountCache = true;
+        return this;
+    }
+
     @Override
     public long count() {
+        return count(CountAccuracy.EXACT);
+    }
+
+    /**
+     * Counts the number of matches using the given accuracy.
+     *
+     * @param accuracy determines if an exact count is required or if an estimated or bounded count is sufficient
+     * @return the (possibly estimated or bounded) number of matches
+     */
+    public long count(CountAccuracy accuracy) {
+        Compiler compiler = compileCOUNT(accuracy);
+        String cacheKey = useCountCache ? countCache.computeKey(descriptor, accuracy + ": " + compiler) : null;
+        if (cacheKey != null) {
+            Long cachedCount = countCache.get(cacheKey);
+            if (cachedCount != null) {
+                return cachedCount;
+            }
+        }
+
         Watch w = Watch.start();
-        Compiler compiler = compileCOUNT();
         try {
             try (Connection c = db.getConnection()) {
-                return execCount(compiler, c);
+                long result = accuracy.isEstimated() && db.hasCapability(Capability.EXPLAIN_ROW_ESTIMATES) ?
+                              execEstimatedCount(compiler, c) :
+                              execCount(compiler, c);
+                if (accuracy.isBounded()) {
+                    result = Math.min(result, accuracy.getBound());
+                }
+                if (cacheKey != null) {
+                    countCache.put(cacheKey, result);
+                }
+
+                return result;
             } finally {
                 if (Microtiming.isEnabled()) {
                     w.submitMicroTiming("OMA", compiler.toString());
@@ -160,6 +217,156 @@ public class SmartQuery<E extends SQLEntity> extends Query<SmartQuery<E>, E, SQL
         }
     }
 
+    /**
+     * Reads the row estimate from the output of <tt>EXPLAIN</tt>.
+     * <p>
+     * MySQL reports the number of examined <tt>rows</tt> per table in the plan along with the percentage of these
+     * rows which are expected to match the conditions (<tt>filtered</tt>). The estimate is therefore the product
+     * of <tt>rows &times; filtered / 100</tt> over all tables of the top level select (subqueries are skipped).
+     * Postgres reports a textual plan which contains <tt>rows=N</tt> for the top level node in its first line.
+     */
+    private long execEstimatedCount(Compiler compiler, Connection c) throws SQLException {
+        try (PreparedStatement stmt = compiler.prepareStatement(c)) {
+            try (ResultSet rs = stmt.executeQuery()) {
+                Set<String> columns = dbs.readColumns(rs);
+                if (!columns.contains(EXPLAIN_COLUMN_ROWS)) {
+                    if (!rs.next()) {
+                        return 0;
+                    }
+                    Matcher matcher = EXPLAIN_ROWS_PATTERN.matcher(Value.of(rs.getString(1)).asString());
+                    return matcher.find() ? Long.parseLong(matcher.group(1)) : 0;
+                }
+
+                boolean hasFilteredColumn = columns.contains(EXPLAIN_COLUMN_FILTERED);
+                boolean hasIdColumn = columns.contains(EXPLAIN_COLUMN_ID);
+                double estimate = 0;
+                boolean tableSeen = false;
+                while (rs.next()) {
+                    if (hasIdColumn && rs.getLong(EXPLAIN_COLUMN_ID) != 1) {
+                        continue;
+                    }
+
+                    double filtered =
+                            hasFilteredColumn ? Value.of(rs.getObject(EXPLAIN_COLUMN_FILTERED)).asDouble(100) : 100;
+                    double matchingRows = rs.getLong(EXPLAIN_COLUMN_ROWS) * filtered / 100;
+                    estimate = tableSeen ? estimate * matchingRows : matchingRows;
+                    tableSeen = true;
+                }
+
+                return Math.round(estimate);
+            }
+        }
+    }
+
+    /**
+     * Adds a facet to be later executed using {@link #executeFacets()}.
+     *
+     * @param facet the facet to add
+     * @return the query itself for fluent method calls
+     */
+    public SmartQuery<E> addFacet(SQLFacet facet) {
+        if (facets == null) {
+            facets = new ArrayList<>();
+        }
+
+        facets.add(facet);
+        return this;
+    }
+
+    /**
+     * Executes all previously attached facets.
+     * <p>
+     * All ungrouped facets (like min/max or ranges) are computed by a single aggregation statement. Each grouped
+     * facet (like terms) is computed by a <tt>GROUP BY</tt> statement of its own. All statements share the
+     * constraints of this query and are executed using the same connection.
+     */
+    public void executeFacets() {
+        if (facets == null || facets.isEmpty()) {
+            return;
+        }
+
+        try (Connection c = db.getConnection()) {
+            List<SQLFacet> ungroupedFacets =
+                    facets.stream().filter(facet -> !facet.isGrouped()).collect(Collectors.toList());
+            if (!ungroupedFacets.isEmpty()) {
+                execFacets(c, ungroupedFacets, null);
+            }
+            for (SQLFacet facet : facets) {
+                if (facet.isGrouped()) {
+                    execFacets(c, Collections.singletonList(facet), facet);
+                }
+            }
+        } catch (SQLException e) {
+            throw Exceptions.handle()
+                            .to(OMA.LOG)
+                            .error(e)
+                            .withSystemErrorMessage("Error executing facets for type '%s': %s (%s)",
+                                                    descriptor.getType().getName())
+                            .handle();
+        }
+
+        facets.forEach(SQLFacet::complete);
+    }
+
+    private void execFacets(Connection c, List<SQLFacet> facetsToExecute, @Nullable SQLFacet groupedFacet) {
+        Compiler compiler = new Compiler(descriptor);
+        compiler.getSELECTBuilder().append("SELECT ");
+        Monoflop mf = Monoflop.create();
+        List<Integer> numberOfColumns = new ArrayList<>();
+        for (SQLFacet facet : facetsToExecute) {
+            AtomicInteger columns = new AtomicInteger();
+            facet.emitSelect(compiler, expression -> {
+                if (mf.successiveCall()) {
+                    compiler.getSELECTBuilder().append(", ");
+                }
+                compiler.getSELECTBuilder().append(expression);
+                columns.incrementAndGet();
+            });
+            numberOfColumns.add(columns.get());
+        }
+        from(compiler);
+        where(compiler);
+
+        int maxGroups = 0;
+        if (groupedFacet != null) {
+            groupedFacet.emitGroupBy(compiler);
+            maxGroups = groupedFacet.getMaxGroups();
+            if (maxGroups > 0 && db.hasCapability(Capability.LIMIT)) {
+                compiler.getWHEREBuilder().append(" LIMIT ").append(maxGroups);
+            }
+        }
+
+        Watch w = Watch.start();
+        try (PreparedStatement stmt = compiler.prepareStatement(c)) {
+            if (maxGroups > 0) {
+                stmt.setMaxRows(maxGroups);
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    digestFacetRow(rs, facetsToExecute, numberOfColumns);
+                }
+            }
+        } catch (Exception e) {
+            throw queryError(compiler, e);
+        } finally {
+            if (Microtiming.isEnabled()) {
+                w.submitMicroTiming("OMA", compiler.toString());
+            }
+        }
+    }
+
+    private void digestFacetRow(ResultSet rs, List<SQLFacet> facetsToDigest, List<Integer> numberOfColumns)
+            throws SQLException {
+        int columnIndex = 1;
+        for (int i = 0; i < facetsToDigest.size(); i++) {
+            List<Value> values = new ArrayList<>(numberOfColumns.get(i));
+            for (int j = 0; j < numberOfColumns.get(i); j++) {
+                values.add(Value.of(rs.getObject(columnIndex++)));
+            }
+            facetsToDigest.get(i).digest(values);
+        }
+    }
+
     protected HandledException queryError(Compiler compiler, Exception e) {
         return Exceptions.handle()
                          .to(OMA.LOG)
@@ -366,6 +573,7 @@ public class SmartQuery<E extends SQLEntity> extends Query<SmartQuery<E>, E, SQL
     public SmartQuery<E> copy() {
         SmartQuery<E> copy = new SmartQuery<>(descriptor, db);
         copy.distinct = distinct;
+        copy.useCountCache = useCountCache;
         copy.fields = new ArrayList<>(fields);
         copy.orderBys.addAll(orderBys);
         copy.constaints.addAll(constaints);
@@ -693,7 +901,23 @@ public class SmartQuery<E extends SQLEntity> extends Query<SmartQuery<E>, E, SQL
         return compiler;
     }
 
-    private Compiler compileCOUNT() {
+    private Compiler compileCOUNT(CountAccuracy accuracy) {
+        if (accuracy.isEstimated() && db.hasCapability(Capability.EXPLAIN_ROW_ESTIMATES)) {
+            Compiler compiler = select();
+            compiler.getSELECTBuilder().insert(0, "EXPLAIN ");
+            from(compiler);
+            where(compiler);
+            return compiler;
+        }
+
+        if (accuracy.isBounded() && db.hasCapability(Capability.LIMIT)) {
+            Compiler compiler = selectBounded();
+            from(compiler);
+            where(compiler);
+            compiler.getWHEREBuilder().append(" LIMIT ").append(accuracy.getBound()).append(") bounded");
+            return compiler;
+        }
+
         Compiler compiler = selectCount();
         from(compiler);
         where(compiler);
@@ -756,6 +980,20 @@ public class SmartQuery<E extends SQLEntity> extends Query<SmartQuery<E>, E, SQL
         }
     }
 
+    private Compiler selectBounded() {
+        Compiler c = new Compiler(descriptor);
+        c.getSELECTBuilder().append("SELECT COUNT(*) FROM (SELECT ");
+        if (fields.isEmpty()) {
+            c.getSELECTBuilder().append("1");
+        } else {
+            if (distinct) {
+                c.getSELECTBuilder().append("DISTINCT ");
+            }
+            appendFieldList(c, true);
+        }
+        return c;
+    }
+
     private Compiler selectCount() {
         Compiler c = new Compiler(descriptor);
         if (!fields.isEmpty()) {
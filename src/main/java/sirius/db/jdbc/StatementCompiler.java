@@ -15,7 +15,6 @@ import sirius.kernel.commons.Strings;
 import sirius.kernel.commons.Tuple;
 import sirius.kernel.nls.NLS;
 
-import javax.annotation.Nullable;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -64,6 +63,9 @@ class StatementCompiler {
      * normal substitution and #{Param} for LIKE substitution) are replaced by
      * the given parameters. Blocks created with [ and ] are taken out if the
      * parameter referenced in between is null.
+     * <p>
+     * Note that the query itself is parsed into a {@link StatementTemplate} which is cached, so that only the
+     * parameters have to be bound for repeatedly executed queries.
      *
      * @param query   the query to compile
      * @param context the context defining the parameters available
@@ -73,7 +75,9 @@ class StatementCompiler {
         if (query != null) {
             this.originalSQL = query;
             this.context = context;
-            parseSection(query);
+            for (StatementTemplate.Section section : StatementTemplate.parse(query).getSections()) {
+                compileSection(section);
+            }
         }
         int index = 0;
         for (Object param : params) {
@@ -90,90 +94,39 @@ class StatementCompiler {
     }
 
     /*
-     * Searches for an occurrence of a block [ .. ]. Everything before the [ is
-     * compiled and added to the result SQL. Everything between the brackets is
-     * compiled and if a parameter was found it is added to the result SQL. The
-     * part after the ] is parsed in a recursive call.
-     * <p/>
-     * If no [ was found, the complete string is compiled and added to the
-     * result SQL.
-     */
-    private void parseSection(String sql) throws SQLException {
-        int index = sql.indexOf('[');
-        if (index > -1) {
-            int nextClose = sql.indexOf(']', index + 1);
-            if (nextClose < 0) {
-                throw new SQLException(Strings.apply("Unbalanced [ at %d in: %s ", index, originalSQL));
-            }
-            int nextOpen = sql.indexOf('[', index + 1);
-            if ((nextOpen > -1) && (nextOpen < nextClose)) {
-                throw new SQLException(Strings.apply("Cannot nest blocks of angular brackets at %d in: %s ",
-                                                     index,
-                                                     originalSQL));
-            }
-            compileSection(false, sql.substring(0, index));
-            compileSection(true, sql.substring(index + 1, nextClose));
-            parseSection(sql.substring(nextClose + 1));
-        } else {
-            compileSection(false, sql);
-        }
-    }
-
-    /*
-     * Replaces all occurrences of parameters ${..} or #{..} by parameters given
-     * in context.
+     * Replaces all parameter references of the given section by the parameters given in context.
+     * Optional sections are only appended if at least one of their parameters is filled.
      */
-    private void compileSection(boolean ignoreIfParametersNull, String sql) throws SQLException {
+    private void compileSection(StatementTemplate.Section section) throws SQLException {
         List<Object> tempParams = Lists.newArrayList();
         StringBuilder sqlBuilder = new StringBuilder();
+        boolean appendToStatement = !section.isOptional();
 
-        boolean appendToStatement = compileSectionPart(sql, tempParams, sqlBuilder, !ignoreIfParametersNull);
-
-        if (appendToStatement) {
-            sb.append(sqlBuilder.toString());
-            params.addAll(tempParams);
-        }
-    }
+        for (StatementTemplate.Segment segment : section.getSegments()) {
+            if (segment.getText() != null) {
+                sqlBuilder.append(segment.getText());
+            } else {
+                Object paramValue = computeEffectiveParameterValue(segment);
+                if (!segment.isLikeParameter() || paramValue == null) {
+                    tempParams.add(paramValue);
+                } else {
+                    tempParams.add(addSQLWildcard(paramValue.toString().toLowerCase(), true));
+                }
 
-    private boolean compileSectionPart(String sql,
-                                       List<Object> tempParams,
-                                       StringBuilder sqlBuilder,
-                                       boolean appendToStatement) throws SQLException {
-        Tuple<Integer, Boolean> nextSubstitution = getNextRelevantIndex(sql);
-        if (nextSubstitution == null) {
-            if (appendToStatement) {
-                sqlBuilder.append(sql);
+                appendPlaceholdersToStatement(sqlBuilder, paramValue);
+                appendToStatement |= isParameterFilled(paramValue);
             }
-            return appendToStatement;
         }
 
-        int endIndex = findClosingCurlyBracket(sql, nextSubstitution.getFirst());
-        String parameterName = sql.substring(nextSubstitution.getFirst() + 2, endIndex);
-        Object paramValue = computeEffectiveParameterValue(parameterName);
-
-        if (Boolean.TRUE.equals(nextSubstitution.getSecond()) || paramValue == null) {
-            tempParams.add(paramValue);
-        } else {
-            tempParams.add(addSQLWildcard(paramValue.toString().toLowerCase(), true));
+        if (appendToStatement) {
+            sb.append(sqlBuilder.toString());
+            params.addAll(tempParams);
         }
-
-        sqlBuilder.append(sql, 0, nextSubstitution.getFirst());
-
-        appendPlaceholdersToStatement(sqlBuilder, paramValue);
-
-        return compileSectionPart(sql.substring(endIndex + 1),
-                                  tempParams,
-                                  sqlBuilder,
-                                  appendToStatement || isParameterFilled(paramValue));
     }
 
-    private Object computeEffectiveParameterValue(String fullParameterName) throws SQLException {
-        String accessPath = null;
-        String parameterName = fullParameterName;
-        if (fullParameterName.contains(".")) {
-            accessPath = parameterName.substring(parameterName.indexOf('.') + 1);
-            parameterName = parameterName.substring(0, parameterName.indexOf('.'));
-        }
+    private Object computeEffectiveParameterValue(StatementTemplate.Segment segment) throws SQLException {
+        String parameterName = segment.getParameterName();
+        String accessPath = segment.getAccessPath();
 
         Object paramValue = context.get(parameterName);
         if (accessPath == null || paramValue == null) {
@@ -221,34 +174,6 @@ class StatementCompiler {
         return true;
     }
 
-    private int findClosingCurlyBracket(String sql, int index) throws SQLException {
-        int endIndex = sql.indexOf('}', index);
-        if (endIndex < 0) {
-            throw new SQLException(NLS.fmtr("StatementCompiler.errorUnbalancedCurlyBracket")
-                                      .set("index", index)
-                                      .set("query", originalSQL)
-                                      .format());
-        }
-        return endIndex;
-    }
-
-    /*
-     * Returns the next index of ${ or #{ in the given string.
-     */
-    @Nullable
-    private Tuple<Integer, Boolean> getNextRelevantIndex(String sql) {
-        int index = sql.indexOf("${");
-        int sharpIndex = sql.indexOf("#{");
-        if ((sharpIndex > -1) && ((index < 0) || (sharpIndex < index))) {
-            return Tuple.create(sharpIndex, false);
-        }
-        if (index > -1) {
-            return Tuple.create(index, true);
-        } else {
-            return null;
-        }
-    }
-
     /**
      * Make <tt>searchString</tt> conform with SQL 92 syntax. Therefore all * are
      * converted to % and a final % is appended at the end of the string.
@@ -0,0 +1,241 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.jdbc;
+
+import sirius.kernel.cache.Cache;
+import sirius.kernel.cache.CacheManager;
+import sirius.kernel.commons.Strings;
+import sirius.kernel.nls.NLS;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Represents a parsed SQL template as used by {@link SQLQuery} and processed by {@link StatementCompiler}.
+ * <p>
+ * A template is split into sections, which are either always present or optional (enclosed in <tt>[ ]</tt>). Each
+ * section consists of plain text and parameter references (<tt>${param}</tt> or <tt>#{param}</tt> for LIKE
+ * parameters). As parsing a template is quite costly compared to binding its parameters, parsed templates are kept
+ * in the cache <tt>jdbc-statement-templates</tt>, so that only the evaluation of optional sections and the
+ * parameter binding is left when a statement is executed.
+ */
+@Immutable
+class StatementTemplate {
+
+    /**
+     * Represents either a plain text or a parameter reference within a section.
+     */
+    @Immutable
+    static class Segment {
+        private final String text;
+        private final String parameterName;
+        private final String accessPath;
+        private final boolean likeParameter;
+
+        private Segment(String text, String parameterName, String accessPath, boolean likeParameter) {
+            this.text = text;
+            this.parameterName = parameterName;
+            this.accessPath = accessPath;
+            this.likeParameter = likeParameter;
+        }
+
+        /**
+         * Returns the plain text of this segment.
+         *
+         * @return the text to output or <tt>null</tt> if this segment is a parameter reference
+         */
+        @Nullable
+        String getText() {
+            return text;
+        }
+
+        /**
+         * Returns the name of the referenced parameter.
+         *
+         * @return the name of the parameter to fetch from the context or <tt>null</tt> if this is a text segment
+         */
+        @Nullable
+        String getParameterName() {
+            return parameterName;
+        }
+
+        /**
+         * Returns the access path to evaluate on the parameter value (e.g. <tt>x.y</tt> for <tt>${param.x.y}</tt>).
+         *
+         * @return the access path or <tt>null</tt> if the parameter value is used as is
+         */
+        @Nullable
+        String getAccessPath() {
+            return accessPath;
+        }
+
+        /**
+         * Determines if the parameter was referenced via <tt>#{param}</tt> and has to be converted into a LIKE
+         * expression.
+         *
+         * @return <tt>true</tt> for LIKE parameters, <tt>false</tt> otherwise
+         */
+        boolean isLikeParameter() {
+            return likeParameter;
+        }
+    }
+
+    /**
+     * Represents a section of the template.
+     */
+    @Immutable
+    static class Section {
+        private final boolean optional;
+        private final List<Segment> segments;
+
+        private Section(boolean optional, List<Segment> segments) {
+            this.optional = optional;
+            this.segments = Collections.unmodifiableList(segments);
+        }
+
+        /**
+         * Determines if the section was enclosed in <tt>[ ]</tt> and must therefore be omitted if none of its
+         * parameters is filled.
+         *
+         * @return <tt>true</tt> if the section is optional, <tt>false</tt> otherwise
+         */
+        boolean isOptional() {
+            return optional;
+        }
+
+        List<Segment> getSegments() {
+            return segments;
+        }
+    }
+
+    private static Cache<String, StatementTemplate> templates =
+            CacheManager.createLocalCache("jdbc-statement-templates");
+
+    private final List<Section> sections;
+
+    private StatementTemplate(List<Section> sections) {
+        this.sections = Collections.unmodifiableList(sections);
+    }
+
+    /**
+     * Returns the parsed template for the given SQL.
+     *
+     * @param sql the SQL template to parse
+     * @return the parsed template, either fetched from the cache or parsed and put into the cache
+     * @throws SQLException in case of a malformed template
+     */
+    static StatementTemplate parse(String sql) throws SQLException {
+        StatementTemplate result = templates.get(sql);
+        if (result != null) {
+            Databases.templateCacheHitRate.addValue(100);
+            return result;
+        }
+
+        Databases.templateCacheHitRate.addValue(0);
+        List<Section> sections = new ArrayList<>();
+        parseSections(sql, sql, sections);
+        result = new StatementTemplate(sections);
+        templates.put(sql, result);
+
+        return result;
+    }
+
+    /*
+     * Searches for an occurrence of a block [ .. ]. Everything before the [ is
+     * compiled as a regular section. Everything between the brackets is
+     * compiled as optional section. The part after the ] is parsed in a recursive call.
+     * <p/>
+     * If no [ was found, the complete string is compiled as regular section.
+     */
+    private static void parseSections(String sql, String originalSQL, List<Section> sections) throws SQLException {
+        int index = sql.indexOf('[');
+        if (index > -1) {
+            int nextClose = sql.indexOf(']', index + 1);
+            if (nextClose < 0) {
+                throw new SQLException(Strings.apply("Unbalanced [ at %d in: %s ", index, originalSQL));
+            }
+            int nextOpen = sql.indexOf('[', index + 1);
+            if ((nextOpen > -1) && (nextOpen < nextClose)) {
+                throw new SQLException(Strings.apply("Cannot nest blocks of angular brackets at %d in: %s ",
+                                                     index,
+                                                     originalSQL));
+            }
+            sections.add(parseSection(false, sql.substring(0, index), originalSQL));
+            sections.add(parseSection(true, sql.substring(index + 1, nextClose), originalSQL));
+            parseSections(sql.substring(nextClose + 1), originalSQL, sections);
+        } else {
+            sections.add(parseSection(false, sql, originalSQL));
+        }
+    }
+
+    /*
+     * Splits the given section into text segments and parameter references ${..} or #{..}.
+     */
+    private static Section parseSection(boolean optional, String sql, String originalSQL) throws SQLException {
+        List<Segment> segments = new ArrayList<>();
+        String remainder = sql;
+        int index = getNextRelevantIndex(remainder);
+        while (index > -1) {
+            int endIndex = remainder.indexOf('}', index);
+            if (endIndex < 0) {
+                throw new SQLException(NLS.fmtr("StatementCompiler.errorUnbalancedCurlyBracket")
+                                          .set("index", index)
+                                          .set("query", originalSQL)
+                                          .format());
+            }
+
+            if (index > 0) {
+                segments.add(new Segment(remainder.substring(0, index), null, null, false));
+            }
+            segments.add(createParameterSegment(remainder.substring(index + 2, endIndex),
+                                                remainder.charAt(index) == '#'));
+            remainder = remainder.substring(endIndex + 1);
+            index = getNextRelevantIndex(remainder);
+        }
+
+        if (!remainder.isEmpty()) {
+            segments.add(new Segment(remainder, null, null, false));
+        }
+
+        return new Section(optional, segments);
+    }
+
+    private static Segment createParameterSegment(String fullParameterName, boolean likeParameter) {
+        int dotIndex = fullParameterName.indexOf('.');
+        if (dotIndex < 0) {
+            return new Segment(null, fullParameterName, null, likeParameter);
+        }
+
+        return new Segment(null,
+                           fullParameterName.substring(0, dotIndex),
+                           fullParameterName.substring(dotIndex + 1),
+                           likeParameter);
+    }
+
+    /*
+     * Returns the next index of ${ or #{ in the given string.
+     */
+    private static int getNextRelevantIndex(String sql) {
+        int index = sql.indexOf("${");
+        int sharpIndex = sql.indexOf("#{");
+        if ((sharpIndex > -1) && ((index < 0) || (sharpIndex < index))) {
+            return sharpIndex;
+        }
+
+        return index;
+    }
+
+    List<Section> getSections() {
+        return sections;
+    }
+}
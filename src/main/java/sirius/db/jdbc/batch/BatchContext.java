@@ -236,6 +236,20 @@ public class BatchContext implements Closeable {
         return insertQuery(type, true, mappingsToInsert);
     }
 
+    /**
+     * Creates a new {@link UpsertQuery upsert query}.
+     *
+     * @param type      the type of entities to upsert
+     * @param keyFields the mappings which make up the natural key (which has to be backed by a unique index)
+     * @param <E>       the generic type of the entities to upsert
+     * @return the query used to insert or update entities in the database
+     */
+    public <E extends SQLEntity> UpsertQuery<E> upsertQuery(Class<E> type, Mapping... keyFields) {
+        return register(new UpsertQuery<>(this,
+                                          type,
+                                          Arrays.stream(keyFields).map(Mapping::getName).collect(Collectors.toList())));
+    }
+
     /**
      * Creates a new {@link UpdateQuery update query}.
      *
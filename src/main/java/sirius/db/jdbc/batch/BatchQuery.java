@@ -14,6 +14,7 @@ import sirius.db.jdbc.OMA;
 import sirius.db.jdbc.Operator;
 import sirius.db.jdbc.SQLEntity;
 import sirius.db.mixing.BaseMapper;
+import sirius.db.mixing.CountCache;
 import sirius.db.mixing.EntityDescriptor;
 import sirius.db.mixing.Mixing;
 import sirius.db.mixing.Property;
@@ -62,6 +63,9 @@ public abstract class BatchQuery<E extends SQLEntity> {
     @Part
     protected static Mixing mixing;
 
+    @Part
+    private static CountCache countCache;
+
     /**
      * Creates a new instance for the given context, type and mappings.
      *
@@ -105,10 +109,27 @@ public abstract class BatchQuery<E extends SQLEntity> {
                                 .error(e)
                                 .withSystemErrorMessage("An error occured while batch executing a statement: %s (%s)")
                                 .handle();
+            } finally {
+                // Even a failed batch might have partially been applied...
+                countCache.invalidate(getDescriptor());
             }
         }
     }
 
+    /**
+     * Executes the prepared statement instantly (instead of adding it to the batch) and commits the changes.
+     *
+     * @throws SQLException in case of a database error
+     */
+    protected void executeAndCommit() throws SQLException {
+        try {
+            stmt.executeUpdate();
+            stmt.getConnection().commit();
+        } finally {
+            countCache.invalidate(getDescriptor());
+        }
+    }
+
     /**
      * Forces a batch to be processed (independent of it size, as long as it isn't empty).
      */
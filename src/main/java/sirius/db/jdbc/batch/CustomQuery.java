@@ -69,8 +69,8 @@ public class CustomQuery extends BatchQuery<SQLEntity> {
      */
     @Nullable
     public Row executeUpdate() throws SQLException {
-        prepareStmt().executeUpdate();
-        prepareStmt().getConnection().commit();
+        prepareStmt();
+        executeAndCommit();
         if (fetchId) {
             return dbs.fetchGeneratedKeys(stmt);
         } else {
@@ -81,8 +81,7 @@ public class DeleteQuery<E extends SQLEntity> extends BatchQuery<E> {
             if (addBatch) {
                 addBatch();
             } else {
-                stmt.executeUpdate();
-                stmt.getConnection().commit();
+                executeAndCommit();
                 avarage.addValue(w.elapsedMillis());
             }
 
@@ -129,8 +129,7 @@ public class InsertQuery<E extends SQLEntity> extends BatchQuery<E> {
             if (addBatch) {
                 addBatch();
             } else {
-                stmt.executeUpdate();
-                stmt.getConnection().commit();
+                executeAndCommit();
                 if (fetchId) {
                     Row keys = dbs.fetchGeneratedKeys(stmt);
                     OMA.loadCreatedId(entity, keys);
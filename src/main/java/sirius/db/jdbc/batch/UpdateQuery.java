@@ -91,8 +91,7 @@ public class UpdateQuery<E extends SQLEntity> extends BatchQuery<E> {
             if (addBatch) {
                 addBatch();
             } else {
-                stmt.executeUpdate();
-                stmt.getConnection().commit();
+                executeAndCommit();
                 avarage.addValue(w.elapsedMillis());
                 if (descriptor.isVersioned()) {
                     entity.setVersion(entity.getVersion() + 1);
@@ -0,0 +1,108 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.jdbc.batch;
+
+import sirius.db.jdbc.OMA;
+import sirius.db.jdbc.SQLEntity;
+import sirius.db.mixing.EntityDescriptor;
+import sirius.db.mixing.Property;
+import sirius.kernel.commons.Watch;
+import sirius.kernel.health.Exceptions;
+
+import javax.annotation.Nonnull;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Represents a batch query which inserts an entity or updates the one with the same natural key.
+ * <p>
+ * This is the batch counterpart of {@link OMA#upsert(sirius.db.mixing.BaseEntity, sirius.db.mixing.Mapping...)}.
+ * Note that neither the id nor the version of the upserted entities are fetched, as this isn't possible for batch
+ * statements.
+ *
+ * @param <E> the generic type of entities to upsert with this query
+ */
+public class UpsertQuery<E extends SQLEntity> extends BatchQuery<E> {
+
+    private final List<Property> propertiesToWrite;
+    private final List<Property> keyProperties;
+
+    protected UpsertQuery(BatchContext context, Class<E> type, List<String> keyFields) {
+        super(context, type, Collections.emptyList());
+        EntityDescriptor ed = getDescriptor();
+        this.propertiesToWrite = OMA.getUpsertProperties(ed);
+        this.keyProperties = keyFields.stream().map(ed::getProperty).collect(Collectors.toList());
+    }
+
+    /**
+     * Inserts the given entity or updates the existing one with the same natural key.
+     *
+     * @param entity       the entity to upsert
+     * @param invokeChecks determines if before- and after save checks should be performed (<tt>true</tt>) or
+     *                     skipped (<tt>false</tt>)
+     * @param addBatch     determines if the query should be executed instantly (<tt>false</tt>) or added to the
+     *                     batch update (<tt>true</tt>).
+     * @throws sirius.kernel.health.HandledException in case of a database error or a general exception
+     */
+    @SuppressWarnings("unchecked")
+    public void upsert(@Nonnull E entity, boolean invokeChecks, boolean addBatch) {
+        try {
+            if (this.type == null) {
+                this.type = (Class<E>) entity.getClass();
+            }
+
+            Watch w = Watch.start();
+            if (invokeChecks) {
+                getDescriptor().beforeSave(entity);
+            }
+
+            PreparedStatement stmt = prepareStmt();
+            OMA.fillUpsertParameters(stmt, entity, propertiesToWrite);
+
+            if (addBatch) {
+                addBatch();
+            } else {
+                executeAndCommit();
+                avarage.addValue(w.elapsedMillis());
+            }
+
+            if (invokeChecks) {
+                getDescriptor().afterSave(entity);
+            }
+        } catch (SQLException e) {
+            context.safeClose();
+            throw Exceptions.handle()
+                            .to(OMA.LOG)
+                            .error(e)
+                            .withSystemErrorMessage(
+                                    "A database error occured while executing an UpsertQuery for %s: %s (%s)",
+                                    type.getName())
+                            .handle();
+        } catch (Exception e) {
+            throw Exceptions.handle()
+                            .to(OMA.LOG)
+                            .error(e)
+                            .withSystemErrorMessage("An error occured while executing an UpsertQuery for %s: %s (%s)",
+                                                    type.getName())
+                            .handle();
+        }
+    }
+
+    @Override
+    protected void buildSQL() throws SQLException {
+        createStmt(OMA.createUpsertSQL(oma.getDatabase(getDescriptor().getRealm()),
+                                       getDescriptor(),
+                                       propertiesToWrite,
+                                       keyProperties,
+                                       false), false);
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.jdbc.facets;
+
+import sirius.db.jdbc.SmartQuery;
+import sirius.db.mixing.Mapping;
+import sirius.kernel.commons.Tuple;
+import sirius.kernel.commons.Value;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Represents a facet which counts the matches per year, month or day of a given date field.
+ * <p>
+ * This uses <tt>EXTRACT(... FROM field)</tt> to compute the buckets, which is supported by all of our databases.
+ */
+public class SQLDateHistogramFacet extends SQLFacet {
+
+    /**
+     * Determines the size of the buckets being counted.
+     */
+    public enum Interval {
+        YEAR, MONTH, DAY
+    }
+
+    private final Mapping field;
+    private final Interval interval;
+    private List<String> bucketExpressions = new ArrayList<>();
+    private List<Tuple<LocalDate, Integer>> buckets = new ArrayList<>();
+    private Consumer<SQLDateHistogramFacet> completionCallback;
+
+    /**
+     * Generates a facet with the given name, for the given field and interval.
+     *
+     * @param name     the name of the facet
+     * @param field    the field to aggregate on
+     * @param interval the size of the buckets to count
+     */
+    public SQLDateHistogramFacet(String name, Mapping field, Interval interval) {
+        super(name);
+        this.field = field;
+        this.interval = interval;
+    }
+
+    /**
+     * Creates a date histogram for the given field and interval.
+     *
+     * @param field    the field to aggregate on
+     * @param interval the size of the buckets to count
+     */
+    public SQLDateHistogramFacet(Mapping field, Interval interval) {
+        this(field.toString(), field, interval);
+    }
+
+    /**
+     * Specifies the callback to invoke once the facet was been computed completely.
+     *
+     * @param completionCallback the callback to invoke
+     * @return the facet itself for fluent method calls
+     */
+    public SQLDateHistogramFacet onComplete(Consumer<SQLDateHistogramFacet> completionCallback) {
+        this.completionCallback = completionCallback;
+        return this;
+    }
+
+    @Override
+    public boolean isGrouped() {
+        return true;
+    }
+
+    @Override
+    public void emitSelect(SmartQuery.Compiler compiler, Consumer<String> columnConsumer) {
+        String column = compiler.translateColumnName(field);
+        bucketExpressions.clear();
+        for (Interval part : Interval.values()) {
+            if (part.ordinal() <= interval.ordinal()) {
+                bucketExpressions.add("EXTRACT(" + part.name() + " FROM " + column + ")");
+            }
+        }
+
+        bucketExpressions.forEach(columnConsumer);
+        columnConsumer.accept("COUNT(*)");
+    }
+
+    @Override
+    public void emitGroupBy(SmartQuery.Compiler compiler) {
+        String expressions = String.join(", ", bucketExpressions);
+        compiler.getWHEREBuilder().append(" GROUP BY ").append(expressions).append(" ORDER BY ").append(expressions);
+    }
+
+    @Override
+    public void digest(List<Value> row) {
+        if (row.get(0).isNull()) {
+            return;
+        }
+
+        int year = row.get(0).asInt(0);
+        int month = interval == Interval.YEAR ? 1 : row.get(1).asInt(1);
+        int day = interval == Interval.DAY ? row.get(2).asInt(1) : 1;
+        buckets.add(Tuple.create(LocalDate.of(year, month, day), row.get(row.size() - 1).asInt(0)));
+    }
+
+    @Override
+    public void complete() {
+        if (completionCallback != null) {
+            completionCallback.accept(this);
+        }
+    }
+
+    /**
+     * Returns the non-empty buckets in ascending order.
+     *
+     * @return a list of buckets, represented by their first day, and the number of matches in each of them
+     */
+    public List<Tuple<LocalDate, Integer>> getBuckets() {
+        return Collections.unmodifiableList(buckets);
+    }
+}
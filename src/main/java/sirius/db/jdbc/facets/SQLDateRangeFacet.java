@@ -0,0 +1,123 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.jdbc.facets;
+
+import sirius.db.jdbc.Databases;
+import sirius.db.jdbc.SmartQuery;
+import sirius.db.mixing.DateRange;
+import sirius.db.mixing.Mapping;
+import sirius.kernel.commons.Tuple;
+import sirius.kernel.commons.Value;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Represents a facet which counts the matches within each of the given date ranges.
+ * <p>
+ * This will add a <tt>SUM(CASE WHEN field &gt;= from AND field &lt; until THEN 1 ELSE 0 END)</tt> per range to
+ * the shared aggregation statement.
+ */
+public class SQLDateRangeFacet extends SQLFacet {
+
+    private final Mapping field;
+    private List<Tuple<DateRange, Integer>> ranges;
+    private Consumer<SQLDateRangeFacet> completionCallback;
+
+    /**
+     * Generates a facet with the given name, for the given field and list of ranges.
+     *
+     * @param name   the name of the facet
+     * @param field  the field to aggregate on
+     * @param ranges the ranges to aggregate on
+     */
+    public SQLDateRangeFacet(String name, Mapping field, List<DateRange> ranges) {
+        super(name);
+        this.field = field;
+        this.ranges = ranges.stream().map(range -> Tuple.create(range, 0)).collect(Collectors.toList());
+    }
+
+    /**
+     * Creates a range facet for the given field and list of ranges.
+     *
+     * @param field  the field to aggregate on
+     * @param ranges the ranges to aggregate on
+     */
+    public SQLDateRangeFacet(Mapping field, List<DateRange> ranges) {
+        this(field.toString(), field, ranges);
+    }
+
+    /**
+     * Specifies the callback to invoke once the facet was been computed completely.
+     *
+     * @param completionCallback the callback to invoke
+     * @return the facet itself for fluent method calls
+     */
+    public SQLDateRangeFacet onComplete(Consumer<SQLDateRangeFacet> completionCallback) {
+        this.completionCallback = completionCallback;
+        return this;
+    }
+
+    @Override
+    public boolean isGrouped() {
+        return false;
+    }
+
+    @Override
+    public void emitSelect(SmartQuery.Compiler compiler, Consumer<String> columnConsumer) {
+        String column = compiler.translateColumnName(field);
+        for (Tuple<DateRange, Integer> rangeAndCounter : ranges) {
+            DateRange range = rangeAndCounter.getFirst();
+            StringBuilder condition = new StringBuilder();
+
+            // The boundaries are [from, until + 1s) meaning a value has to fulfill: from <= value < until + 1s
+            if (range.getFrom() != null) {
+                condition.append(column).append(" >= ?");
+                compiler.addParameter(Databases.convertValue(range.getFrom()));
+            }
+            if (range.getUntil() != null) {
+                if (condition.length() > 0) {
+                    condition.append(" AND ");
+                }
+                condition.append(column).append(" < ?");
+                compiler.addParameter(Databases.convertValue(range.getUntil().plusSeconds(1)));
+            }
+            if (condition.length() == 0) {
+                condition.append(column).append(" IS NOT NULL");
+            }
+
+            columnConsumer.accept("SUM(CASE WHEN " + condition + " THEN 1 ELSE 0 END)");
+        }
+    }
+
+    @Override
+    public void digest(List<Value> row) {
+        for (int i = 0; i < ranges.size(); i++) {
+            ranges.get(i).setSecond(row.get(i).asInt(0));
+        }
+    }
+
+    @Override
+    public void complete() {
+        if (completionCallback != null) {
+            completionCallback.accept(this);
+        }
+    }
+
+    /**
+     * Returns the list of ranges paired with the number of matches in each range.
+     *
+     * @return the list of ranges
+     */
+    public List<Tuple<DateRange, Integer>> getRanges() {
+        return Collections.unmodifiableList(ranges);
+    }
+}
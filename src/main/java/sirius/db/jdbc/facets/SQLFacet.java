@@ -0,0 +1,91 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.jdbc.facets;
+
+import sirius.db.jdbc.SmartQuery;
+import sirius.kernel.commons.Value;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Describes a facet which is computed by {@link SmartQuery#executeFacets()}.
+ * <p>
+ * All facets are computed within the database using the constraints of the query. Facets which only yield a single
+ * set of values (e.g. min/max or ranges) are {@link #isGrouped() ungrouped} and computed together in one single
+ * aggregation statement. Grouped facets (e.g. terms) emit a <tt>GROUP BY</tt> clause and are computed by a statement
+ * of their own.
+ */
+public abstract class SQLFacet {
+
+    protected String name;
+
+    /**
+     * Creates a new facet with the given name.
+     *
+     * @param name the name of the facet, which should be unique within a query
+     */
+    protected SQLFacet(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Determines if the facet requires a <tt>GROUP BY</tt> statement of its own.
+     *
+     * @return <tt>true</tt> if the facet is computed via {@link #emitGroupBy(SmartQuery.Compiler)},
+     * <tt>false</tt> if it only contributes aggregations to the shared statement
+     */
+    public abstract boolean isGrouped();
+
+    /**
+     * Emits the expressions to select.
+     * <p>
+     * The values of these expressions will be passed into {@link #digest(List)} in the same order.
+     *
+     * @param compiler       the compiler of the statement - can be used to translate columns and to add parameters
+     * @param columnConsumer the consumer which adds the given expression to the <tt>SELECT</tt> clause
+     */
+    public abstract void emitSelect(SmartQuery.Compiler compiler, Consumer<String> columnConsumer);
+
+    /**
+     * Emits the <tt>GROUP BY</tt> and <tt>ORDER BY</tt> clause for grouped facets.
+     *
+     * @param compiler the compiler of the statement to extend
+     */
+    public void emitGroupBy(SmartQuery.Compiler compiler) {
+        // Ungrouped facets have nothing to contribute...
+    }
+
+    /**
+     * Returns the maximal number of groups to fetch.
+     *
+     * @return the maximal number of groups to fetch or 0 to fetch all groups
+     */
+    public int getMaxGroups() {
+        return 0;
+    }
+
+    /**
+     * Digests a result row provided by the database.
+     * <p>
+     * For ungrouped facets this is invoked exactly once, for grouped facets this is invoked once per group.
+     *
+     * @param values the values of the expressions emitted by {@link #emitSelect(SmartQuery.Compiler, Consumer)}
+     */
+    public abstract void digest(List<Value> values);
+
+    /**
+     * Invoked once all results have been digested.
+     */
+    public abstract void complete();
+}
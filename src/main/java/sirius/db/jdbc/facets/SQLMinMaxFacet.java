@@ -0,0 +1,103 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.jdbc.facets;
+
+import sirius.db.jdbc.SmartQuery;
+import sirius.db.mixing.Mapping;
+import sirius.kernel.commons.Value;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Represents a facet which determines the smallest and largest value of a given field.
+ * <p>
+ * This will add <tt>MIN(field), MAX(field)</tt> to the shared aggregation statement.
+ */
+public class SQLMinMaxFacet extends SQLFacet {
+
+    private final Mapping field;
+    private Value min = Value.EMPTY;
+    private Value max = Value.EMPTY;
+    private Consumer<SQLMinMaxFacet> completionCallback;
+
+    /**
+     * Generates a facet with the given name, for the given field.
+     *
+     * @param name  the name of the facet
+     * @param field the field to aggregate on
+     */
+    public SQLMinMaxFacet(String name, Mapping field) {
+        super(name);
+        this.field = field;
+    }
+
+    /**
+     * Creates a min/max facet for the given field.
+     *
+     * @param field the field to aggregate on
+     */
+    public SQLMinMaxFacet(Mapping field) {
+        this(field.toString(), field);
+    }
+
+    /**
+     * Specifies the callback to invoke once the facet was been computed completely.
+     *
+     * @param completionCallback the callback to invoke
+     * @return the facet itself for fluent method calls
+     */
+    public SQLMinMaxFacet onComplete(Consumer<SQLMinMaxFacet> completionCallback) {
+        this.completionCallback = completionCallback;
+        return this;
+    }
+
+    @Override
+    public boolean isGrouped() {
+        return false;
+    }
+
+    @Override
+    public void emitSelect(SmartQuery.Compiler compiler, Consumer<String> columnConsumer) {
+        String column = compiler.translateColumnName(field);
+        columnConsumer.accept("MIN(" + column + ")");
+        columnConsumer.accept("MAX(" + column + ")");
+    }
+
+    @Override
+    public void digest(List<Value> row) {
+        this.min = row.get(0);
+        this.max = row.get(1);
+    }
+
+    @Override
+    public void complete() {
+        if (completionCallback != null) {
+            completionCallback.accept(this);
+        }
+    }
+
+    /**
+     * Returns the smallest value of the field within all matching entities.
+     *
+     * @return the smallest value or an empty value if there were no matches
+     */
+    public Value getMin() {
+        return min;
+    }
+
+    /**
+     * Returns the largest value of the field within all matching entities.
+     *
+     * @return the largest value or an empty value if there were no matches
+     */
+    public Value getMax() {
+        return max;
+    }
+}
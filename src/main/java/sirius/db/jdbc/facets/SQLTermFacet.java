@@ -0,0 +1,120 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.jdbc.facets;
+
+import sirius.db.jdbc.SmartQuery;
+import sirius.db.mixing.Mapping;
+import sirius.kernel.commons.Tuple;
+import sirius.kernel.commons.Value;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Represents a facet which counts the occurrences of each distinct value of a given field.
+ * <p>
+ * This will generate a <tt>SELECT field, COUNT(*) ... GROUP BY field ORDER BY COUNT(*) DESC</tt>.
+ */
+public class SQLTermFacet extends SQLFacet {
+
+    private final Mapping field;
+    private int maxTerms;
+    private String column;
+    private List<Tuple<String, Integer>> values = new ArrayList<>();
+    private Consumer<SQLTermFacet> completionCallback;
+
+    /**
+     * Generates a facet with the given name, for the given field.
+     *
+     * @param name  the name of the facet
+     * @param field the field to aggregate on
+     */
+    public SQLTermFacet(String name, Mapping field) {
+        super(name);
+        this.field = field;
+    }
+
+    /**
+     * Creates a term facet for the given field.
+     *
+     * @param field the field to aggregate on
+     */
+    public SQLTermFacet(Mapping field) {
+        this(field.toString(), field);
+    }
+
+    /**
+     * Limits the facet to the most frequent terms.
+     *
+     * @param maxTerms the maximal number of terms to fetch
+     * @return the facet itself for fluent method calls
+     */
+    public SQLTermFacet withMaxTerms(int maxTerms) {
+        this.maxTerms = maxTerms;
+        return this;
+    }
+
+    /**
+     * Specifies the callback to invoke once the facet was been computed completely.
+     *
+     * @param completionCallback the callback to invoke
+     * @return the facet itself for fluent method calls
+     */
+    public SQLTermFacet onComplete(Consumer<SQLTermFacet> completionCallback) {
+        this.completionCallback = completionCallback;
+        return this;
+    }
+
+    @Override
+    public boolean isGrouped() {
+        return true;
+    }
+
+    @Override
+    public void emitSelect(SmartQuery.Compiler compiler, Consumer<String> columnConsumer) {
+        column = compiler.translateColumnName(field);
+        columnConsumer.accept(column);
+        columnConsumer.accept("COUNT(*)");
+    }
+
+    @Override
+    public void emitGroupBy(SmartQuery.Compiler compiler) {
+        compiler.getWHEREBuilder().append(" GROUP BY ").append(column).append(" ORDER BY COUNT(*) DESC");
+    }
+
+    @Override
+    public int getMaxGroups() {
+        return maxTerms;
+    }
+
+    @Override
+    public void digest(List<Value> row) {
+        if (row.get(0).isFilled()) {
+            values.add(Tuple.create(row.get(0).asString(), row.get(1).asInt(0)));
+        }
+    }
+
+    @Override
+    public void complete() {
+        if (completionCallback != null) {
+            completionCallback.accept(this);
+        }
+    }
+
+    /**
+     * Returns the list of filter values.
+     *
+     * @return a list of names (terms) and their number of matches
+     */
+    public List<Tuple<String, Integer>> getValues() {
+        return Collections.unmodifiableList(values);
+    }
+}
@@ -154,6 +154,55 @@ public abstract class BaseMapper<B extends BaseEntity<?>, C extends Constraint,
      */
     protected abstract void updateEntity(B entity, boolean force, EntityDescriptor ed) throws Exception;
 
+    /**
+     * Inserts the given entity or updates the entity which matches the given key fields in a single round trip.
+     * <p>
+     * In contrast to a "find-then-save" approach, this is executed as a single (atomic) statement by the underlying
+     * database and therefore cannot race against a concurrent insert of the same natural key. The given key fields
+     * have to be backed by a unique index (at least for JDBC and MongoDB). The before- and after save handlers are
+     * executed just like in {@link #update(BaseEntity)}.
+     * <p>
+     * Note that optimistic locking is not applied, as the entity might not yet know which row it replaces. However,
+     * the version of a {@link Versioned} entity is still incremented.
+     *
+     * @param entity    the entity to insert or update
+     * @param keyFields the fields which make up the natural key used to detect an existing entity. If no key fields
+     *                  are given, the id of the entity is used (a new entity is therefore always inserted)
+     * @param <E>       the generic type of the entity
+     * @return the result which signals if the entity was inserted or updated
+     */
+    public <E extends B> UpsertResult upsert(E entity, Mapping... keyFields) {
+        try {
+            EntityDescriptor ed = entity.getDescriptor();
+            ed.beforeSave(entity);
+            UpsertResult result = upsertEntity(entity, ed, keyFields);
+            ed.afterSave(entity);
+
+            return result;
+        } catch (HandledException e) {
+            throw e;
+        } catch (Exception e) {
+            throw Exceptions.handle()
+                            .to(Mixing.LOG)
+                            .error(e)
+                            .withSystemErrorMessage("Unable to UPSERT %s (%s): %s (%s)",
+                                                    entity,
+                                                    entity.getClass().getSimpleName())
+                            .handle();
+        }
+    }
+
+    /**
+     * Inserts or updates the given entity in the underlying database.
+     *
+     * @param entity    the entity to write
+     * @param ed        the descriptor of the entity
+     * @param keyFields the natural key used to detect an existing entity
+     * @return the result which signals if the entity was inserted or updated
+     * @throws Exception in case of an database error
+     */
+    protected abstract UpsertResult upsertEntity(B entity, EntityDescriptor ed, Mapping[] keyFields) throws Exception;
+
     /**
      * Deletes the given entity from the database.
      * <p>
@@ -0,0 +1,107 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.mixing;
+
+/**
+ * Determines how exact {@link sirius.db.jdbc.SmartQuery#count(CountAccuracy)} or
+ * {@link sirius.db.mongo.MongoQuery#count(CountAccuracy)} has to count.
+ * <p>
+ * Counting all matches of a query on a very large table or collection can take seconds. For paged lists or overview counters
+ * an estimation or a bounded count ("more than 1000 matches") is often sufficient and way faster.
+ */
+public class CountAccuracy {
+
+    private enum Mode {
+        EXACT, ESTIMATED, BOUNDED
+    }
+
+    /**
+     * Performs an exact count (e.g. <tt>SELECT COUNT(*)</tt>).
+     */
+    public static final CountAccuracy EXACT = new CountAccuracy(Mode.EXACT, 0);
+
+    /**
+     * Uses an estimate provided by the database.
+     * <p>
+     * For JDBC databases, this is the row estimate of the query planner (<tt>EXPLAIN</tt>). Note that these
+     * estimates are based on the table statistics and might be way off, especially for selective constraints. If the
+     * database doesn't provide {@link sirius.db.jdbc.Capability#EXPLAIN_ROW_ESTIMATES} an exact count is performed.
+     * <p>
+     * For MongoDB, the document count stored in the collection metadata is used, if the query has no constraints.
+     * Otherwise an exact count is performed.
+     */
+    public static final CountAccuracy ESTIMATED = new CountAccuracy(Mode.ESTIMATED, 0);
+
+    private final Mode mode;
+    private final int bound;
+
+    private CountAccuracy(Mode mode, int bound) {
+        this.mode = mode;
+        this.bound = bound;
+    }
+
+    /**
+     * Counts exactly up to the given number of matches.
+     * <p>
+     * If there are more matches, the bound itself is returned. For JDBC databases this is executed as
+     * <tt>SELECT COUNT(*) FROM (SELECT 1 FROM ... LIMIT bound)</tt>, for MongoDB the count is limited accordingly, so
+     * that the database can stop scanning once enough matches have been found.
+     *
+     * @param bound the maximal number of matches to count
+     * @return an accuracy which counts up to the given bound
+     */
+    public static CountAccuracy boundedBy(int bound) {
+        if (bound <= 0) {
+            throw new IllegalArgumentException("The bound of a count must be positive.");
+        }
+
+        return new CountAccuracy(Mode.BOUNDED, bound);
+    }
+
+    /**
+     * Determines if an exact count is requested.
+     *
+     * @return <tt>true</tt> if an exact count is requested, <tt>false</tt> otherwise
+     */
+    public boolean isExact() {
+        return mode == Mode.EXACT;
+    }
+
+    /**
+     * Determines if an estimation is sufficient.
+     *
+     * @return <tt>true</tt> if an estimate provided by the database is sufficient, <tt>false</tt> otherwise
+     */
+    public boolean isEstimated() {
+        return mode == Mode.ESTIMATED;
+    }
+
+    /**
+     * Determines if the count is bounded.
+     *
+     * @return <tt>true</tt> if the count stops at {@link #getBound()}, <tt>false</tt> otherwise
+     */
+    public boolean isBounded() {
+        return mode == Mode.BOUNDED;
+    }
+
+    /**
+     * Returns the maximal number of matches to count for bounded counts.
+     *
+     * @return the bound of the count or 0 if the count isn't bounded
+     */
+    public int getBound() {
+        return bound;
+    }
+
+    @Override
+    public String toString() {
+        return isBounded() ? mode.name() + "-" + bound : mode.name();
+    }
+}
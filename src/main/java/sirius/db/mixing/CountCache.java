@@ -0,0 +1,82 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.mixing;
+
+import sirius.kernel.cache.Cache;
+import sirius.kernel.cache.CacheManager;
+import sirius.kernel.di.std.Register;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Provides a short lived cache for the results of {@link sirius.db.jdbc.SmartQuery#count(CountAccuracy)} and
+ * {@link sirius.db.mongo.MongoQuery#count(CountAccuracy)}.
+ * <p>
+ * The cache is keyed by the compiled count statement. Each entity type has a generation counter which is part of
+ * the cache key and incremented whenever an entity of this type is written via its mapper (for
+ * {@link sirius.db.jdbc.OMA} this includes its update and delete statements as well as the queries of a
+ * {@link sirius.db.jdbc.batch.BatchContext}). Therefore all cached counts of a type are invalidated by such a write.
+ * This also holds for plain Mongo statements and both counter buffers. Writes performed via plain SQL or by other
+ * nodes are only reflected once the entries expire.
+ */
+@Register(classes = CountCache.class)
+public class CountCache {
+
+    private Cache<String, Long> cache = CacheManager.createLocalCache("mixing-count");
+    private Map<Class<?>, AtomicLong> generations = new ConcurrentHashMap<>();
+
+    /**
+     * Computes the cache key for the given count statement.
+     * <p>
+     * Note that the key has to be computed before the count is executed, so that a concurrent write invalidates
+     * the result.
+     *
+     * @param descriptor the descriptor of the entities being counted
+     * @param statement  the compiled statement (including its parameters)
+     * @return the cache key to use
+     */
+    public String computeKey(EntityDescriptor descriptor, String statement) {
+        return descriptor.getType().getName() + "-" + getGeneration(descriptor).get() + "-" + statement;
+    }
+
+    private AtomicLong getGeneration(EntityDescriptor descriptor) {
+        return generations.computeIfAbsent(descriptor.getType(), ignored -> new AtomicLong());
+    }
+
+    /**
+     * Returns the cached count for the given key.
+     *
+     * @param key the key as computed by {@link #computeKey(EntityDescriptor, String)}
+     * @return the cached count or <tt>null</tt> if no count is present
+     */
+    public Long get(String key) {
+        return cache.get(key);
+    }
+
+    /**
+     * Stores the count for the given key.
+     *
+     * @param key   the key as computed by {@link #computeKey(EntityDescriptor, String)}
+     * @param count the count to store
+     */
+    public void put(String key, long count) {
+        cache.put(key, count);
+    }
+
+    /**
+     * Invalidates all cached counts for the given type of entities.
+     *
+     * @param descriptor the descriptor of the entity type which has been modified
+     */
+    public void invalidate(EntityDescriptor descriptor) {
+        getGeneration(descriptor).incrementAndGet();
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.mixing;
+
+import sirius.kernel.Stoppable;
+import sirius.kernel.async.Tasks;
+import sirius.kernel.di.std.ConfigValue;
+import sirius.kernel.di.std.Part;
+import sirius.kernel.di.std.Priorized;
+import sirius.kernel.health.Exceptions;
+import sirius.kernel.timer.EveryTenSeconds;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Accumulates increments of counter fields in memory and writes them to the database in bulk.
+ * <p>
+ * Counters like views or usages are commonly maintained via single row updates like
+ * {@code UPDATE table SET counter = counter + 1 WHERE id = ?}. Under load this results in lots of tiny updates which
+ * all compete for the same (hot) rows. The buffer therefore coalesces all increments per entity and field and
+ * writes a single update per row, which applies the summed up deltas.
+ * <p>
+ * Pending deltas are flushed every ten seconds, once more than <tt>mixing.counterBuffer.maxPendingRows</tt> rows
+ * have pending deltas and when the system shuts down. Note that therefore the values in the database lag behind
+ * and that pending deltas are lost if the node crashes. Deltas which cannot be written are kept and retried by the
+ * next flush. As a failed write might have been partially applied (e.g. by a batch which failed midway), such a
+ * retry can count some increments twice.
+ *
+ * @param <B> the type of entities supported by this buffer
+ */
+public abstract class CounterBuffer<B extends BaseEntity<?>> implements EveryTenSeconds, Stoppable {
+
+    private static final String EXECUTOR_COUNTER_BUFFER = "counter-buffer";
+
+    @Part
+    protected static Mixing mixing;
+
+    @Part
+    private static Tasks tasks;
+
+    @ConfigValue("mixing.counterBuffer.maxPendingRows")
+    private static int maxPendingRows;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicBoolean flushInProgress = new AtomicBoolean(false);
+    private Map<EntityDescriptor, Map<Object, Map<String, LongAdder>>> pendingDeltas = new ConcurrentHashMap<>();
+    private final AtomicInteger pendingRows = new AtomicInteger();
+
+    /**
+     * Increments the given field of the given entity by one.
+     *
+     * @param entity the entity to update
+     * @param field  the field to increment
+     */
+    public void inc(B entity, Mapping field) {
+        inc(entity, field, 1);
+    }
+
+    /**
+     * Increments the given field of the given entity by the given delta.
+     * <p>
+     * Note that the entity itself remains unchanged.
+     *
+     * @param entity the entity to update
+     * @param field  the field to increment
+     * @param delta  the value to add to the field
+     */
+    public void inc(B entity, Mapping field, long delta) {
+        if (entity.isNew()) {
+            throw new IllegalArgumentException("Cannot increment a counter of a non-persisted entity.");
+        }
+
+        inc(entity.getDescriptor(), entity.getId(), field, delta);
+    }
+
+    /**
+     * Increments the given field of the entity with the given type and id by the given delta.
+     *
+     * @param type  the type of the entity to update
+     * @param id    the id of the entity to update
+     * @param field the field to increment
+     * @param delta the value to add to the field
+     */
+    public void inc(Class<? extends B> type, Object id, Mapping field, long delta) {
+        inc(mixing.getDescriptor(type), id, field, delta);
+    }
+
+    private void inc(EntityDescriptor ed, Object id, Mapping field, long delta) {
+        addDelta(ed, id, ed.getProperty(field).getPropertyName(), delta);
+
+        if (pendingRows.get() > maxPendingRows && flushInProgress.compareAndSet(false, true)) {
+            startBackgroundFlush();
+        }
+    }
+
+    private void addDelta(EntityDescriptor ed, Object id, String fieldName, long delta) {
+        lock.readLock().lock();
+        try {
+            pendingDeltas.computeIfAbsent(ed, ignored -> new ConcurrentHashMap<>())
+                         .computeIfAbsent(id, ignored -> {
+                             pendingRows.incrementAndGet();
+                             return new ConcurrentHashMap<>();
+                         })
+                         .computeIfAbsent(fieldName, ignored -> new LongAdder())
+                         .add(delta);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void startBackgroundFlush() {
+        try {
+            tasks.executor(EXECUTOR_COUNTER_BUFFER)
+                 .dropOnOverload(() -> flushInProgress.set(false))
+                 .start(this::flushInBackground);
+        } catch (Exception e) {
+            flushInProgress.set(false);
+            Exceptions.handle()
+                      .to(Mixing.LOG)
+                      .error(e)
+                      .withSystemErrorMessage("Failed to start flushing the counter buffer: %s (%s)")
+                      .handle();
+        }
+    }
+
+    private void flushInBackground() {
+        try {
+            flush();
+        } finally {
+            flushInProgress.set(false);
+        }
+    }
+
+    /**
+     * Writes all pending deltas to the database.
+     * <p>
+     * If the deltas of an entity type cannot be written, these are merged back into the buffer so that they are
+     * retried by the next flush.
+     */
+    public void flush() {
+        Map<EntityDescriptor, Map<Object, Map<String, LongAdder>>> deltasToFlush;
+        lock.writeLock().lock();
+        try {
+            if (pendingDeltas.isEmpty()) {
+                return;
+            }
+            deltasToFlush = pendingDeltas;
+            pendingDeltas = new ConcurrentHashMap<>();
+            pendingRows.set(0);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        deltasToFlush.forEach(this::flushDeltas);
+    }
+
+    private void flushDeltas(EntityDescriptor ed, Map<Object, Map<String, LongAdder>> deltasPerId) {
+        Map<Object, Map<String, Long>> effectiveDeltas = new HashMap<>();
+        deltasPerId.forEach((id, deltas) -> {
+            Map<String, Long> effectiveDeltasOfRow = new HashMap<>();
+            deltas.forEach((field, delta) -> {
+                long sum = delta.sum();
+                if (sum != 0) {
+                    effectiveDeltasOfRow.put(field, sum);
+                }
+            });
+            if (!effectiveDeltasOfRow.isEmpty()) {
+                effectiveDeltas.put(id, effectiveDeltasOfRow);
+            }
+        });
+
+        if (effectiveDeltas.isEmpty()) {
+            return;
+        }
+
+        try {
+            writeDeltas(ed, effectiveDeltas);
+        } catch (Exception e) {
+            effectiveDeltas.forEach((id, deltas) -> deltas.forEach((field, delta) -> addDelta(ed, id, field, delta)));
+            Exceptions.handle()
+                      .to(Mixing.LOG)
+                      .error(e)
+                      .withSystemErrorMessage("Failed to flush %s pending counter updates for %s"
+                                              + " (these will be retried): %s (%s)",
+                                              effectiveDeltas.size(),
+                                              ed.getType().getName())
+                      .handle();
+        }
+    }
+
+    /**
+     * Writes the given deltas into the database.
+     *
+     * @param ed     the descriptor of the entities to update
+     * @param deltas the deltas to apply per entity id and effective field name (as returned by
+     *               {@link Property#getPropertyName()})
+     * @throws Exception in case of a database error
+     */
+    protected abstract void writeDeltas(EntityDescriptor ed, Map<Object, Map<String, Long>> deltas) throws Exception;
+
+    @Override
+    public void runTimer() throws Exception {
+        flush();
+    }
+
+    @Override
+    public int getPriority() {
+        // Ensure that we flush all pending deltas before the database connections are closed...
+        return Priorized.DEFAULT_PRIORITY + 100;
+    }
+
+    @Override
+    public void stopped() {
+        flush();
+    }
+}
@@ -784,22 +784,51 @@ public class EntityDescriptor {
      */
     public Object make(Class<? extends BaseMapper<?, ?, ?>> mapperType, String alias, ValueSupplier<String> supplier)
             throws Exception {
-        Object entity = type.getDeclaredConstructor().newInstance();
+        Object entity = newInstance();
 
         for (Property p : getProperties()) {
             String columnName = (alias == null) ? p.getPropertyName() : alias + "_" + p.getPropertyName();
             Value data = supplier.apply(columnName);
             if (data != null) {
-                p.setValueFromDatasource(mapperType, entity, data);
-                if (isBaseEntity(entity)) {
-                    asBaseEntity(entity).persistedData.put(p, p.getValueAsCopy(entity));
-                }
+                loadProperty(mapperType, entity, p, data);
             }
         }
 
         return entity;
     }
 
+    /**
+     * Creates a new and empty entity of the described type.
+     * <p>
+     * This can be used along with {@link #loadProperty(Class, Object, Property, Value)} by mappers which read the
+     * values of an entity one by one (e.g. from a stream) instead of providing them via
+     * {@link #make(Class, String, ValueSupplier)}.
+     *
+     * @return a new instance of the described entity type
+     * @throws Exception in case of an error while creating the entity
+     */
+    public Object newInstance() throws Exception {
+        return type.getDeclaredConstructor().newInstance();
+    }
+
+    /**
+     * Loads the value of the given property as read from the database.
+     *
+     * @param mapperType the mapper which is currently active
+     * @param entity     the entity to fill
+     * @param property   the property to load
+     * @param data       the value as read from the database
+     */
+    public void loadProperty(Class<? extends BaseMapper<?, ?, ?>> mapperType,
+                             Object entity,
+                             Property property,
+                             Value data) {
+        property.setValueFromDatasource(mapperType, entity, data);
+        if (isBaseEntity(entity)) {
+            asBaseEntity(entity).persistedData.put(property, property.getValueAsCopy(entity));
+        }
+    }
+
     /**
      * Applies legacy renaming rules to determine the effective property name based on the name generated by the
      * property.
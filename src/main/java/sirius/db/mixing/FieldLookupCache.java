@@ -23,7 +23,9 @@ import javax.annotation.Nullable;
  * Provides a global cache for field values.
  * <p>
  * This can be used to quickly resolve IDs into names / label when rendering tables of items.
- * Note that the cache isn't invalidated automatically but rather short lived.
+ * Note that the cache isn't invalidated automatically but rather short lived. However, entries of a single entity can
+ * be invalidated explicitly via {@link #invalidate(EntityDescriptor, Object)} (e.g. by a
+ * {@link sirius.db.mongo.MongoChangeStream}).
  */
 @Register(classes = FieldLookupCache.class)
 public class FieldLookupCache {
@@ -113,4 +115,21 @@ public class FieldLookupCache {
     public <E extends BaseEntity<?>> Value lookup(BaseEntityRef<?, E> ref, Mapping field) {
         return lookup(ref.getType(), ref.getId(), field);
     }
+
+    /**
+     * Removes all cached values of the given entity.
+     *
+     * @param descriptor the descriptor of the entity which has been changed
+     * @param id         the id of the entity which has been changed
+     */
+    public void invalidate(EntityDescriptor descriptor, Object id) {
+        if (Strings.isEmpty(id)) {
+            return;
+        }
+
+        String uniqueName = Mixing.getUniqueName(descriptor.getType(), id);
+        for (Property property : descriptor.getProperties()) {
+            cache.remove(uniqueName + "-" + property.getName());
+        }
+    }
 }
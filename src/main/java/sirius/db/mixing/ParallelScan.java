@@ -0,0 +1,141 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.mixing;
+
+import sirius.kernel.async.TaskContext;
+import sirius.kernel.async.Tasks;
+import sirius.kernel.di.std.Part;
+import sirius.kernel.health.Exceptions;
+import sirius.kernel.health.Log;
+
+import java.util.concurrent.Phaser;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coordinates the workers of a parallel scan over the entities of a query.
+ * <p>
+ * Each worker is forked into the given executor and should process entities as long as the scan
+ * {@link #isActive() is active}. Once the current {@link TaskContext} is cancelled or a worker fails, all workers
+ * are expected to stop. {@link #await()} blocks until all workers have completed and rethrows the first error.
+ * <p>
+ * The number of processed entities is reported to the {@link TaskContext} of the thread which created the scan,
+ * at most once per second.
+ */
+public class ParallelScan {
+
+    private static final long STATE_UPDATE_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+    @Part
+    private static Tasks tasks;
+
+    private final Log log;
+    private final String executor;
+    private final String relationName;
+    private final TaskContext taskContext = TaskContext.get();
+    private final Phaser workers = new Phaser(1);
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final LongAdder processedEntities = new LongAdder();
+    private final AtomicLong nextStateUpdate = new AtomicLong();
+
+    /**
+     * Creates a new scan.
+     *
+     * @param log          the logger to report errors to
+     * @param executor     the executor to fork the workers in
+     * @param relationName the name of the collection or index being scanned (used for messages)
+     */
+    public ParallelScan(Log log, String executor, String relationName) {
+        this.log = log;
+        this.executor = executor;
+        this.relationName = relationName;
+    }
+
+    /**
+     * Forks the given worker.
+     * <p>
+     * If the worker throws an exception, it is recorded as failure of the scan, which stops all other workers.
+     *
+     * @param worker the worker to execute
+     */
+    public void fork(Runnable worker) {
+        workers.register();
+        try {
+            tasks.executor(executor).fork(() -> {
+                try {
+                    worker.run();
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    workers.arriveAndDeregister();
+                }
+            });
+        } catch (Exception e) {
+            failure.compareAndSet(null, e);
+            workers.arriveAndDeregister();
+        }
+    }
+
+    /**
+     * Determines if the workers should continue processing.
+     *
+     * @return <tt>true</tt> if neither the task has been cancelled nor a worker failed, <tt>false</tt> otherwise
+     */
+    public boolean isActive() {
+        return failure.get() == null && taskContext.isActive();
+    }
+
+    /**
+     * Records that a worker has processed the given number of entities.
+     *
+     * @param numberOfEntities the number of entities which have been processed
+     */
+    public void processed(int numberOfEntities) {
+        processedEntities.add(numberOfEntities);
+        long now = System.currentTimeMillis();
+        long next = nextStateUpdate.get();
+        if (now >= next && nextStateUpdate.compareAndSet(next, now + STATE_UPDATE_INTERVAL_MILLIS)) {
+            taskContext.setState("Scanning %s: %s entities processed", relationName, processedEntities.sum());
+        }
+    }
+
+    /**
+     * Blocks until all workers have completed.
+     *
+     * @throws sirius.kernel.health.HandledException if a worker failed or if the calling thread was interrupted
+     */
+    public void await() {
+        try {
+            workers.awaitAdvanceInterruptibly(workers.arrive());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            // Stops all workers which are still running...
+            failure.compareAndSet(null, e);
+            throw Exceptions.handle()
+                            .to(log)
+                            .error(e)
+                            .withSystemErrorMessage("Interrupted while waiting for a parallel scan of %s",
+                                                    relationName)
+                            .handle();
+        }
+
+        if (failure.get() != null) {
+            throw Exceptions.handle()
+                            .to(log)
+                            .error(failure.get())
+                            .withSystemErrorMessage("An error occurred during a parallel scan of %s: %s (%s)",
+                                                    relationName)
+                            .handle();
+        }
+
+        taskContext.setState("Scanning %s: %s entities processed", relationName, processedEntities.sum());
+    }
+}
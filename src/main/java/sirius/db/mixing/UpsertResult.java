@@ -0,0 +1,34 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.mixing;
+
+/**
+ * Reports the outcome of an {@link BaseMapper#upsert(BaseEntity, Mapping...)}.
+ */
+public enum UpsertResult {
+
+    /**
+     * Signals that no matching entity was present and therefore a new one was created.
+     */
+    INSERTED,
+
+    /**
+     * Signals that a matching entity was present and has been updated with the given values.
+     */
+    UPDATED;
+
+    /**
+     * Determines if the entity was newly created.
+     *
+     * @return <tt>true</tt> if the entity was inserted, <tt>false</tt> if an existing one was updated
+     */
+    public boolean wasInserted() {
+        return this == INSERTED;
+    }
+}
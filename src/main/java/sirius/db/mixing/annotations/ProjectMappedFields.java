@@ -0,0 +1,29 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.mixing.annotations;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Can be placed on a {@link sirius.db.mongo.MongoEntity} so that queries only fetch the fields which are mapped by
+ * the entity.
+ * <p>
+ * This is useful for collections which still contain legacy fields, which are no longer mapped but would otherwise
+ * be transferred and decoded for each document. Note that this is only the default projection of
+ * {@link sirius.db.mongo.MongoQuery} and is skipped if the fields to fetch are specified explicitly.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface ProjectMappedFields {
+}
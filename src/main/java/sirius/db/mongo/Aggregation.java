@@ -0,0 +1,529 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.mongo;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import sirius.db.mixing.Mapping;
+import sirius.db.mongo.constraints.MongoConstraint;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Fluent builder to build and execute an aggregation pipeline.
+ * <p>
+ * All filters specified via {@link #where(MongoConstraint)} and its variants are placed into an initial
+ * <tt>$match</tt> stage. Further stages are appended in the order in which they are added. Use
+ * {@link #match(MongoConstraint)} to filter the intermediate results (e.g. the output of a {@link #group(Mapping...)}).
+ * <p>
+ * An aggregation should be used to perform grouping, counting or joining within the database instead of iterating
+ * over all documents in order to compute such values.
+ */
+public class Aggregation extends QueryBuilder<Aggregation> {
+
+    private static final String STAGE_MATCH = "$match";
+    private static final String STAGE_GROUP = "$group";
+    private static final String STAGE_PROJECT = "$project";
+    private static final String STAGE_UNWIND = "$unwind";
+    private static final String STAGE_LOOKUP = "$lookup";
+    private static final String STAGE_SORT = "$sort";
+    private static final String STAGE_SKIP = "$skip";
+    private static final String STAGE_LIMIT = "$limit";
+    private static final String STAGE_BUCKET = "$bucket";
+    private static final String FIELD_ID = "_id";
+
+    private final List<Document> stages = new ArrayList<>();
+    private int batchSize;
+    private boolean allowDiskUse;
+    private boolean useCollation = true;
+    private ReadPreference readPreference;
+
+    protected Aggregation(Mongo mongo, String database) {
+        super(mongo, database);
+    }
+
+    /**
+     * Appends a <tt>$match</tt> stage which filters the documents emitted by the previous stage.
+     *
+     * @param constraint the constraint to filter by
+     * @return the builder itself for fluent method calls
+     */
+    public Aggregation match(MongoConstraint constraint) {
+        stages.add(new Document(STAGE_MATCH, new Document(constraint.getKey(), constraint.getObject())));
+        return this;
+    }
+
+    /**
+     * Appends a <tt>$group</tt> stage which groups by the given fields.
+     * <p>
+     * The accumulators of the group can be specified by calling {@link #sum(String, Mapping)},
+     * {@link #count(String)}, {@link #avg(String, Mapping)}, {@link #min(String, Mapping)},
+     * {@link #max(String, Mapping)}, {@link #first(String, Mapping)}, {@link #push(String, Mapping)} or
+     * {@link #addToSet(String, Mapping)} directly afterwards.
+     * <p>
+     * If a single field is given, its value is used as <tt>_id</tt> of the resulting documents. If several fields
+     * are given, the <tt>_id</tt> is a sub document which contains the values of the given fields. If no field is
+     * given, all documents are grouped into a single result.
+     *
+     * @param keys the fields to group by
+     * @return the builder itself for fluent method calls
+     */
+    public Aggregation group(Mapping... keys) {
+        Object id = null;
+        if (keys.length == 1) {
+            id = fieldReference(keys[0]);
+        } else if (keys.length > 1) {
+            Document compoundId = new Document();
+            for (Mapping key : keys) {
+                compoundId.append(key.toString(), fieldReference(key));
+            }
+            id = compoundId;
+        }
+
+        stages.add(new Document(STAGE_GROUP, new Document(FIELD_ID, id)));
+        return this;
+    }
+
+    /**
+     * Adds an accumulator which sums up the given field to the current group.
+     *
+     * @param outputField the name of the field which will contain the sum
+     * @param field       the field to sum up
+     * @return the builder itself for fluent method calls
+     */
+    public Aggregation sum(String outputField, Mapping field) {
+        return accumulate(outputField, "$sum", fieldReference(field));
+    }
+
+    /**
+     * Adds an accumulator which counts the documents in the current group.
+     *
+     * @param outputField the name of the field which will contain the count
+     * @return the builder itself for fluent method calls
+     */
+    public Aggregation count(String outputField) {
+        return accumulate(outputField, "$sum", 1);
+    }
+
+    /**
+     * Adds an accumulator which computes the average of the given field to the current group.
+     *
+     * @param outputField the name of the field which will contain the average
+     * @param field       the field to compute the average for
+     * @return the builder itself for fluent method calls
+     */
+    public Aggregation avg(String outputField, Mapping field) {
+        return accumulate(outputField, "$avg", fieldReference(field));
+    }
+
+    /**
+     * Adds an accumulator which determines the minimal value of the given field to the current group.
+     *
+     * @param outputField the name of the field which will contain the minimum
+     * @param field       the field to inspect
+     * @return the builder itself for fluent method calls
+     */
+    public Aggregation min(String outputField, Mapping field) {
+        return accumulate(outputField, "$min", fieldReference(field));
+    }
+
+    /**
+     * Adds an accumulator which determines the maximal value of the given field to the current group.
+     *
+     * @param outputField the name of the field which will contain the maximum
+     * @param field       the field to inspect
+     * @return the builder itself for fluent method calls
+     */
+    public Aggregation max(String outputField, Mapping field) {
+        return accumulate(outputField, "$max", fieldReference(field));
+    }
+
+    /**
+     * Adds an accumulator which selects the value of the given field of the first document in the current group.
+     *
+     * @param outputField the name of the field which will contain the value
+     * @param field       the field to select
+     * @return the builder itself for fluent method calls
+     */
+    public Aggregation first(String outputField, Mapping field) {
+        return accumulate(outputField, "$first", fieldReference(field));
+    }
+
+    /**
+     * Adds an accumulator which collects all values of the given field in the current group into a list.
+     *
+     * @param outputField the name of the field which will contain the list
+     * @param field       the field to collect
+     * @return the builder itself for fluent method calls
+     */
+    public Aggregation push(String outputField, Mapping field) {
+        return accumulate(outputField, "$push", fieldReference(field));
+    }
+
+    /**
+     * Adds an accumulator which collects all distinct values of the given field in the current group into a list.
+     *
+     * @param outputField the name of the field which will contain the list
+     * @param field       the field to collect
+     * @return the builder itself for fluent method calls
+     */
+    public Aggregation addToSet(String outputField, Mapping field) {
+        return accumulate(outputField, "$addToSet", fieldReference(field));
+    }
+
+    /**
+     * Adds an accumulator with the given operator and expression to the current group.
+     *
+     * @param outputField the name of the field which will contain the result
+     * @param operator    the accumulator operator like <tt>$sum</tt>
+     * @param expression  the expression to accumulate
+     * @return the builder itself for fluent method calls
+     * @throws IllegalStateException if the previous stage isn't a <tt>$group</tt> stage
+     */
+    public Aggregation accumulate(String outputField, String operator, Object expression) {
+        Document lastStage = stages.isEmpty() ? null : stages.get(stages.size() - 1);
+        if (lastStage == null || !lastStage.containsKey(STAGE_GROUP)) {
+            throw new IllegalStateException("An accumulator can only be added directly after a $group stage.");
+        }
+
+        ((Document) lastStage.get(STAGE_GROUP)).append(outputField, new Document(operator, expression));
+        return this;
+    }
+
+    /**
+     * Appends a <tt>$project</tt> stage which only keeps the given fields.
+     *
+     * @param fields the fields to keep
+     * @return the builder itself for fluent method calls
+     */
+    public Aggregation project(Mapping... fields) {
+        Document projection = new Document();
+        for (Mapping field : fields) {
+            projection.append(field.toString(), 1);
+        }
+
+        stages.add(new Document(STAGE_PROJECT, projection));
+        return this;
+    }
+
+    /**
+     * Appends a <tt>$project</tt> stage with the given specification.
+     * <p>
+     * This can be used to compute new fields via expressions.
+     *
+     * @param projection the projection to apply
+     * @return the builder itself for fluent method calls
+     */
+    public Aggregation project(Document projection) {
+        stages.add(new Document(STAGE_PROJECT, projection));
+        return this;
+    }
+
+    /**
+     * Appends an <tt>$unwind</tt> stage which emits one document per entry of the given list field.
+     *
+     * @param field the list field to unwind
+     * @return the builder itself for fluent method calls
+     */
+    public Aggregation unwind(Mapping field) {
+        stages.add(new Document(STAGE_UNWIND, fieldReference(field)));
+        return this;
+    }
+
+    /**
+     * Appends a <tt>$lookup</tt> stage which joins the matching documents of another collection.
+     *
+     * @param type         the type of entities to join
+     * @param localField   the field of the aggregated documents to match
+     * @param foreignField the field of the joined documents to match
+     * @param outputField  the name of the list field which will contain the joined documents
+     * @return the builder itself for fluent method calls
+     */
+    public Aggregation lookup(Class<?> type, Mapping localField, Mapping foreignField, String outputField) {
+        return lookup(getRelationName(type), localField, foreignField, outputField);
+    }
+
+    /**
+     * Appends a <tt>$lookup</tt> stage which joins the matching documents of another collection.
+     *
+     * @param collection   the collection to join
+     * @param localField   the field of the aggregated documents to match
+     * @param foreignField the field of the joined documents to match
+     * @param outputField  the name of the list field which will contain the joined documents
+     * @return the builder itself for fluent method calls
+     */
+    public Aggregation lookup(String collection, Mapping localField, Mapping foreignField, String outputField) {
+        stages.add(new Document(STAGE_LOOKUP,
+                                new Document("from", collection).append("localField", localField.toString())
+                                                                .append("foreignField", foreignField.toString())
+                                                                .append("as", outputField)));
+        return this;
+    }
+
+    /**
+     * Adds a sort constraint to order by the given field ascending.
+     * <p>
+     * Consecutive sort constraints are combined into a single <tt>$sort</tt> stage.
+     *
+     * @param field the field to order by.
+     * @return the builder itself for fluent method calls
+     */
+    public Aggregation orderByAsc(Mapping field) {
+        return orderBy(field.toString(), 1);
+    }
+
+    /**
+     * Adds a sort constraint to order by the given field descending.
+     * <p>
+     * Consecutive sort constraints are combined into a single <tt>$sort</tt> stage.
+     *
+     * @param field the field to order by.
+     * @return the builder itself for fluent method calls
+     */
+    public Aggregation orderByDesc(Mapping field) {
+        return orderBy(field.toString(), -1);
+    }
+
+    private Aggregation orderBy(String field, int direction) {
+        Document lastStage = stages.isEmpty() ? null : stages.get(stages.size() - 1);
+        if (lastStage != null && lastStage.containsKey(STAGE_SORT)) {
+            ((Document) lastStage.get(STAGE_SORT)).append(field, direction);
+        } else {
+            stages.add(new Document(STAGE_SORT, new Document(field, direction)));
+        }
+
+        return this;
+    }
+
+    /**
+     * Appends a <tt>$skip</tt> stage.
+     *
+     * @param skip the number of documents to skip
+     * @return the builder itself for fluent method calls
+     */
+    public Aggregation skip(int skip) {
+        stages.add(new Document(STAGE_SKIP, skip));
+        return this;
+    }
+
+    /**
+     * Appends a <tt>$limit</tt> stage.
+     *
+     * @param limit the maximal number of documents to pass on
+     * @return the builder itself for fluent method calls
+     */
+    public Aggregation limit(int limit) {
+        stages.add(new Document(STAGE_LIMIT, limit));
+        return this;
+    }
+
+    /**
+     * Appends a <tt>$bucket</tt> stage which counts the documents per range of the given field.
+     * <p>
+     * Each resulting document contains the lower bound of its bucket as <tt>_id</tt> and the number of documents as
+     * <tt>count</tt>.
+     *
+     * @param field         the field to group by
+     * @param boundaries    the (sorted) boundaries of the buckets
+     * @param defaultBucket the id of the bucket which collects all documents outside the boundaries. If
+     *                      <tt>null</tt> is given, all documents must fall within the boundaries.
+     * @return the builder itself for fluent method calls
+     */
+    public Aggregation bucket(Mapping field, List<?> boundaries, @Nullable Object defaultBucket) {
+        Document bucket = new Document("groupBy", fieldReference(field)).append("boundaries", boundaries);
+        if (defaultBucket != null) {
+            bucket.append("default", defaultBucket);
+        }
+
+        stages.add(new Document(STAGE_BUCKET, bucket));
+        return this;
+    }
+
+    /**
+     * Appends the given stage as is.
+     * <p>
+     * This can be used for stages which are not directly supported by this builder.
+     *
+     * @param stage the stage to append
+     * @return the builder itself for fluent method calls
+     */
+    public Aggregation stage(Document stage) {
+        stages.add(stage);
+        return this;
+    }
+
+    /**
+     * Specifies the number of documents to fetch per round trip.
+     *
+     * @param batchSize the number of documents to fetch at once
+     * @return the builder itself for fluent method calls
+     */
+    public Aggregation batchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Permits the database to write temporary data to disk.
+     * <p>
+     * This is required for stages like <tt>$group</tt> or <tt>$sort</tt> which would otherwise exceed the memory
+     * limit of the server when aggregating large collections.
+     *
+     * @return the builder itself for fluent method calls
+     */
+    public Aggregation allowDiskUse() {
+        this.allowDiskUse = true;
+        return this;
+    }
+
+    /**
+     * Specifies which members of a replica set may be used to execute this aggregation.
+     *
+     * @param readPreference the read preference to use
+     * @return the builder itself for fluent method calls
+     * @see Finder#readPreference(ReadPreference)
+     */
+    public Aggregation readPreference(ReadPreference readPreference) {
+        this.readPreference = readPreference;
+        return this;
+    }
+
+    /**
+     * Executes the aggregation without the collation configured in <tt>mongo.collationLocale</tt>.
+     *
+     * @return the builder itself for fluent method calls
+     * @see Finder#withoutCollation()
+     */
+    public Aggregation withoutCollation() {
+        this.useCollation = false;
+        return this;
+    }
+
+    private String fieldReference(Mapping field) {
+        return "$" + field;
+    }
+
+    /**
+     * Executes the aggregation for the given type of entities and returns the first result.
+     *
+     * @param type the type of entities to aggregate
+     * @return the first result wrapped as <tt>Optional</tt> or an empty one, if no result was produced
+     */
+    public Optional<Doc> singleIn(Class<?> type) {
+        return singleIn(getRelationName(type));
+    }
+
+    /**
+     * Executes the aggregation for the given collection and returns the first result.
+     *
+     * @param collection the collection to aggregate
+     * @return the first result wrapped as <tt>Optional</tt> or an empty one, if no result was produced
+     */
+    public Optional<Doc> singleIn(String collection) {
+        List<Doc> result = new ArrayList<>(1);
+        eachIn(collection, doc -> {
+            result.add(doc);
+            return false;
+        });
+
+        return result.stream().findFirst();
+    }
+
+    /**
+     * Executes the aggregation for the given type of entities and calls the given processor for each result as long
+     * as it returns <tt>true</tt>.
+     *
+     * @param type      the type of entities to aggregate
+     * @param processor the processor to handle results, which also controls if further results should be processed
+     */
+    public void eachIn(Class<?> type, Predicate<Doc> processor) {
+        eachIn(getRelationName(type), processor);
+    }
+
+    /**
+     * Executes the aggregation for the given collection and calls the given processor for each result as long as it
+     * returns <tt>true</tt>.
+     * <p>
+     * The results are streamed from the database in batches (see {@link #batchSize(int)}).
+     *
+     * @param collection the collection to aggregate
+     * @param processor  the processor to handle results, which also controls if further results should be processed
+     */
+    public void eachIn(@Nonnull String collection, Predicate<Doc> processor) {
+        if (Mongo.LOG.isFINE()) {
+            Mongo.LOG.FINE("AGGREGATE: %s\nPipeline: %s", collection, this);
+        }
+
+        AggregateIterable<Document> cursor = getCollection(collection).aggregate(buildPipeline())
+                                                                      .allowDiskUse(allowDiskUse)
+                                                                      .collation(useCollation ?
+                                                                                 mongo.determineCollation() :
+                                                                                 null);
+        if (batchSize > 0) {
+            cursor.batchSize(batchSize);
+        }
+
+        processCursor(cursor, doc -> processor.test(new Doc(doc)), collection, Mongo.OPERATION_AGGREGATE);
+    }
+
+    /**
+     * Executes the aggregation for the given type of entities and calls the given processor for each result.
+     *
+     * @param type      the type of entities to aggregate
+     * @param processor the processor to handle results
+     */
+    public void allIn(Class<?> type, Consumer<Doc> processor) {
+        allIn(getRelationName(type), processor);
+    }
+
+    /**
+     * Executes the aggregation for the given collection and calls the given processor for each result.
+     *
+     * @param collection the collection to aggregate
+     * @param processor  the processor to handle results
+     */
+    public void allIn(String collection, Consumer<Doc> processor) {
+        eachIn(collection, doc -> {
+            processor.accept(doc);
+            return true;
+        });
+    }
+
+    private MongoCollection<Document> getCollection(String collection) {
+        MongoCollection<Document> result = mongo.db(database).getCollection(collection);
+        if (readPreference != null) {
+            return result.withReadPreference(readPreference);
+        }
+
+        return result;
+    }
+
+    private List<Document> buildPipeline() {
+        List<Document> pipeline = new ArrayList<>(stages.size() + 1);
+        if (!filterObject.isEmpty()) {
+            pipeline.add(new Document(STAGE_MATCH, filterObject));
+        }
+        pipeline.addAll(stages);
+
+        return pipeline;
+    }
+
+    @Override
+    public String toString() {
+        return buildPipeline().toString();
+    }
+}
@@ -8,8 +8,12 @@
 
 package sirius.db.mongo;
 
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
 import com.mongodb.client.model.DeleteOptions;
+import com.mongodb.client.model.WriteModel;
 import com.mongodb.client.result.DeleteResult;
+import org.bson.Document;
 import sirius.kernel.commons.Watch;
 import sirius.kernel.health.Microtiming;
 
@@ -40,16 +44,23 @@ public class Deleter extends QueryBuilder<Deleter> {
      */
     public DeleteResult singleFrom(String collection) {
         Watch w = Watch.start();
+        DeleteResult result = null;
         try {
             if (Mongo.LOG.isFINE()) {
                 Mongo.LOG.FINE("DELETE: %s\nFilter: %s", collection, filterObject);
             }
 
-            return mongo.db(database)
-                        .getCollection(collection)
-                        .deleteOne(filterObject, new DeleteOptions().collation(mongo.determineCollation()));
+            result = mongo.db(database)
+                          .getCollection(collection)
+                          .deleteOne(filterObject, new DeleteOptions().collation(mongo.determineCollation()));
+            return result;
         } finally {
+            mongo.notifyWrite(database, collection);
             mongo.callDuration.addValue(w.elapsedMillis());
+            mongo.recordOperation(Mongo.OPERATION_DELETE,
+                                  collection,
+                                  w,
+                                  result != null && result.wasAcknowledged() ? result.getDeletedCount() : 0);
             if (Microtiming.isEnabled()) {
                 w.submitMicroTiming("mongo", "DELETE - " + collection + ": " + filterObject);
             }
@@ -75,20 +86,42 @@ public class Deleter extends QueryBuilder<Deleter> {
      */
     public DeleteResult manyFrom(String collection) {
         Watch w = Watch.start();
+        DeleteResult result = null;
         try {
             if (Mongo.LOG.isFINE()) {
                 Mongo.LOG.FINE("DELETE: %s\nFilter: %s", collection, filterObject);
             }
 
-            return mongo.db(database)
-                        .getCollection(collection)
-                        .deleteMany(filterObject, new DeleteOptions().collation(mongo.determineCollation()));
+            result = mongo.db(database)
+                          .getCollection(collection)
+                          .deleteMany(filterObject, new DeleteOptions().collation(mongo.determineCollation()));
+            return result;
         } finally {
+            mongo.notifyWrite(database, collection);
             mongo.callDuration.addValue(w.elapsedMillis());
+            mongo.recordOperation(Mongo.OPERATION_DELETE,
+                                  collection,
+                                  w,
+                                  result != null && result.wasAcknowledged() ? result.getDeletedCount() : 0);
             if (Microtiming.isEnabled()) {
                 w.submitMicroTiming("mongo", "DELETE - " + collection + ": " + filterObject);
             }
             traceIfRequired(collection, w);
         }
     }
+
+    /**
+     * Converts the delete statement into a write model which can be executed by a {@link MangoBatchContext}.
+     *
+     * @param many <tt>true</tt> to delete all matching documents, <tt>false</tt> to only delete the first one
+     * @return the delete statement as write model
+     */
+    protected WriteModel<Document> toWriteModel(boolean many) {
+        DeleteOptions deleteOptions = new DeleteOptions().collation(mongo.determineCollation());
+        if (many) {
+            return new DeleteManyModel<>(filterObject, deleteOptions);
+        } else {
+            return new DeleteOneModel<>(filterObject, deleteOptions);
+        }
+    }
 }
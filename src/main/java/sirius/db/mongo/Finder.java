@@ -10,24 +10,29 @@ package sirius.db.mongo;
 
 import com.google.common.collect.ImmutableList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.ReadPreference;
 import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoIterable;
+import com.mongodb.client.model.Collation;
 import com.mongodb.client.model.CountOptions;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import sirius.db.mixing.EntityDescriptor;
 import sirius.db.mixing.Mapping;
 import sirius.db.mongo.facets.MongoFacet;
-import sirius.kernel.async.TaskContext;
-import sirius.kernel.commons.Monoflop;
 import sirius.kernel.commons.Value;
 import sirius.kernel.commons.Watch;
 import sirius.kernel.health.Microtiming;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 
@@ -36,15 +41,18 @@ import java.util.function.Predicate;
  */
 public class Finder extends QueryBuilder<Finder> {
 
-    private static final String KEY_MONGO = "mongo";
     private static final String OPERATOR_MATCH = "$match";
     private static final String OPERATOR_SAMPLE = "$sample";
+    private static final String OPERATOR_PROJECT = "$project";
 
     private Document fields;
     private Document orderBy;
     private int skip;
     private int limit;
     private int batchSize;
+    private ReadPreference readPreference;
+    private boolean useCollation = true;
+    private boolean useFacetCache;
 
     protected Finder(Mongo mongo, String database) {
         super(mongo, database);
@@ -53,13 +61,17 @@ public class Finder extends QueryBuilder<Finder> {
     /**
      * Creates a copy of this finder which contains the same filters as this one.
      * <p>
-     * Note that neither any limit for the selected fields are copied.
+     * Note that neither any limit for the selected fields are copied. However, the
+     * {@link #readPreference(ReadPreference) read preference} and the {@link #withoutCollation() collation setting}
+     * are kept.
      *
      * @return a copy of this filter object which contains the same filters. Note that the filters are still a copy,
      * therefore modifying the filters of one object will not modify those of the other.
      */
     public Finder copyFilters() {
         Finder newFinder = new Finder(mongo, database);
+        newFinder.readPreference = readPreference;
+        newFinder.useCollation = useCollation;
         transferFilters(newFinder);
         return newFinder;
     }
@@ -94,6 +106,24 @@ public class Finder extends QueryBuilder<Finder> {
         return this;
     }
 
+    /**
+     * Excludes the given fields from the returned documents.
+     * <p>
+     * Note that MongoDB doesn't permit to mix included and excluded fields. Therefore this replaces any fields
+     * previously specified via {@link #selectFields(String...)}.
+     *
+     * @param fieldsToExclude the fields to skip
+     * @return the builder itself for fluent method calls
+     */
+    public Finder excludeFields(String... fieldsToExclude) {
+        fields = new Document();
+        for (String field : fieldsToExclude) {
+            fields.put(field, 0);
+        }
+
+        return this;
+    }
+
     /**
      * Adds a sort constraint to order by the given field ascending.
      *
@@ -195,6 +225,99 @@ public class Finder extends QueryBuilder<Finder> {
         return this;
     }
 
+    /**
+     * Specifies which members of a replica set may be used to execute this query.
+     * <p>
+     * By default, the read preference of the database configuration is used (see
+     * <tt>mongo.databases.[name].readPreference</tt>) which is usually the primary.
+     *
+     * @param readPreference the read preference to use
+     * @return the query itself for fluent method calls
+     */
+    public Finder readPreference(ReadPreference readPreference) {
+        this.readPreference = readPreference;
+        return this;
+    }
+
+    /**
+     * Permits to execute the query on a secondary, as long as it doesn't lag behind the primary for more than the
+     * given duration.
+     * <p>
+     * This should be used for heavy analytical reads (exports, facets, aggregations) which can tolerate slightly
+     * outdated data, so that they don't compete with the regular traffic on the primary. If no suitable secondary is
+     * available, the primary is used. Note that MongoDB requires a max staleness of at least 90 seconds.
+     *
+     * @param maxStaleness the maximal replication lag of a secondary to be used
+     * @return the query itself for fluent method calls
+     */
+    public Finder readFromSecondary(Duration maxStaleness) {
+        return readPreference(ReadPreference.secondaryPreferred(maxStaleness.toMillis(), TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Permits to execute the query on a secondary, regardless of its replication lag.
+     * <p>
+     * If no secondary is available, the primary is used.
+     *
+     * @return the query itself for fluent method calls
+     * @see #readFromSecondary(Duration)
+     */
+    public Finder readFromSecondary() {
+        return readPreference(ReadPreference.secondaryPreferred());
+    }
+
+    /**
+     * Executes the query without the collation configured in <tt>mongo.collationLocale</tt>.
+     * <p>
+     * MongoDB can only use an index for string comparisons if the index has the same collation as the query.
+     * Therefore, queries which only filter and sort on non-string fields (numbers, dates, ids) or on fields with
+     * indices without collation should skip the collation so that the matching (simple) indices can be used.
+     *
+     * @return the query itself for fluent method calls
+     */
+    public Finder withoutCollation() {
+        this.useCollation = false;
+        return this;
+    }
+
+    /**
+     * Enables caching of the results of {@link #executeFacets(EntityDescriptor, List)}.
+     * <p>
+     * This is intended for list views which repeatedly render the same facets for the same filters. The results are
+     * cached per collection, filter and facet definitions for a short time (see <tt>cache.mongo-facets</tt>). Note
+     * that cached results are not invalidated by writes, therefore the facets might be slightly outdated.
+     *
+     * @return the query itself for fluent method calls
+     */
+    public Finder withFacetCache() {
+        this.useFacetCache = true;
+        return this;
+    }
+
+    @Nullable
+    private Collation determineCollation() {
+        return useCollation ? mongo.determineCollation() : null;
+    }
+
+    /**
+     * Returns the collection to read from, which respects the read preference of this query.
+     *
+     * @param collection the name of the collection
+     * @return the collection handle to use for reads
+     */
+    private MongoCollection<Document> getCollection(String collection) {
+        return getCollection(collection, Document.class);
+    }
+
+    private <T> MongoCollection<T> getCollection(String collection, Class<T> resultType) {
+        MongoCollection<T> result = mongo.db(database).getCollection(collection, resultType);
+        if (readPreference != null) {
+            return result.withReadPreference(readPreference);
+        }
+
+        return result;
+    }
+
     /**
      * Executes the query for the given collection and returns a single document.
      *
@@ -213,10 +336,11 @@ public class Finder extends QueryBuilder<Finder> {
      */
     public Optional<Doc> singleIn(String collection) {
         Watch watch = Watch.start();
+        Document obj = null;
         try {
             FindIterable<Document> cur = buildCursor(collection);
 
-            Document obj = cur.first();
+            obj = cur.first();
 
             if (obj == null) {
                 return Optional.empty();
@@ -225,6 +349,7 @@ public class Finder extends QueryBuilder<Finder> {
             }
         } finally {
             mongo.callDuration.addValue(watch.elapsedMillis());
+            mongo.recordOperation(Mongo.OPERATION_FIND, collection, watch, obj == null ? 0 : 1);
             if (Microtiming.isEnabled()) {
                 watch.submitMicroTiming(KEY_MONGO, "FIND ONE - " + collection + ": " + filterObject);
             }
@@ -233,8 +358,12 @@ public class Finder extends QueryBuilder<Finder> {
     }
 
     private FindIterable<Document> buildCursor(String collection) {
-        FindIterable<Document> cursor =
-                mongo.db(database).getCollection(collection).find(filterObject).collation(mongo.determineCollation());
+        return buildCursor(collection, Document.class);
+    }
+
+    private <T> FindIterable<T> buildCursor(String collection, Class<T> resultType) {
+        FindIterable<T> cursor =
+                getCollection(collection, resultType).find(filterObject).collation(determineCollation());
         if (fields != null) {
             cursor.projection(fields);
         }
@@ -274,28 +403,39 @@ public class Finder extends QueryBuilder<Finder> {
         }
         applyBatchSize(cursor);
 
-        processCursor(cursor, processor, collection);
+        processCursor(cursor, doc -> processor.test(new Doc(doc)), collection, Mongo.OPERATION_FIND);
     }
 
-    private void applyBatchSize(MongoIterable<Document> cursor) {
-        if (batchSize > 0) {
-            cursor.batchSize(batchSize);
+    /**
+     * Executes the query for the given type of entities and calls the given processor for each entity as long as it
+     * returns <tt>true</tt>.
+     * <p>
+     * In contrast to {@link #eachIn(Class, Predicate)}, the entities are decoded directly from the BSON stream by a
+     * {@link MongoEntityDecoder} without creating an intermediate {@link Document}.
+     *
+     * @param descriptor the descriptor of the entities to search
+     * @param processor  the processor to handle matches, which also controls if further results should be processed
+     * @param <E>        the type of entities being queried
+     */
+    public <E extends MongoEntity> void eachEntityIn(EntityDescriptor descriptor, Predicate<E> processor) {
+        String collection = descriptor.getRelationName();
+        if (Mongo.LOG.isFINE()) {
+            Mongo.LOG.FINE("FIND: %s\nFilter: %s", collection, filterObject);
         }
-    }
 
-    private void processCursor(MongoIterable<Document> cursor, Predicate<Doc> processor, String collection) {
-        Watch watch = Watch.start();
-        TaskContext ctx = TaskContext.get();
-        Monoflop mf = Monoflop.create();
-        for (Document doc : cursor) {
-            if (mf.firstCall()) {
-                handleTracingAndReporting(collection, watch);
-            }
+        MongoEntityDecoder<E> decoder = mongo.getEntityDecoder(descriptor);
+        FindIterable<RawBsonDocument> cursor = buildCursor(collection, RawBsonDocument.class);
+        if (limit > 0) {
+            cursor.limit(limit);
+        }
+        applyBatchSize(cursor);
 
-            boolean keepGoing = processor.test(new Doc(doc));
-            if (!keepGoing || !ctx.isActive()) {
-                return;
-            }
+        processCursor(cursor, doc -> processor.test(decoder.decode(doc)), collection, Mongo.OPERATION_FIND);
+    }
+
+    private void applyBatchSize(MongoIterable<?> cursor) {
+        if (batchSize > 0) {
+            cursor.batchSize(batchSize);
         }
     }
 
@@ -313,24 +453,16 @@ public class Finder extends QueryBuilder<Finder> {
             Mongo.LOG.FINE("SAMPLE: %s\nFilter: %s", collection, filterObject);
         }
 
-        MongoIterable<Document> cursor = mongo.db(database)
-                                              .getCollection(collection)
-                                              .aggregate(ImmutableList.of(new BasicDBObject(OPERATOR_MATCH,
-                                                                                            filterObject),
-                                                                          new BasicDBObject(OPERATOR_SAMPLE,
-                                                                                            new BasicDBObject("size",
-                                                                                                              limit))));
+        List<BasicDBObject> pipeline = new ArrayList<>();
+        pipeline.add(new BasicDBObject(OPERATOR_MATCH, filterObject));
+        pipeline.add(new BasicDBObject(OPERATOR_SAMPLE, new BasicDBObject("size", limit)));
+        if (fields != null) {
+            pipeline.add(new BasicDBObject(OPERATOR_PROJECT, fields));
+        }
+        MongoIterable<Document> cursor = getCollection(collection).aggregate(pipeline);
 
         applyBatchSize(cursor);
-        processCursor(cursor, processor, collection);
-    }
-
-    private void handleTracingAndReporting(String collection, Watch w) {
-        mongo.callDuration.addValue(w.elapsedMillis());
-        if (Microtiming.isEnabled()) {
-            w.submitMicroTiming(KEY_MONGO, "FIND ALL - " + collection + ": " + filterObject);
-        }
-        traceIfRequired(collection, w);
+        processCursor(cursor, doc -> processor.test(new Doc(doc)), collection, Mongo.OPERATION_AGGREGATE);
     }
 
     /**
@@ -377,18 +509,66 @@ public class Finder extends QueryBuilder<Finder> {
      * @return the number of documents found
      */
     public long countIn(String collection) {
+        return countIn(collection, 0);
+    }
+
+    /**
+     * Counts the number of documents in the result of the given query, but stops once the given number is reached.
+     * <p>
+     * Note that limits are ignored for this query.
+     *
+     * @param collection the collection to search in
+     * @param maxCount   the maximal number of documents to count. Use 0 to count all documents.
+     * @return the number of documents found, which is at most <tt>maxCount</tt> if a bound was given
+     */
+    public long countIn(String collection, int maxCount) {
         Watch w = Watch.start();
         try {
-            return mongo.db()
-                        .getCollection(collection)
-                        .countDocuments(filterObject, new CountOptions().collation(mongo.determineCollation()));
-        } finally {
-            mongo.callDuration.addValue(w.elapsedMillis());
-            if (Microtiming.isEnabled()) {
-                w.submitMicroTiming(KEY_MONGO, "COUNT - " + collection + ": " + filterObject);
+            CountOptions options = new CountOptions().collation(determineCollation());
+            if (maxCount > 0) {
+                options.limit(maxCount);
             }
-            traceIfRequired(collection, w);
+            return getCollection(collection).countDocuments(filterObject, options);
+        } finally {
+            reportCount(collection, w, "COUNT - ");
+        }
+    }
+
+    /**
+     * Returns the number of documents in the given collection as stored in its metadata.
+     * <p>
+     * This is way faster than {@link #countIn(String)} for large collections, as no documents or index entries are
+     * counted. However, all filters are ignored and the count might be inaccurate (e.g. after an unclean shutdown or
+     * in the presence of orphaned documents in a sharded cluster).
+     *
+     * @param collection the collection to count
+     * @return the estimated number of documents in the collection
+     */
+    public long estimatedCountIn(String collection) {
+        Watch w = Watch.start();
+        try {
+            return getCollection(collection).estimatedDocumentCount();
+        } finally {
+            reportCount(collection, w, "ESTIMATED COUNT - ");
+        }
+    }
+
+    private void reportCount(String collection, Watch w, String prefix) {
+        mongo.callDuration.addValue(w.elapsedMillis());
+        mongo.recordOperation(Mongo.OPERATION_COUNT, collection, w, 0);
+        if (Microtiming.isEnabled()) {
+            w.submitMicroTiming(KEY_MONGO, prefix + collection + ": " + filterObject);
         }
+        traceIfRequired(collection, w);
+    }
+
+    /**
+     * Determines if any filters have been specified.
+     *
+     * @return <tt>true</tt> if at least one filter is present, <tt>false</tt> otherwise
+     */
+    public boolean hasFilters() {
+        return !filterObject.isEmpty();
     }
 
     /**
@@ -422,14 +602,12 @@ public class Finder extends QueryBuilder<Finder> {
         try {
             BasicDBObject groupStage = new BasicDBObject().append(Mango.ID_FIELD, null)
                                                           .append("result", new BasicDBObject(operator, "$" + field));
-            MongoCursor<Document> queryResult = mongo.db()
-                                                     .getCollection(collection)
-                                                     .aggregate(ImmutableList.of(new BasicDBObject(OPERATOR_MATCH,
-                                                                                                   filterObject),
-                                                                                 new BasicDBObject("$group",
-                                                                                                   groupStage)))
-                                                     .collation(mongo.determineCollation())
-                                                     .iterator();
+            MongoCursor<Document> queryResult =
+                    getCollection(collection).aggregate(ImmutableList.of(new BasicDBObject(OPERATOR_MATCH,
+                                                                                           filterObject),
+                                                                         new BasicDBObject("$group", groupStage)))
+                                             .collation(determineCollation())
+                                             .iterator();
             if (queryResult.hasNext()) {
                 return Value.of(queryResult.next().get("result"));
             } else {
@@ -437,6 +615,7 @@ public class Finder extends QueryBuilder<Finder> {
             }
         } finally {
             mongo.callDuration.addValue(w.elapsedMillis());
+            mongo.recordOperation(Mongo.OPERATION_AGGREGATE, collection, w, 0);
             if (Microtiming.isEnabled()) {
                 w.submitMicroTiming(KEY_MONGO,
                                     "AGGREGATE - " + collection + "." + field + " (" + operator + "): " + filterObject);
@@ -456,35 +635,81 @@ public class Finder extends QueryBuilder<Finder> {
             return;
         }
 
-        Watch w = Watch.start();
         String collection = descriptor.getRelationName();
         BasicDBObject facetStage = new BasicDBObject();
         for (MongoFacet facet : facets) {
             facet.emitFacets(descriptor, facetStage::append);
         }
 
+        String cacheKey = null;
+        if (useFacetCache) {
+            cacheKey = computeFacetCacheKey(collection, facetStage);
+            Document cachedResult = mongo.facetCache.get(cacheKey);
+            if (cachedResult != null) {
+                digestFacets(facets, cachedResult);
+                return;
+            }
+        }
+
+        Document result = aggregateFacets(collection, facetStage);
+        if (result != null) {
+            if (cacheKey != null) {
+                mongo.facetCache.put(cacheKey, result);
+            }
+            digestFacets(facets, result);
+        }
+    }
+
+    private String computeFacetCacheKey(String collection, BasicDBObject facetStage) {
+        return database
+               + "."
+               + collection
+               + (useCollation ? "" : " (without collation)")
+               + ": "
+               + filterObject
+               + " FACETS "
+               + facetStage;
+    }
+
+    @Nullable
+    private Document aggregateFacets(String collection, BasicDBObject facetStage) {
+        Watch w = Watch.start();
         try {
-            MongoCursor<Document> queryResult = mongo.db()
-                                                     .getCollection(collection)
-                                                     .aggregate(ImmutableList.of(new BasicDBObject(OPERATOR_MATCH,
-                                                                                                   filterObject),
-                                                                                 new BasicDBObject("$facet",
-                                                                                                   facetStage)))
-                                                     .collation(mongo.determineCollation())
-                                                     .iterator();
+            MongoCursor<Document> queryResult =
+                    getCollection(collection).aggregate(ImmutableList.of(new BasicDBObject(OPERATOR_MATCH,
+                                                                                           filterObject),
+                                                                         new BasicDBObject("$facet", facetStage)))
+                                             .collation(determineCollation())
+                                             .iterator();
 
             if (queryResult.hasNext()) {
-                Doc doc = new Doc(queryResult.next());
-                for (MongoFacet facet : facets) {
-                    facet.digest(doc);
-                }
+                return queryResult.next();
             }
+
+            return null;
         } finally {
             mongo.callDuration.addValue(w.elapsedMillis());
+            mongo.recordOperation(Mongo.OPERATION_AGGREGATE, collection, w, 0);
             if (Microtiming.isEnabled()) {
                 w.submitMicroTiming(KEY_MONGO, "FACETS - " + collection + "): " + filterObject);
             }
             traceIfRequired("facets-" + collection, w);
         }
     }
+
+    private void digestFacets(List<MongoFacet> facets, Document result) {
+        Doc doc = new Doc(result);
+        for (MongoFacet facet : facets) {
+            facet.digest(doc);
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (orderBy == null) {
+            return filterObject.toString();
+        }
+
+        return filterObject + " ORDER BY " + orderBy.toJson();
+    }
 }
@@ -9,6 +9,7 @@
 package sirius.db.mongo;
 
 import com.mongodb.BasicDBList;
+import com.mongodb.client.model.InsertOneModel;
 import org.bson.Document;
 import sirius.db.mixing.Mapping;
 import sirius.kernel.commons.Watch;
@@ -19,7 +20,7 @@ import sirius.kernel.health.Microtiming;
  */
 public class Inserter {
 
-    private final String database;
+    protected final String database;
     private final Mongo mongo;
     private Document obj = new Document();
 
@@ -102,10 +103,30 @@ public class Inserter {
         Watch w = Watch.start();
 
         mongo.db(database).getCollection(collection).insertOne(obj);
+        mongo.notifyWrite(database, collection);
         mongo.callDuration.addValue(w.elapsedMillis());
+        mongo.recordOperation(Mongo.OPERATION_INSERT, collection, w, 1);
         if (Microtiming.isEnabled()) {
             w.submitMicroTiming("mongo", "INSERT - " + collection + ": " + obj);
         }
         return new Doc(obj);
     }
+
+    /**
+     * Converts the insert statement into a write model which can be executed by a {@link MangoBatchContext}.
+     *
+     * @return the insert statement as write model
+     */
+    protected InsertOneModel<Document> toWriteModel() {
+        return new InsertOneModel<>(obj);
+    }
+
+    /**
+     * Returns the document which will be inserted.
+     *
+     * @return the document being built
+     */
+    protected Document getDocument() {
+        return obj;
+    }
 }
@@ -9,37 +9,57 @@
 package sirius.db.mongo;
 
 import com.mongodb.ErrorCategory;
+import com.mongodb.MongoCommandException;
 import com.mongodb.MongoWriteException;
-import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.IndexOptions;
 import org.bson.Document;
 import sirius.db.mixing.BaseMapper;
+import sirius.db.mixing.CountCache;
 import sirius.db.mixing.EntityDescriptor;
 import sirius.db.mixing.IntegrityConstraintFailedException;
 import sirius.db.mixing.Mapping;
 import sirius.db.mixing.OptimisticLockException;
 import sirius.db.mixing.Property;
+import sirius.db.mixing.UpsertResult;
 import sirius.db.mixing.annotations.Index;
+import sirius.db.mixing.properties.NestedListProperty;
+import sirius.db.mixing.properties.StringListProperty;
 import sirius.db.mixing.query.constraints.FilterFactory;
 import sirius.db.mongo.constraints.MongoConstraint;
 import sirius.kernel.Startable;
+import sirius.kernel.async.Future;
+import sirius.kernel.async.Tasks;
 import sirius.kernel.commons.Strings;
 import sirius.kernel.commons.Value;
+import sirius.kernel.commons.Watch;
 import sirius.kernel.di.std.Part;
 import sirius.kernel.di.std.Register;
 import sirius.kernel.health.Exceptions;
+import sirius.kernel.health.HandledException;
 
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.IntSummaryStatistics;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * Provides the {@link BaseMapper mapper} used to communicate with <tt>MongoDB</tt>.
  */
-@Register(classes = {Mango.class, Startable.class})
-public class Mango extends BaseMapper<MongoEntity, MongoConstraint, MongoQuery<?>> implements Startable {
+@Register(classes = {Mango.class, Startable.class, MongoWriteListener.class})
+public class Mango extends BaseMapper<MongoEntity, MongoConstraint, MongoQuery<?>>
+        implements Startable, MongoWriteListener {
 
     /**
      * Defines the name of the internal ID field in MongoDB
@@ -64,13 +84,49 @@ public class Mango extends BaseMapper<MongoEntity, MongoConstraint, MongoQuery<?
     @Part
     private Mongo mongo;
 
+    @Part
+    private CountCache countCache;
+
+    private Map<String, List<EntityDescriptor>> descriptorsByCollection = new ConcurrentHashMap<>();
+
+    @Part
+    private Tasks tasks;
+
+    private Future readyFuture = new Future();
+
     @Override
     protected void createEntity(MongoEntity entity, EntityDescriptor ed) throws Exception {
-        Inserter insert = mongo.insert();
         String generatedId = entity.generateId();
+        Inserter insert = createInserter(entity, ed, generatedId);
+
+        try {
+            insert.into(ed.getRelationName());
+            entity.setId(generatedId);
+            if (ed.isVersioned()) {
+                entity.setVersion(1);
+            }
+        } catch (MongoWriteException e) {
+            if (e.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+                throw new IntegrityConstraintFailedException(e);
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Creates an insert statement which contains all properties of the given entity.
+     *
+     * @param entity      the entity to insert
+     * @param ed          the descriptor of the entity
+     * @param generatedId the id to use for the new document
+     * @return the insert statement which can either be executed directly or be put into a {@link MangoBatchContext}
+     */
+    protected Inserter createInserter(MongoEntity entity, EntityDescriptor ed, String generatedId) {
+        Inserter insert = mongo.insert(ed.getRealm());
         insert.set(MongoEntity.ID, generatedId);
         if (ed.isVersioned()) {
-            insert.set(VERSION, 1);
+            insert.set(VERSION, entity.isNew() ? 1 : entity.getVersion() + 1);
         }
 
         for (Property p : ed.getProperties()) {
@@ -79,11 +135,22 @@ public class Mango extends BaseMapper<MongoEntity, MongoConstraint, MongoQuery<?
             }
         }
 
+        return insert;
+    }
+
+    @Override
+    protected void updateEntity(MongoEntity entity, boolean force, EntityDescriptor ed) throws Exception {
+        Updater updater = createUpdater(entity, force, ed);
+        if (updater == null) {
+            return;
+        }
+
         try {
-            insert.into(ed.getRelationName());
-            entity.setId(generatedId);
+            long updatedRows = updater.executeFor(ed.getRelationName()).getModifiedCount();
+            enforceUpdate(entity, force, updatedRows);
+
             if (ed.isVersioned()) {
-                entity.setVersion(1);
+                entity.setVersion(entity.getVersion() + 1);
             }
         } catch (MongoWriteException e) {
             if (e.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
@@ -94,8 +161,16 @@ public class Mango extends BaseMapper<MongoEntity, MongoConstraint, MongoQuery<?
         }
     }
 
-    @Override
-    protected void updateEntity(MongoEntity entity, boolean force, EntityDescriptor ed) throws Exception {
+    /**
+     * Creates an update statement which writes all changed properties of the given entity.
+     *
+     * @param entity the entity to update
+     * @param force  <tt>true</tt> to skip the optimistic locking check, <tt>false</tt> otherwise
+     * @param ed     the descriptor of the entity
+     * @return the update statement or <tt>null</tt> if no property has changed
+     */
+    @Nullable
+    protected Updater createUpdater(MongoEntity entity, boolean force, EntityDescriptor ed) {
         Updater updater = mongo.update(ed.getRealm());
         boolean changed = false;
         for (Property p : ed.getProperties()) {
@@ -104,13 +179,15 @@ public class Mango extends BaseMapper<MongoEntity, MongoConstraint, MongoQuery<?
                     throw new IllegalStateException("The id column of an entity must not be modified manually!");
                 }
 
-                updater.set(p.getPropertyName(), p.getValueForDatasource(Mango.class, entity));
+                if (!updateListIncrementally(updater, entity, p)) {
+                    updater.set(p.getPropertyName(), p.getValueForDatasource(Mango.class, entity));
+                }
                 changed = true;
             }
         }
 
         if (!changed) {
-            return;
+            return null;
         }
 
         updater.where(MongoEntity.ID, entity.getId());
@@ -121,15 +198,109 @@ public class Mango extends BaseMapper<MongoEntity, MongoConstraint, MongoQuery<?
             }
         }
 
+        return updater;
+    }
+
+    /**
+     * Tries to write the changes of a list property as <tt>$push</tt> or <tt>$pullAll</tt> instead of replacing
+     * the whole list.
+     * <p>
+     * The current list is compared to the list which was loaded from the database. If elements have only been appended,
+     * these are pushed. If (string) elements have been removed completely while the order of the remaining ones is
+     * untouched, these are pulled. All other modifications (reordering, mixed inserts and removals, removing only some
+     * occurrences of a value) are left to a plain <tt>$set</tt>.
+     * <p>
+     * Note that for non-versioned entities, concurrent modifications of the same list are now merged rather than
+     * overwritten, as the operators are applied to the list as present in the database.
+     *
+     * @param updater  the update statement to extend
+     * @param entity   the entity being updated
+     * @param property the changed property
+     * @return <tt>true</tt> if the change has been applied incrementally, <tt>false</tt> if it has to be written as a
+     * whole
+     */
+    @SuppressWarnings("unchecked")
+    private boolean updateListIncrementally(Updater updater, MongoEntity entity, Property property) {
+        if (!(property instanceof StringListProperty) && !(property instanceof NestedListProperty)) {
+            return false;
+        }
+
+        Object persistedValue = entity.getPersistedValue(property);
+        Object currentValue = property.getValue(entity);
+        if (!(persistedValue instanceof List) || !(currentValue instanceof List)) {
+            return false;
+        }
+
+        List<Object> persisted = (List<Object>) persistedValue;
+        List<Object> current = (List<Object>) currentValue;
+        if (persisted.isEmpty()) {
+            // The field might be missing or null in the database - a $set is as cheap and always works...
+            return false;
+        }
+
+        if (current.size() > persisted.size() && current.subList(0, persisted.size()).equals(persisted)) {
+            List<Object> values = (List<Object>) property.getValueForDatasource(Mango.class, entity);
+            updater.pushEach(property.getPropertyName(), values.subList(persisted.size(), values.size()));
+            return true;
+        }
+
+        if (current.size() < persisted.size() && property instanceof StringListProperty) {
+            Set<Object> removed = new LinkedHashSet<>(persisted);
+            removed.removeAll(current);
+            List<Object> remaining = new ArrayList<>(persisted);
+            remaining.removeAll(removed);
+            if (remaining.equals(current)) {
+                updater.pullAll(property.getPropertyName(), removed.toArray());
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    protected UpsertResult upsertEntity(MongoEntity entity, EntityDescriptor ed, Mapping[] keyFields)
+            throws Exception {
+        String candidateId = entity.isNew() ? entity.generateId() : entity.getId();
+        Updater updater = mongo.update(ed.getRealm()).upsert();
+        if (keyFields.length == 0) {
+            updater.where(MongoEntity.ID, candidateId);
+        }
+        for (Mapping keyField : keyFields) {
+            updater.where(keyField, ed.getProperty(keyField).getValueForDatasource(Mango.class, entity));
+        }
+
+        updater.setOnInsert(MongoEntity.ID, candidateId);
+        for (Property p : ed.getProperties()) {
+            if (!MongoEntity.ID.getName().equals(p.getName())) {
+                updater.set(p.getPropertyName(), p.getValueForDatasource(Mango.class, entity));
+            }
+        }
+        if (ed.isVersioned()) {
+            // $inc also initializes the version with 1 for newly created documents...
+            updater.inc(VERSION, 1);
+        }
+
         try {
-            long updatedRows = updater.executeFor(ed.getRelationName()).getModifiedCount();
-            enforceUpdate(entity, force, updatedRows);
+            Optional<Doc> previous =
+                    updater.fetchAndExecuteFor(ed.getRelationName(), MongoEntity.ID, Mapping.named(VERSION));
+            if (previous.isPresent()) {
+                entity.setId(previous.get().getString(MongoEntity.ID.getName()));
+                if (ed.isVersioned()) {
+                    entity.setVersion(previous.get().get(VERSION).asInt(0) + 1);
+                }
+
+                return UpsertResult.UPDATED;
+            }
 
+            entity.setId(candidateId);
             if (ed.isVersioned()) {
-                entity.setVersion(entity.getVersion() + 1);
+                entity.setVersion(1);
             }
-        } catch (MongoWriteException e) {
-            if (e.getError().getCategory() == ErrorCategory.DUPLICATE_KEY) {
+
+            return UpsertResult.INSERTED;
+        } catch (MongoCommandException e) {
+            if (ErrorCategory.fromErrorCode(e.getErrorCode()) == ErrorCategory.DUPLICATE_KEY) {
                 throw new IntegrityConstraintFailedException(e);
             } else {
                 throw e;
@@ -137,6 +308,31 @@ public class Mango extends BaseMapper<MongoEntity, MongoConstraint, MongoQuery<?
         }
     }
 
+    /**
+     * Invalidates all cached counts of the entities stored in the given collection.
+     * <p>
+     * This is notified about all writes via {@link Inserter}, {@link Updater} or {@link Deleter} (which includes
+     * the writes of this mapper), as these only know the name of the collection being modified.
+     *
+     * @param database   the name of the database (in the configuration) which has been modified
+     * @param collection the name of the collection which has been modified
+     */
+    @Override
+    public void onWrite(String database, String collection) {
+        descriptorsByCollection.computeIfAbsent(database + "." + collection,
+                                                ignored -> determineDescriptors(database, collection))
+                               .forEach(countCache::invalidate);
+    }
+
+    private List<EntityDescriptor> determineDescriptors(String database, String collection) {
+        return mixing.getDescriptors()
+                     .stream()
+                     .filter(ed -> MongoEntity.class.isAssignableFrom(ed.getType()))
+                     .filter(ed -> Strings.areEqual(database, ed.getRealm()))
+                     .filter(ed -> Strings.areEqual(collection, ed.getRelationName()))
+                     .collect(Collectors.toList());
+    }
+
     private <E extends MongoEntity> void enforceUpdate(E entity, boolean force, long updatedRows)
             throws OptimisticLockException {
         if (force || updatedRows > 0) {
@@ -189,14 +385,26 @@ public class Mango extends BaseMapper<MongoEntity, MongoConstraint, MongoQuery<?
      * @param <E> the effective type of the generated entity
      * @return the generated entity
      */
-    @SuppressWarnings("unchecked")
     public static <E extends MongoEntity> E make(EntityDescriptor ed, Doc doc) {
+        return make(ed, doc.getUnderlyingObject());
+    }
+
+    /**
+     * Creates a new entity for the given descriptor based on the given field values.
+     *
+     * @param ed     the descriptor of the entity to create
+     * @param values the values of the document per field name
+     * @param <E>    the effective type of the generated entity
+     * @return the generated entity
+     */
+    @SuppressWarnings("unchecked")
+    protected static <E extends MongoEntity> E make(EntityDescriptor ed, Map<String, Object> values) {
         try {
             E result = (E) ed.make(Mango.class,
                                    null,
-                                   key -> doc.getUnderlyingObject().containsKey(key) ? doc.get(key) : null);
+                                   key -> values.containsKey(key) ? Value.of(values.get(key)) : null);
             if (ed.isVersioned()) {
-                result.setVersion(doc.get(VERSION).asInt(0));
+                result.setVersion(Value.of(values.get(VERSION)).asInt(0));
             }
             return result;
         } catch (Exception e) {
@@ -215,6 +423,28 @@ public class Mango extends BaseMapper<MongoEntity, MongoConstraint, MongoQuery<?
         return new MongoQuery<>(mixing.getDescriptor(type));
     }
 
+    /**
+     * Creates an aggregation pipeline which operates on the database of the given type of entities.
+     * <p>
+     * Note that the collection still has to be passed in when executing the pipeline, e.g. via
+     * {@link Aggregation#eachIn(Class, java.util.function.Predicate)}.
+     *
+     * @param type the type of entities to aggregate
+     * @return a builder to create and execute an aggregation pipeline
+     */
+    public Aggregation aggregate(Class<? extends MongoEntity> type) {
+        return mongo.aggregate(mixing.getDescriptor(type).getRealm());
+    }
+
+    /**
+     * Creates a {@link MangoBatchContext batch context} used for bulk writes.
+     *
+     * @return a new batch context
+     */
+    public MangoBatchContext batch() {
+        return new MangoBatchContext(this, mongo);
+    }
+
     @Override
     public FilterFactory<MongoConstraint> filters() {
         return QueryBuilder.FILTERS;
@@ -235,19 +465,116 @@ public class Mango extends BaseMapper<MongoEntity, MongoConstraint, MongoQuery<?
         return 75;
     }
 
+    /**
+     * Provides a future which is fulfilled once all indices of all entities (and all indices of the configured
+     * databases as provided by {@link Mongo#getReadyFuture()}) have been created.
+     * <p>
+     * As indices are created in the background, reads and writes can be performed right away. However, health checks
+     * or tests which rely on indices (e.g. unique constraints) should wait for this future. If the indices of a
+     * collection cannot be created, the future fails.
+     *
+     * @return a future which indicates when all indices are present
+     */
+    public Future getReadyFuture() {
+        return readyFuture;
+    }
+
     @Override
     public void started() {
+        try {
+            startIndexCreation();
+        } catch (Exception e) {
+            failReadyFuture(Exceptions.handle()
+                                      .to(Mongo.LOG)
+                                      .error(e)
+                                      .withSystemErrorMessage("Failed to start the creation of indices: %s (%s)")
+                                      .handle());
+        }
+    }
+
+    private void startIndexCreation() {
         if (!mixing.shouldExecuteSafeSchemaChanges()) {
             Mongo.LOG.INFO("Skipping index checks on this node...");
+            completeIndexCreation();
             return;
         }
 
-        IntSummaryStatistics createdIndices = mixing.getDescriptors()
-                                                    .stream()
-                                                    .filter(ed -> MongoEntity.class.isAssignableFrom(ed.getType()))
-                                                    .mapToInt(this::createIndices)
-                                                    .summaryStatistics();
-        Mongo.LOG.INFO("Initialized %s indices for %s collections", createdIndices.getSum(), createdIndices.getCount());
+        List<EntityDescriptor> descriptors = mixing.getDescriptors()
+                                                   .stream()
+                                                   .filter(ed -> MongoEntity.class.isAssignableFrom(ed.getType()))
+                                                   .collect(Collectors.toList());
+        createIndicesInBackground(descriptors).onSuccess(ignored -> completeIndexCreation())
+                                              .onFailure(this::failReadyFuture);
+    }
+
+    /**
+     * Creates the indices of the given entities in the background.
+     * <p>
+     * Each collection is handled by its own task, so that indices are created in parallel and without delaying
+     * the startup of the system.
+     *
+     * @param descriptors the descriptors of the entities to create the indices for
+     * @return a future which is fulfilled once all indices have been created or which fails if the indices of a
+     * collection cannot be created
+     */
+    protected Future createIndicesInBackground(List<EntityDescriptor> descriptors) {
+        Future result = new Future();
+        if (descriptors.isEmpty()) {
+            result.success();
+            return result;
+        }
+
+        Watch watch = Watch.start();
+        AtomicInteger pendingCollections = new AtomicInteger(descriptors.size());
+        AtomicInteger createdIndices = new AtomicInteger();
+        AtomicReference<HandledException> error = new AtomicReference<>();
+        for (EntityDescriptor ed : descriptors) {
+            tasks.executor(Mongo.EXECUTOR_INDEX_CREATION).start(() -> {
+                try {
+                    createdIndices.addAndGet(createIndices(ed));
+                } catch (Exception e) {
+                    error.compareAndSet(null,
+                                        Exceptions.handle()
+                                                  .to(Mongo.LOG)
+                                                  .error(e)
+                                                  .withSystemErrorMessage("Failed to create the indices of %s: %s (%s)",
+                                                                          ed.getRelationName())
+                                                  .handle());
+                } finally {
+                    if (pendingCollections.decrementAndGet() == 0) {
+                        Mongo.LOG.INFO("Initialized %s indices for %s collections (%s)",
+                                       createdIndices.get(),
+                                       descriptors.size(),
+                                       watch.duration());
+                        if (error.get() != null) {
+                            result.fail(error.get());
+                        } else {
+                            result.success();
+                        }
+                    }
+                }
+            });
+        }
+
+        return result;
+    }
+
+    private void completeIndexCreation() {
+        mongo.getReadyFuture().onSuccess(ignored -> {
+            synchronized (readyFuture) {
+                if (!readyFuture.isCompleted()) {
+                    readyFuture.success();
+                }
+            }
+        }).onFailure(this::failReadyFuture);
+    }
+
+    private void failReadyFuture(Throwable error) {
+        synchronized (readyFuture) {
+            if (!readyFuture.isCompleted()) {
+                readyFuture.fail(error);
+            }
+        }
     }
 
     private int createIndices(EntityDescriptor entityDescriptor) {
@@ -259,12 +586,21 @@ public class Mango extends BaseMapper<MongoEntity, MongoConstraint, MongoQuery<?
             return 0;
         }
 
+        MongoCollection<Document> collection = mongo.db(database).getCollection(entityDescriptor.getRelationName());
+        Map<String, Document> existingIndices = new HashMap<>();
+        for (Document existingIndex : collection.listIndexes()) {
+            existingIndices.put(existingIndex.getString("name"), existingIndex);
+        }
+
         Set<String> seenIndices = new HashSet<>();
         entityDescriptor.getAnnotations(Index.class)
                         .filter(index -> deduplicateByName(index, seenIndices))
                         .filter(this::skipParentIndexSuppressions)
                         .filter(index -> checkColumnSettings(index, entityDescriptor))
-                        .forEach(index -> createIndex(entityDescriptor, mongo.db(database), index));
+                        .forEach(index -> createIndex(entityDescriptor,
+                                                      collection,
+                                                      index,
+                                                      existingIndices.get(index.name())));
 
         return seenIndices.size();
     }
@@ -318,33 +654,66 @@ public class Mango extends BaseMapper<MongoEntity, MongoConstraint, MongoQuery<?
         return false;
     }
 
-    private void createIndex(EntityDescriptor ed, MongoDatabase client, Index index) {
-        try {
-            boolean textColumnSeen = false;
-            Document document = new Document();
-            for (int i = 0; i < index.columns().length; i++) {
-                Value setting = Value.of(index.columnSettings()[i]);
-                document.append(index.columns()[i], setting.isNumeric() ? setting.asInt(1) : setting.asString());
-                textColumnSeen |= Mango.INDEX_AS_FULLTEXT.equals(setting.getString());
-            }
+    private void createIndex(EntityDescriptor ed,
+                             MongoCollection<Document> collection,
+                             Index index,
+                             @Nullable Document existingIndex) {
+        boolean textColumnSeen = false;
+        Document document = new Document();
+        for (int i = 0; i < index.columns().length; i++) {
+            Value setting = Value.of(index.columnSettings()[i]);
+            document.append(index.columns()[i], setting.isNumeric() ? setting.asInt(1) : setting.asString());
+            textColumnSeen |= Mango.INDEX_AS_FULLTEXT.equals(setting.getString());
+        }
+
+        IndexOptions indexOptions = new IndexOptions().name(index.name()).unique(index.unique());
+        if (!textColumnSeen) {
+            indexOptions.collation(mongo.determineCollation());
+        }
 
-            IndexOptions indexOptions = new IndexOptions().name(index.name()).unique(index.unique());
-            if (!textColumnSeen) {
-                indexOptions.collation(mongo.determineCollation());
+        if (existingIndex != null && Objects.equals(existingIndex.get("key"), document)) {
+            if (textColumnSeen || !mongo.hasMismatchingCollation(existingIndex)) {
+                Mongo.LOG.FINE("MongoDB index %s for: %s is already present...",
+                               index.name(),
+                               ed.getRelationName());
+                return;
             }
+            if (!dropIndexWithMismatchingCollation(collection, ed, index.name())) {
+                return;
+            }
+        }
 
-            Mongo.LOG.FINE("Creating MongoDB index %s for: %s...", index.name(), ed.getRelationName());
-            client.getCollection(ed.getRelationName()).createIndex(document, indexOptions);
-        } catch (Exception e) {
-            Exceptions.handle()
-                      .error(e)
-                      .to(Mongo.LOG)
-                      .withSystemErrorMessage("Failed to create index %s of %s (%s) - %s (%s)",
-                                              index.name(),
-                                              ed.getType().getName(),
-                                              ed.getRelationName())
-                      .handle();
+        Mongo.LOG.FINE("Creating MongoDB index %s for: %s...", index.name(), ed.getRelationName());
+        collection.createIndex(document, indexOptions);
+    }
+
+    /**
+     * Drops the given index which exists with a collation which differs from the configured one.
+     * <p>
+     * This is only done if <tt>mongo.rebuildIndicesOnCollationMismatch</tt> is enabled, as re-creating an index on
+     * a large collection can take quite a while (and unique constraints aren't enforced in the meantime).
+     *
+     * @param collection the collection which contains the index
+     * @param ed         the descriptor of the entities stored in the collection
+     * @param indexName  the name of the index to drop
+     * @return <tt>true</tt> if the index has been dropped and can be re-created, <tt>false</tt> if it has to be kept
+     */
+    private boolean dropIndexWithMismatchingCollation(MongoCollection<Document> collection,
+                                                      EntityDescriptor ed,
+                                                      String indexName) {
+        if (!mongo.shouldRebuildIndicesOnCollationMismatch()) {
+            Mongo.LOG.WARN("The index %s of %s has an outdated collation. Enable "
+                           + "'mongo.rebuildIndicesOnCollationMismatch' to re-create it.",
+                           indexName,
+                           ed.getRelationName());
+            return false;
         }
+
+        Mongo.LOG.INFO("Re-creating the index %s of %s as its collation is outdated...",
+                       indexName,
+                       ed.getRelationName());
+        collection.dropIndex(indexName);
+        return true;
     }
 
     @Override
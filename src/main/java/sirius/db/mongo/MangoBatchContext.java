@@ -0,0 +1,753 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.mongo;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import sirius.db.mixing.BaseMapper;
+import sirius.db.mixing.EntityDescriptor;
+import sirius.db.mixing.OptimisticLockException;
+import sirius.db.mongo.constraints.MongoConstraint;
+import sirius.kernel.commons.Value;
+import sirius.kernel.commons.Watch;
+import sirius.kernel.health.Exceptions;
+import sirius.kernel.health.HandledException;
+import sirius.kernel.health.Microtiming;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.NotThreadSafe;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Simplifies bulk inserts, updates and deletes against MongoDB.
+ * <p>
+ * Collects an arbitrary number of writes, which are internally executed as blocks using
+ * {@link com.mongodb.client.MongoCollection#bulkWrite(List, BulkWriteOptions)} - one per collection. Once either
+ * {@link #withMaxBatchSize(int) the number of queued writes} or {@link #withMaxBatchBytes(int) their estimated size}
+ * reaches its limit, all queued writes are sent to the server. Note that an auto-commit will throw an exception if one
+ * of the writes failed. Invoke {@link #commit()} manually to handle failures gracefully.
+ * <p>
+ * In contrast to {@link sirius.db.es.BulkContext}, the before save / before delete handlers of an entity are invoked
+ * once its write is queued and the after save / after delete handlers once it was successfully executed. The id (and
+ * version) of a new entity are assigned when it is queued and reset if the insert fails.
+ * <p>
+ * Note that the order of writes is only maintained within a collection. Also note that optimistic locking conflicts
+ * don't fail within a bulk write, they simply don't match any document. Therefore the outcome of versioned updates
+ * and deletes is verified after each bulk write and conflicts are reported as
+ * {@link MangoBatchResult.Failure#isOptimisticLockError() optimistic locking failures}.
+ * <p>
+ * This class is not thread-safe.
+ */
+@NotThreadSafe
+public class MangoBatchContext implements Closeable {
+
+    private static final int DEFAULT_MAX_BATCH_SIZE = 1024;
+    private static final int DEFAULT_MAX_BATCH_BYTES = 8 * 1024 * 1024;
+    private static final int RECOMMENDED_BATCH_SIZE = 256;
+    private static final int CODE_NOT_EXECUTED = -1;
+    private static final int CODE_OPTIMISTIC_LOCK = -2;
+    private static final int ESTIMATED_DOCUMENT_OVERHEAD = 5;
+    private static final int ESTIMATED_FIELD_OVERHEAD = 2;
+    private static final int ESTIMATED_VALUE_SIZE = 8;
+
+    private final Mango mango;
+    private final Mongo mongo;
+    private List<BatchItem> items = new ArrayList<>();
+    private int queuedBytes;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+    private boolean ordered = true;
+
+    /**
+     * Represents a queued write along with the callbacks to invoke once its outcome is known.
+     */
+    private static class BatchItem {
+        private final String database;
+        private final String collection;
+        private final WriteModel<Document> model;
+        private final MongoEntity entity;
+        private Runnable onSuccess;
+        private Runnable onFailure;
+
+        /**
+         * Contains the version which is expected by a versioned update or delete or <tt>null</tt> for all other writes.
+         */
+        private Integer lockedVersion;
+        private boolean lockedDelete;
+
+        BatchItem(String database, String collection, WriteModel<Document> model, @Nullable MongoEntity entity) {
+            this.database = database;
+            this.collection = collection;
+            this.model = model;
+            this.entity = entity;
+        }
+
+        void succeeded() {
+            invoke(onSuccess);
+        }
+
+        void failed() {
+            invoke(onFailure);
+        }
+
+        private void invoke(@Nullable Runnable callback) {
+            if (callback == null) {
+                return;
+            }
+
+            try {
+                callback.run();
+            } catch (Exception e) {
+                Exceptions.handle(Mongo.LOG, e);
+            }
+        }
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param mango the mapper used to transform entities into documents
+     * @param mongo the client used to execute the bulk writes
+     * @see Mango#batch()
+     */
+    protected MangoBatchContext(Mango mango, Mongo mongo) {
+        this.mango = mango;
+        this.mongo = mongo;
+    }
+
+    /**
+     * Permits MongoDB to execute the writes of a collection in any order and to continue after a failed write.
+     * <p>
+     * By default, writes are executed in order and a failing write aborts all subsequent writes of the same
+     * collection. Using unordered writes is faster, as the server can execute them in parallel.
+     *
+     * @return the batch context itself for fluent method calls
+     */
+    public MangoBatchContext unordered() {
+        this.ordered = false;
+        return this;
+    }
+
+    /**
+     * Specifies the number of queued writes which triggers an auto-commit.
+     *
+     * @param maxBatchSize the maximal number of writes to queue
+     * @return the batch context itself for fluent method calls
+     */
+    public MangoBatchContext withMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+        return this;
+    }
+
+    /**
+     * Specifies the estimated size (in bytes) of all queued writes which triggers an auto-commit.
+     *
+     * @param maxBatchBytes the maximal size of the queued documents in bytes or 0 to skip estimating the size
+     * @return the batch context itself for fluent method calls
+     */
+    public MangoBatchContext withMaxBatchBytes(int maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+        return this;
+    }
+
+    /**
+     * Queues an {@link Mango#tryUpdate(sirius.db.mixing.BaseEntity)} in the batch context.
+     * <p>
+     * New entities are inserted, existing entities are updated with all changed properties.
+     *
+     * @param entity the entity to create or update
+     * @return the batch context itself for fluent method calls
+     */
+    public MangoBatchContext tryUpdate(MongoEntity entity) {
+        return save(entity, false);
+    }
+
+    /**
+     * Queues an {@link Mango#override(sirius.db.mixing.BaseEntity)} in the batch context.
+     * <p>
+     * New entities are inserted, existing entities are replaced as a whole without any optimistic locking.
+     *
+     * @param entity the entity to create or overwrite
+     * @return the batch context itself for fluent method calls
+     */
+    public MangoBatchContext overwrite(MongoEntity entity) {
+        return save(entity, true);
+    }
+
+    private MangoBatchContext save(MongoEntity entity, boolean force) {
+        EntityDescriptor ed = entity.getDescriptor();
+        ed.beforeSave(entity);
+
+        if (entity.isNew()) {
+            queueInsert(entity, ed);
+        } else if (force) {
+            queueReplace(entity, ed);
+        } else {
+            queueUpdate(entity, ed);
+        }
+
+        autocommit();
+        return this;
+    }
+
+    private void queueInsert(MongoEntity entity, EntityDescriptor ed) {
+        String generatedId = entity.generateId();
+        Inserter inserter = mango.createInserter(entity, ed, generatedId);
+        entity.setId(generatedId);
+        int previousVersion = entity.getVersion();
+        if (ed.isVersioned()) {
+            entity.setVersion(1);
+        }
+
+        BatchItem item = queue(ed.getRealm(), ed.getRelationName(), inserter.toWriteModel(), entity);
+        item.onSuccess = () -> ed.afterSave(entity);
+        item.onFailure = () -> {
+            entity.setId(null);
+            entity.setVersion(previousVersion);
+        };
+    }
+
+    private void queueReplace(MongoEntity entity, EntityDescriptor ed) {
+        Inserter inserter = mango.createInserter(entity, ed, entity.getId());
+        Document filter = new Document(MongoEntity.ID.toString(), entity.getId());
+        ReplaceOneModel<Document> model =
+                new ReplaceOneModel<>(filter,
+                                      inserter.getDocument(),
+                                      new ReplaceOptions().collation(mongo.determineCollation()));
+
+        BatchItem item = queue(ed.getRealm(), ed.getRelationName(), model, entity);
+        item.onSuccess = () -> {
+            if (ed.isVersioned()) {
+                entity.setVersion(entity.getVersion() + 1);
+            }
+            ed.afterSave(entity);
+        };
+    }
+
+    private void queueUpdate(MongoEntity entity, EntityDescriptor ed) {
+        Updater updater = mango.createUpdater(entity, false, ed);
+        if (updater == null) {
+            return;
+        }
+
+        BatchItem item = queue(ed.getRealm(), ed.getRelationName(), updater.toWriteModel(ed.getRelationName()), entity);
+        if (ed.isVersioned()) {
+            item.lockedVersion = entity.getVersion();
+        }
+        item.onSuccess = () -> {
+            if (ed.isVersioned()) {
+                entity.setVersion(entity.getVersion() + 1);
+            }
+            ed.afterSave(entity);
+        };
+    }
+
+    /**
+     * Queues an {@link Mango#tryDelete(sirius.db.mixing.BaseEntity)} in the batch context.
+     *
+     * @param entity the entity to delete
+     * @return the batch context itself for fluent method calls
+     */
+    public MangoBatchContext tryDelete(MongoEntity entity) {
+        return delete(entity, false);
+    }
+
+    /**
+     * Queues an {@link Mango#forceDelete(sirius.db.mixing.BaseEntity)} in the batch context.
+     *
+     * @param entity the entity to delete
+     * @return the batch context itself for fluent method calls
+     */
+    public MangoBatchContext forceDelete(MongoEntity entity) {
+        return delete(entity, true);
+    }
+
+    private MangoBatchContext delete(MongoEntity entity, boolean force) {
+        if (entity.isNew()) {
+            return this;
+        }
+
+        EntityDescriptor ed = entity.getDescriptor();
+        ed.beforeDelete(entity);
+
+        Document filter = new Document(MongoEntity.ID.toString(), entity.getId());
+        if (!force && ed.isVersioned()) {
+            filter.put(BaseMapper.VERSION, entity.getVersion());
+        }
+
+        BatchItem item = queue(ed.getRealm(), ed.getRelationName(), new DeleteOneModel<>(filter), entity);
+        if (!force && ed.isVersioned()) {
+            item.lockedVersion = entity.getVersion();
+            item.lockedDelete = true;
+        }
+        item.onSuccess = () -> ed.afterDelete(entity);
+
+        autocommit();
+        return this;
+    }
+
+    /**
+     * Queues the given insert statement.
+     *
+     * @param inserter   the insert statement to execute
+     * @param collection the collection to insert the document into
+     * @return the batch context itself for fluent method calls
+     */
+    public MangoBatchContext insert(Inserter inserter, String collection) {
+        queue(inserter.database, collection, inserter.toWriteModel(), null);
+        autocommit();
+        return this;
+    }
+
+    /**
+     * Queues the given insert statement.
+     *
+     * @param inserter the insert statement to execute
+     * @param type     the type of entities to insert
+     * @return the batch context itself for fluent method calls
+     */
+    public MangoBatchContext insert(Inserter inserter, Class<?> type) {
+        return insert(inserter, QueryBuilder.getRelationName(type));
+    }
+
+    /**
+     * Queues the given update statement.
+     * <p>
+     * Note that {@link Updater#many()} and {@link Updater#upsert()} are respected.
+     *
+     * @param updater    the update statement to execute
+     * @param collection the collection to update
+     * @return the batch context itself for fluent method calls
+     */
+    public MangoBatchContext update(Updater updater, String collection) {
+        queue(updater.database, collection, updater.toWriteModel(collection), null);
+        autocommit();
+        return this;
+    }
+
+    /**
+     * Queues the given update statement.
+     *
+     * @param updater the update statement to execute
+     * @param type    the type of entities to update
+     * @return the batch context itself for fluent method calls
+     */
+    public MangoBatchContext update(Updater updater, Class<?> type) {
+        return update(updater, QueryBuilder.getRelationName(type));
+    }
+
+    /**
+     * Queues the given delete statement which deletes the first matching document.
+     *
+     * @param deleter    the delete statement to execute
+     * @param collection the collection to delete the document from
+     * @return the batch context itself for fluent method calls
+     * @see Deleter#singleFrom(String)
+     */
+    public MangoBatchContext deleteSingle(Deleter deleter, String collection) {
+        queue(deleter.database, collection, deleter.toWriteModel(false), null);
+        autocommit();
+        return this;
+    }
+
+    /**
+     * Queues the given delete statement which deletes all matching documents.
+     *
+     * @param deleter    the delete statement to execute
+     * @param collection the collection to delete the documents from
+     * @return the batch context itself for fluent method calls
+     * @see Deleter#manyFrom(String)
+     */
+    public MangoBatchContext deleteMany(Deleter deleter, String collection) {
+        queue(deleter.database, collection, deleter.toWriteModel(true), null);
+        autocommit();
+        return this;
+    }
+
+    private BatchItem queue(String database,
+                            String collection,
+                            WriteModel<Document> model,
+                            @Nullable MongoEntity entity) {
+        BatchItem item = new BatchItem(database, collection, model, entity);
+        items.add(item);
+        if (maxBatchBytes > 0) {
+            queuedBytes += estimateSize(model);
+        }
+
+        return item;
+    }
+
+    /**
+     * Estimates the size of the documents sent for the given write.
+     *
+     * @param model the write to estimate
+     * @return the estimated size in bytes
+     */
+    private int estimateSize(WriteModel<Document> model) {
+        if (model instanceof InsertOneModel) {
+            return estimateSize(((InsertOneModel<Document>) model).getDocument());
+        }
+        if (model instanceof UpdateOneModel) {
+            UpdateOneModel<Document> update = (UpdateOneModel<Document>) model;
+            return estimateSize(update.getFilter()) + estimateSize(update.getUpdate());
+        }
+        if (model instanceof UpdateManyModel) {
+            UpdateManyModel<Document> update = (UpdateManyModel<Document>) model;
+            return estimateSize(update.getFilter()) + estimateSize(update.getUpdate());
+        }
+        if (model instanceof ReplaceOneModel) {
+            ReplaceOneModel<Document> replace = (ReplaceOneModel<Document>) model;
+            return estimateSize(replace.getFilter()) + estimateSize(replace.getReplacement());
+        }
+        if (model instanceof DeleteOneModel) {
+            return estimateSize(((DeleteOneModel<Document>) model).getFilter());
+        }
+        if (model instanceof DeleteManyModel) {
+            return estimateSize(((DeleteManyModel<Document>) model).getFilter());
+        }
+
+        return ESTIMATED_VALUE_SIZE;
+    }
+
+    /**
+     * Cheaply estimates the BSON size of the given value without actually encoding it.
+     *
+     * @param value the value to estimate
+     * @return the estimated size in bytes
+     */
+    private int estimateSize(@Nullable Object value) {
+        if (value instanceof Map) {
+            int size = ESTIMATED_DOCUMENT_OVERHEAD;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                size += ESTIMATED_FIELD_OVERHEAD + String.valueOf(entry.getKey()).length();
+                size += estimateSize(entry.getValue());
+            }
+            return size;
+        }
+        if (value instanceof Collection) {
+            int size = ESTIMATED_DOCUMENT_OVERHEAD;
+            for (Object element : (Collection<?>) value) {
+                size += ESTIMATED_FIELD_OVERHEAD + estimateSize(element);
+            }
+            return size;
+        }
+        if (value instanceof CharSequence) {
+            return ESTIMATED_DOCUMENT_OVERHEAD + ((CharSequence) value).length();
+        }
+        if (value instanceof byte[]) {
+            return ESTIMATED_DOCUMENT_OVERHEAD + ((byte[]) value).length;
+        }
+
+        return ESTIMATED_VALUE_SIZE;
+    }
+
+    private void autocommit() {
+        if (items.size() >= maxBatchSize || (maxBatchBytes > 0 && queuedBytes >= maxBatchBytes)) {
+            commit().throwFailures();
+        }
+    }
+
+    /**
+     * Forces the execution of all queued writes.
+     *
+     * @return a result which can be used to determine if errors have occurred. If an exception should be thrown for
+     * any error, use {@link MangoBatchResult#throwFailures()}.
+     */
+    public MangoBatchResult commit() {
+        MangoBatchResult result = new MangoBatchResult();
+        if (items.isEmpty()) {
+            return result;
+        }
+
+        List<BatchItem> pendingItems = items;
+        items = new ArrayList<>();
+        queuedBytes = 0;
+
+        Map<String, List<BatchItem>> itemsPerCollection = new LinkedHashMap<>();
+        for (BatchItem item : pendingItems) {
+            itemsPerCollection.computeIfAbsent(item.database + "." + item.collection, ignored -> new ArrayList<>())
+                              .add(item);
+        }
+        for (List<BatchItem> collectionItems : itemsPerCollection.values()) {
+            executeBulkWrite(collectionItems, result);
+        }
+
+        return result;
+    }
+
+    private void executeBulkWrite(List<BatchItem> collectionItems, MangoBatchResult result) {
+        String database = collectionItems.get(0).database;
+        String collection = collectionItems.get(0).collection;
+        List<WriteModel<Document>> models =
+                collectionItems.stream().map(item -> item.model).collect(Collectors.toList());
+
+        Watch w = Watch.start();
+        try {
+            if (Mongo.LOG.isFINE()) {
+                Mongo.LOG.FINE("BULK WRITE: %s\nWrites: %s", collection, models.size());
+            }
+
+            BulkWriteResult writeResult = mongo.db(database)
+                                               .getCollection(collection)
+                                               .bulkWrite(models, new BulkWriteOptions().ordered(ordered));
+            result.record(writeResult);
+            completeExecutedItems(database, collection, collectionItems, writeResult, result);
+        } catch (MongoBulkWriteException e) {
+            result.record(e.getWriteResult());
+            List<BatchItem> executedItems = handleWriteErrors(collectionItems, collection, e.getWriteErrors(), result);
+            completeExecutedItems(database, collection, executedItems, e.getWriteResult(), result);
+        } catch (Exception e) {
+            // Report all writes of this collection as failed, but continue with the other collections...
+            HandledException error = Exceptions.handle()
+                                               .to(Mongo.LOG)
+                                               .error(e)
+                                               .withSystemErrorMessage(
+                                                       "An error occurred while executing a bulk write on %s: %s (%s)",
+                                                       collection)
+                                               .handle();
+            int code = e instanceof MongoException ? ((MongoException) e).getCode() : CODE_NOT_EXECUTED;
+            for (BatchItem item : collectionItems) {
+                result.addFailure(new MangoBatchResult.Failure(item.entity,
+                                                               collection,
+                                                               code,
+                                                               error.getMessage(),
+                                                               error));
+                item.failed();
+            }
+        } finally {
+            mongo.notifyWrite(database, collection);
+            mongo.callDuration.addValue(w.elapsedMillis());
+            mongo.recordOperation(Mongo.OPERATION_BULK_WRITE, collection, w, models.size());
+            if (Microtiming.isEnabled()) {
+                w.submitMicroTiming("mongo", "BULK WRITE - " + collection + ": " + models.size());
+            }
+        }
+    }
+
+    /**
+     * Maps the errors reported by MongoDB back to the queued writes.
+     * <p>
+     * The index of each error refers to the position of the write within the bulk write. For ordered bulk writes,
+     * all writes after the first failure are skipped by the server and therefore also reported as failed.
+     *
+     * @return the writes which have been executed without an error
+     */
+    private List<BatchItem> handleWriteErrors(List<BatchItem> collectionItems,
+                                              String collection,
+                                              List<BulkWriteError> writeErrors,
+                                              MangoBatchResult result) {
+        Map<Integer, BulkWriteError> errorsByIndex = new HashMap<>();
+        int firstError = collectionItems.size();
+        for (BulkWriteError error : writeErrors) {
+            errorsByIndex.put(error.getIndex(), error);
+            firstError = Math.min(firstError, error.getIndex());
+        }
+
+        List<BatchItem> executedItems = new ArrayList<>();
+        for (int index = 0; index < collectionItems.size(); index++) {
+            BatchItem item = collectionItems.get(index);
+            BulkWriteError error = errorsByIndex.get(index);
+            if (error != null) {
+                result.addFailure(new MangoBatchResult.Failure(item.entity,
+                                                               collection,
+                                                               error.getCode(),
+                                                               error.getMessage()));
+                item.failed();
+            } else if (ordered && index > firstError) {
+                result.addFailure(new MangoBatchResult.Failure(item.entity,
+                                                               collection,
+                                                               CODE_NOT_EXECUTED,
+                                                               "Skipped due to a preceding error."));
+                item.failed();
+            } else {
+                executedItems.add(item);
+            }
+        }
+
+        return executedItems;
+    }
+
+    /**
+     * Invokes the success handlers of all executed writes, unless an optimistic locking conflict was detected.
+     */
+    private void completeExecutedItems(String database,
+                                       String collection,
+                                       List<BatchItem> executedItems,
+                                       BulkWriteResult writeResult,
+                                       MangoBatchResult result) {
+        Set<BatchItem> conflicts = determineLockConflicts(database, collection, executedItems, writeResult);
+        for (BatchItem item : executedItems) {
+            if (conflicts.contains(item)) {
+                result.addFailure(new MangoBatchResult.Failure(item.entity,
+                                                               collection,
+                                                               CODE_OPTIMISTIC_LOCK,
+                                                               "The entity was concurrently modified or deleted.",
+                                                               new OptimisticLockException()));
+                item.failed();
+            } else {
+                item.succeeded();
+            }
+        }
+    }
+
+    /**
+     * Determines which versioned updates and deletes didn't match their document.
+     * <p>
+     * A bulk write only reports the total number of matched and deleted documents. If these don't already prove that
+     * all writes matched, the affected documents are loaded and compared to the expected outcome.
+     *
+     * @return the writes which didn't match due to a concurrent modification
+     */
+    private Set<BatchItem> determineLockConflicts(String database,
+                                                  String collection,
+                                                  List<BatchItem> executedItems,
+                                                  BulkWriteResult writeResult) {
+        List<BatchItem> lockedItems =
+                executedItems.stream().filter(item -> item.lockedVersion != null).collect(Collectors.toList());
+        if (lockedItems.isEmpty()) {
+            return Collections.emptySet();
+        }
+
+        // If only entities are written, each update, replace or delete targets exactly one document. Therefore the
+        // totals reported by MongoDB tell whether all of them matched...
+        boolean countsAreExact =
+                writeResult.wasAcknowledged() && executedItems.stream().allMatch(item -> item.entity != null);
+        if (countsAreExact) {
+            long expectedMatches = executedItems.stream()
+                                                .filter(item -> item.model instanceof UpdateOneModel
+                                                                || item.model instanceof ReplaceOneModel)
+                                                .count();
+            long expectedDeletes = executedItems.stream().filter(item -> item.model instanceof DeleteOneModel).count();
+            if (writeResult.getMatchedCount() >= expectedMatches && writeResult.getDeletedCount() >= expectedDeletes) {
+                return Collections.emptySet();
+            }
+        }
+
+        try {
+            return verifyLockedItems(database, collection, lockedItems);
+        } catch (Exception e) {
+            Exceptions.handle()
+                      .to(Mongo.LOG)
+                      .error(e)
+                      .withSystemErrorMessage("Failed to verify the versioned writes of a bulk write on %s: %s (%s)",
+                                              collection)
+                      .handle();
+            return new HashSet<>(lockedItems);
+        }
+    }
+
+    private Set<BatchItem> verifyLockedItems(String database, String collection, List<BatchItem> lockedItems) {
+        List<String> ids = lockedItems.stream().map(item -> item.entity.getId()).collect(Collectors.toList());
+        Map<String, Document> currentDocuments = new HashMap<>();
+        mongo.find(database)
+             .where(new MongoConstraint(MongoEntity.ID.toString(), new Document("$in", ids)))
+             .allIn(collection,
+                    doc -> currentDocuments.put(doc.get(MongoEntity.ID).asString(), doc.getUnderlyingObject()));
+
+        Set<BatchItem> conflicts = new HashSet<>();
+        for (BatchItem item : lockedItems) {
+            Document currentDocument = currentDocuments.get(item.entity.getId());
+            if (item.lockedDelete) {
+                if (currentDocument != null) {
+                    conflicts.add(item);
+                }
+            } else if (!isUpdateApplied(item, currentDocument)) {
+                conflicts.add(item);
+            }
+        }
+
+        return conflicts;
+    }
+
+    /**
+     * Determines if the given versioned update has been applied to the given document.
+     * <p>
+     * As a concurrent update based on the same version results in the same version number, we also check if the
+     * document contains the values written by the update.
+     */
+    private boolean isUpdateApplied(BatchItem item, @Nullable Document currentDocument) {
+        if (currentDocument == null
+            || Value.of(currentDocument.get(BaseMapper.VERSION)).asInt(0) != item.lockedVersion + 1) {
+            return false;
+        }
+
+        Object update = ((UpdateOneModel<Document>) item.model).getUpdate();
+        Object updatedFields = update instanceof Map ? ((Map<?, ?>) update).get("$set") : null;
+        if (!(updatedFields instanceof Map)) {
+            return true;
+        }
+
+        for (Map.Entry<?, ?> field : ((Map<?, ?>) updatedFields).entrySet()) {
+            if (!Objects.equals(field.getValue(), currentDocument.get(String.valueOf(field.getKey())))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the number of queued writes.
+     *
+     * @return the number of currently queued writes
+     */
+    public int countQueuedCommands() {
+        return items.size();
+    }
+
+    /**
+     * Determines if {@link #commit()} should be invoked manually if the caller is interested in properly handling
+     * write errors.
+     *
+     * @return <tt>true</tt> if {@link #commit()} should be called manually, <tt>false</tt> otherwise
+     */
+    public boolean shouldCommitManually() {
+        return countQueuedCommands() >= RECOMMENDED_BATCH_SIZE;
+    }
+
+    /**
+     * Returns whether any writes are queued.
+     *
+     * @return <tt>true</tt> if no writes are queued, <tt>false</tt> otherwise.
+     */
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    /**
+     * Closes the batch context and executes all writes which are still queued.
+     */
+    @Override
+    public void close() {
+        commit().throwFailures();
+    }
+}
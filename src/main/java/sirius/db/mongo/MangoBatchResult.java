@@ -0,0 +1,256 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.mongo;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.bulk.BulkWriteResult;
+import sirius.db.mixing.OptimisticLockException;
+import sirius.kernel.health.Exceptions;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * Represents the result of a {@link MangoBatchContext}.
+ * <p>
+ * For each invocation of {@link MangoBatchContext#commit()}, a result is generated which may be used to handle errors
+ * encountered while performing the queued writes.
+ */
+public class MangoBatchResult {
+
+    /**
+     * Represents a single write which failed or wasn't executed at all.
+     */
+    public static class Failure {
+        private final MongoEntity entity;
+        private final String collection;
+        private final int code;
+        private final String message;
+        private final Exception exception;
+
+        protected Failure(@Nullable MongoEntity entity, String collection, int code, String message) {
+            this(entity, collection, code, message, null);
+        }
+
+        protected Failure(@Nullable MongoEntity entity,
+                          String collection,
+                          int code,
+                          String message,
+                          @Nullable Exception exception) {
+            this.entity = entity;
+            this.collection = collection;
+            this.code = code;
+            this.message = message;
+            this.exception = exception;
+        }
+
+        /**
+         * Returns the entity which was supposed to be written.
+         *
+         * @return the originating entity or <tt>null</tt> if the write was created via an {@link Inserter},
+         * {@link Updater} or {@link Deleter}
+         */
+        @Nullable
+        public MongoEntity getEntity() {
+            return entity;
+        }
+
+        /**
+         * Returns the collection of the failed write.
+         *
+         * @return the name of the collection
+         */
+        public String getCollection() {
+            return collection;
+        }
+
+        /**
+         * Returns the error code reported by MongoDB.
+         *
+         * @return the error code, <tt>-1</tt> if the write wasn't executed (e.g. it was skipped due to a preceding error
+         * of an ordered batch) or <tt>-2</tt> if an optimistic locking conflict was detected
+         */
+        public int getCode() {
+            return code;
+        }
+
+        /**
+         * Returns the error message reported by MongoDB.
+         *
+         * @return the error message of the failed write
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * Determines if the write failed due to a unique index violation.
+         *
+         * @return <tt>true</tt> if a duplicate key was detected, <tt>false</tt> otherwise
+         */
+        public boolean isDuplicateKey() {
+            return ErrorCategory.fromErrorCode(code) == ErrorCategory.DUPLICATE_KEY;
+        }
+
+        /**
+         * Determines if the write failed as the entity was concurrently modified or deleted.
+         *
+         * @return <tt>true</tt> if an optimistic locking conflict was detected, <tt>false</tt> otherwise
+         */
+        public boolean isOptimisticLockError() {
+            return exception instanceof OptimisticLockException;
+        }
+
+        /**
+         * Returns the exception which caused the failure.
+         *
+         * @return the exception (e.g. an {@link OptimisticLockException}) or <tt>null</tt> if the failure was reported
+         * by MongoDB as error of the write itself
+         */
+        @Nullable
+        public Exception getException() {
+            return exception;
+        }
+
+        @Override
+        public String toString() {
+            if (entity != null) {
+                return collection + " (" + entity.getClass().getSimpleName() + "): " + message;
+            }
+
+            return collection + ": " + message;
+        }
+    }
+
+    private List<Failure> failures = new ArrayList<>();
+    private int insertedCount;
+    private int matchedCount;
+    private int modifiedCount;
+    private int deletedCount;
+    private int upsertedCount;
+
+    protected void record(@Nullable BulkWriteResult result) {
+        if (result == null || !result.wasAcknowledged()) {
+            return;
+        }
+
+        insertedCount += result.getInsertedCount();
+        matchedCount += result.getMatchedCount();
+        modifiedCount += result.getModifiedCount();
+        deletedCount += result.getDeletedCount();
+        upsertedCount += result.getUpserts().size();
+    }
+
+    protected void addFailure(Failure failure) {
+        failures.add(failure);
+    }
+
+    /**
+     * Determines if all writes have been successfully executed.
+     * <p>
+     * Note that a versioned update or delete of an entity, which didn't match due to a concurrent modification, is
+     * reported as {@link Failure#isOptimisticLockError() optimistic locking failure}.
+     *
+     * @return <tt>true</tt> if all writes were successfully executed, <tt>false</tt> otherwise
+     */
+    public boolean isSuccessful() {
+        return failures.isEmpty();
+    }
+
+    /**
+     * Throws an appropriate exception if the bulk write encountered an error.
+     *
+     * @throws sirius.kernel.health.HandledException if the bulk write was not {@link #isSuccessful() successful}
+     */
+    public void throwFailures() {
+        if (!isSuccessful()) {
+            throw Exceptions.handle()
+                            .to(Mongo.LOG)
+                            .withSystemErrorMessage("One or more writes failed within a bulk write: %s",
+                                                    getFailureMessage())
+                            .handle();
+        }
+    }
+
+    /**
+     * Returns all writes which failed or were skipped.
+     *
+     * @return the list of failures in the order in which the writes were queued per collection
+     */
+    public List<Failure> getFailures() {
+        return Collections.unmodifiableList(failures);
+    }
+
+    /**
+     * Returns all entities for which the write failed or was skipped.
+     *
+     * @return the list of entities which haven't been written
+     */
+    public List<MongoEntity> getFailedEntities() {
+        return failures.stream().map(Failure::getEntity).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the failure message for this bulk write.
+     *
+     * @return the failure message if errors occurred. Otherwise an empty string.
+     */
+    public String getFailureMessage() {
+        return failures.stream().map(Failure::toString).collect(Collectors.joining("\n"));
+    }
+
+    /**
+     * Returns the number of inserted documents.
+     *
+     * @return the number of inserted documents
+     */
+    public int getInsertedCount() {
+        return insertedCount;
+    }
+
+    /**
+     * Returns the number of documents matched by updates and replacements.
+     *
+     * @return the number of matched documents
+     */
+    public int getMatchedCount() {
+        return matchedCount;
+    }
+
+    /**
+     * Returns the number of documents which have effectively been changed by updates and replacements.
+     *
+     * @return the number of modified documents
+     */
+    public int getModifiedCount() {
+        return modifiedCount;
+    }
+
+    /**
+     * Returns the number of deleted documents.
+     *
+     * @return the number of deleted documents
+     */
+    public int getDeletedCount() {
+        return deletedCount;
+    }
+
+    /**
+     * Returns the number of documents created by updates with {@link Updater#upsert()}.
+     *
+     * @return the number of upserted documents
+     */
+    public int getUpsertedCount() {
+        return upsertedCount;
+    }
+}
@@ -10,14 +10,23 @@ package sirius.db.mongo;
 
 import com.mongodb.MongoClient;
 import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoCompressor;
 import com.mongodb.MongoCredential;
+import com.mongodb.ReadPreference;
 import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.Collation;
+import org.bson.Document;
+import sirius.db.mixing.EntityDescriptor;
 import sirius.db.mixing.Mixing;
 import sirius.kernel.Sirius;
 import sirius.kernel.Startable;
 import sirius.kernel.Stoppable;
+import sirius.kernel.async.Future;
+import sirius.kernel.async.Tasks;
+import sirius.kernel.cache.Cache;
+import sirius.kernel.cache.CacheManager;
 import sirius.kernel.commons.Explain;
 import sirius.kernel.commons.Strings;
 import sirius.kernel.commons.Tuple;
@@ -25,22 +34,30 @@ import sirius.kernel.commons.ValueHolder;
 import sirius.kernel.commons.Watch;
 import sirius.kernel.di.PartCollection;
 import sirius.kernel.di.std.ConfigValue;
+import sirius.kernel.di.std.Part;
 import sirius.kernel.di.std.Parts;
 import sirius.kernel.di.std.Register;
 import sirius.kernel.health.Average;
 import sirius.kernel.health.Counter;
 import sirius.kernel.health.Exceptions;
+import sirius.kernel.health.HandledException;
 import sirius.kernel.health.Log;
 import sirius.kernel.settings.Extension;
 import sirius.kernel.settings.PortMapper;
 
 import javax.annotation.Nullable;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 /**
@@ -55,9 +72,54 @@ public class Mongo implements Startable, Stoppable {
     @Explain("Constants have different semantics.")
     public static final Log LOG = Log.get("mongo");
 
+    /**
+     * Names the operation of reading documents via a cursor or as single document.
+     */
+    public static final String OPERATION_FIND = "find";
+
+    /**
+     * Names the operation of counting documents.
+     */
+    public static final String OPERATION_COUNT = "count";
+
+    /**
+     * Names the operation of executing an aggregation pipeline.
+     */
+    public static final String OPERATION_AGGREGATE = "aggregate";
+
+    /**
+     * Names the operation of inserting documents.
+     */
+    public static final String OPERATION_INSERT = "insert";
+
+    /**
+     * Names the operation of updating documents.
+     */
+    public static final String OPERATION_UPDATE = "update";
+
+    /**
+     * Names the operation of deleting documents.
+     */
+    public static final String OPERATION_DELETE = "delete";
+
+    /**
+     * Names the operation of executing a bulk write.
+     */
+    public static final String OPERATION_BULK_WRITE = "bulk";
+
     private static final int MONGO_PORT = 27017;
+    private static final String COMPRESSOR_SNAPPY = "snappy";
+    private static final String COMPRESSOR_ZLIB = "zlib";
+    private static final String INDEX_NAME = "name";
+    private static final String INDEX_PRIMARY_KEY = "_id_";
+    private static final String COLLATION_SIMPLE = "simple";
 
-    private Map<String, Tuple<MongoClient, String>> mongoClients = new HashMap<>();
+    /**
+     * Contains the name of the executor which creates indices in the background.
+     */
+    protected static final String EXECUTOR_INDEX_CREATION = "mongo-index-creation";
+
+    private Map<String, Tuple<MongoClient, String>> mongoClients = new ConcurrentHashMap<>();
     private Map<String, Boolean> mongoClientConfigured = new HashMap<>();
 
     @ConfigValue("mongo.logQueryThreshold")
@@ -68,11 +130,32 @@ public class Mongo implements Startable, Stoppable {
     private static String collationLocale;
     private ValueHolder<Collation> collationHolder = null;
 
+    @ConfigValue("mongo.rebuildIndicesOnCollationMismatch")
+    private static boolean rebuildIndicesOnCollationMismatch;
+
     @Parts(IndexDescription.class)
     private PartCollection<IndexDescription> indexDescriptions;
 
+    @Parts(MongoWriteListener.class)
+    private PartCollection<MongoWriteListener> writeListeners;
+
+    @Part
+    private Tasks tasks;
+
+    @Part
+    private Mixing mixing;
+
+    protected Future readyFuture = new Future();
+    private volatile List<String> configuredDatabases;
+    private Set<String> initializedDatabases = ConcurrentHashMap.newKeySet();
+
     protected Average callDuration = new Average();
     protected Counter numSlowQueries = new Counter();
+    protected MongoConnectionPoolMonitor poolMonitor = new MongoConnectionPoolMonitor();
+    protected Cache<String, Document> facetCache = CacheManager.createLocalCache("mongo-facets");
+    private Map<Class<?>, MongoEntityDecoder<?>> entityDecoders = new ConcurrentHashMap<>();
+    private Map<String, MongoOperationStatistics> operationStatistics = new ConcurrentHashMap<>();
+    protected Set<MongoChangeStream> changeStreams = ConcurrentHashMap.newKeySet();
 
     /**
      * Determines if access to Mongo DB is configured by checking if a host is given.
@@ -118,9 +201,31 @@ public class Mongo implements Startable, Stoppable {
         return db(Mixing.DEFAULT_REALM);
     }
 
+    /**
+     * Provides a future which is fulfilled once all indices of all configured databases have been created.
+     * <p>
+     * Indices are created in the background once the client of a database is set up, so that reads and writes can
+     * proceed immediately. Health checks or tests which rely on these indices (e.g. unique constraints) can use this
+     * future to wait until the indices are present. If setting up a database or creating an index fails, the future
+     * fails as well. Note that {@link Mango#getReadyFuture()} also covers the indices of all entities.
+     *
+     * @return a future which indicates when the indices of all configured databases are created
+     */
+    public Future getReadyFuture() {
+        return readyFuture;
+    }
+
+    /**
+     * Sets up the client for the given database.
+     * <p>
+     * This is invoked at most once per database, as {@link #db(String)} uses a concurrent map to store the clients.
+     *
+     * @param database the name of the database configuration to use
+     * @return the client along with the name of the database to use
+     */
     @SuppressWarnings("squid:S2095")
     @Explain("We cannot close the client here as it is part of the return value.")
-    protected synchronized Tuple<MongoClient, String> setupClient(String database) {
+    protected Tuple<MongoClient, String> setupClient(String database) {
         Extension config = Sirius.getSettings().getExtension("mongo.databases", database);
         List<ServerAddress> hosts = Arrays.stream(config.get("hosts").asString().split(","))
                                           .map(String::trim)
@@ -130,7 +235,7 @@ public class Mongo implements Startable, Stoppable {
                                           .filter(Objects::nonNull)
                                           .collect(Collectors.toList());
         MongoCredential credentials = determineCredentials(config);
-        MongoClientOptions options = MongoClientOptions.builder().build();
+        MongoClientOptions options = buildOptions(database, config);
         MongoClient mongoClient =
                 credentials == null ? new MongoClient(hosts, options) : new MongoClient(hosts, credentials, options);
 
@@ -138,6 +243,71 @@ public class Mongo implements Startable, Stoppable {
         return Tuple.create(mongoClient, config.get("db").asString());
     }
 
+    /**
+     * Builds the client options for the given database.
+     *
+     * @param database the name of the database configuration, used for logging
+     * @param config   the configuration of the database
+     * @return the options to use when creating the client for the given database
+     */
+    protected MongoClientOptions buildOptions(String database, Extension config) {
+        MongoClientOptions.Builder builder = MongoClientOptions.builder();
+        builder.connectionsPerHost(config.get("maxConnectionsPerHost").asInt(100));
+        builder.minConnectionsPerHost(config.get("minConnectionsPerHost").asInt(0));
+        builder.threadsAllowedToBlockForConnectionMultiplier(config.get("waitQueueMultiple").asInt(5));
+        builder.maxWaitTime(getMillis(config, "maxWaitTime"));
+        builder.connectTimeout(getMillis(config, "connectTimeout"));
+        builder.socketTimeout(getMillis(config, "socketTimeout"));
+        builder.serverSelectionTimeout(getMillis(config, "serverSelectionTimeout"));
+        builder.heartbeatFrequency(getMillis(config, "heartbeatFrequency"));
+        builder.maxConnectionIdleTime(getMillis(config, "maxConnectionIdleTime"));
+        builder.compressorList(determineCompressors(database, config));
+        builder.addConnectionPoolListener(poolMonitor);
+
+        String readPreference = config.get("readPreference").asString();
+        if (Strings.isFilled(readPreference)) {
+            try {
+                builder.readPreference(ReadPreference.valueOf(readPreference));
+            } catch (IllegalArgumentException e) {
+                LOG.WARN("Unknown read preference '%s' for database %s - using the default.",
+                         readPreference,
+                         database);
+            }
+        }
+
+        String writeConcern = config.get("writeConcern").asString();
+        if (Strings.isFilled(writeConcern)) {
+            WriteConcern effectiveWriteConcern = WriteConcern.valueOf(writeConcern);
+            if (effectiveWriteConcern != null) {
+                builder.writeConcern(effectiveWriteConcern);
+            } else {
+                LOG.WARN("Unknown write concern '%s' for database %s - using the default.", writeConcern, database);
+            }
+        }
+
+        return builder.build();
+    }
+
+    private int getMillis(Extension config, String key) {
+        return (int) config.getMilliseconds(key);
+    }
+
+    private List<MongoCompressor> determineCompressors(String database, Extension config) {
+        List<MongoCompressor> compressors = new ArrayList<>();
+        for (String compressor : config.get("compressors").asString().split(",")) {
+            String name = compressor.trim().toLowerCase();
+            if (COMPRESSOR_SNAPPY.equals(name)) {
+                compressors.add(MongoCompressor.createSnappyCompressor());
+            } else if (COMPRESSOR_ZLIB.equals(name)) {
+                compressors.add(MongoCompressor.createZlibCompressor());
+            } else if (Strings.isFilled(name)) {
+                LOG.WARN("Unsupported wire compressor '%s' for database %s - ignoring it.", name, database);
+            }
+        }
+
+        return compressors;
+    }
+
     private MongoCredential determineCredentials(Extension config) {
         if (config.get("user").isEmptyString() || config.get("password").isEmptyString()) {
             return null;
@@ -148,22 +318,170 @@ public class Mongo implements Startable, Stoppable {
                                                 config.get("password").asString().toCharArray());
     }
 
+    /**
+     * Creates the indices of all {@link IndexDescription index descriptions} in the background.
+     * <p>
+     * Each description is processed by its own task, so that indices of different collections are created in
+     * parallel. Once all are completed, the index collations are checked.
+     *
+     * @param database the name of the database (in the configuration) for which the indices are created
+     * @param db       the database to create the indices in
+     */
     private void createIndices(String database, MongoDatabase db) {
-        for (IndexDescription idx : indexDescriptions) {
-            Watch w = Watch.start();
-            try {
-                LOG.INFO("Creating indices in Mongo DB: %s", idx.getClass().getName());
-                idx.createIndices(database, db);
-                LOG.INFO("Completed indices for: %s (%s)", idx.getClass().getName(), w.duration());
-            } catch (Exception t) {
-                Exceptions.handle()
-                          .to(LOG)
-                          .error(t)
-                          .withSystemErrorMessage("Error while creating indices for '%s': %s (%s)",
-                                                  idx.getClass().getName())
-                          .handle();
+        List<IndexDescription> descriptions = new ArrayList<>(indexDescriptions.getParts());
+        if (descriptions.isEmpty()) {
+            tasks.executor(EXECUTOR_INDEX_CREATION).start(() -> completeIndexCreation(database, db, null));
+            return;
+        }
+
+        AtomicReference<HandledException> error = new AtomicReference<>();
+        AtomicInteger pendingDescriptions = new AtomicInteger(descriptions.size());
+        for (IndexDescription idx : descriptions) {
+            tasks.executor(EXECUTOR_INDEX_CREATION).start(() -> {
+                try {
+                    createIndices(database, db, idx, error);
+                } finally {
+                    if (pendingDescriptions.decrementAndGet() == 0) {
+                        completeIndexCreation(database, db, error.get());
+                    }
+                }
+            });
+        }
+    }
+
+    private void createIndices(String database,
+                               MongoDatabase db,
+                               IndexDescription idx,
+                               AtomicReference<HandledException> error) {
+        Watch w = Watch.start();
+        try {
+            LOG.INFO("Creating indices in Mongo DB: %s", idx.getClass().getName());
+            idx.createIndices(database, db);
+            LOG.INFO("Completed indices for: %s (%s)", idx.getClass().getName(), w.duration());
+        } catch (Exception t) {
+            error.compareAndSet(null,
+                                Exceptions.handle()
+                                          .to(LOG)
+                                          .error(t)
+                                          .withSystemErrorMessage("Error while creating indices for '%s': %s (%s)",
+                                                                  idx.getClass().getName())
+                                          .handle());
+        }
+    }
+
+    private void completeIndexCreation(String database, MongoDatabase db, @Nullable HandledException error) {
+        checkIndexCollations(database, db);
+        if (error != null) {
+            failReadyFuture(error);
+        } else {
+            initializedDatabases.add(database);
+            completeReadyFutureIfInitialized();
+        }
+    }
+
+    private synchronized void completeReadyFutureIfInitialized() {
+        if (configuredDatabases != null
+            && initializedDatabases.containsAll(configuredDatabases)
+            && !readyFuture.isCompleted()) {
+            readyFuture.success();
+        }
+    }
+
+    private synchronized void failReadyFuture(HandledException error) {
+        if (!readyFuture.isCompleted()) {
+            readyFuture.fail(error);
+        }
+    }
+
+    /**
+     * Reports all indices which have a collation which differs from the one used by queries.
+     * <p>
+     * As these indices cannot be used for string comparisons, queries might fall back to collection scans. Note that
+     * indices on non-string fields can still be used. Queries which are known to only use such fields can use
+     * {@link Finder#withoutCollation()}.
+     * <p>
+     * Only the collections of the {@link MongoEntity entities} which are stored in this database are checked, as
+     * other collections (e.g. of other applications sharing the database) aren't queried by us.
+     *
+     * @param database the name of the database (in the configuration) to check
+     * @param db       the database to check
+     */
+    private void checkIndexCollations(String database, MongoDatabase db) {
+        try {
+            Set<String> collections = mixing.getDescriptors()
+                                            .stream()
+                                            .filter(ed -> MongoEntity.class.isAssignableFrom(ed.getType()))
+                                            .filter(ed -> Strings.areEqual(database, ed.getRealm()))
+                                            .map(EntityDescriptor::getRelationName)
+                                            .collect(Collectors.toSet());
+            for (String collection : db.listCollectionNames()) {
+                if (!collections.contains(collection)) {
+                    continue;
+                }
+
+                for (Document index : db.getCollection(collection).listIndexes()) {
+                    if (hasMismatchingCollation(index)) {
+                        LOG.WARN("The index %s on %s in database %s has the collation '%s' whereas queries use '%s'."
+                                 + " String comparisons cannot be performed using this index!",
+                                 index.getString(INDEX_NAME),
+                                 collection,
+                                 database,
+                                 Strings.isFilled(determineIndexLocale(index)) ? determineIndexLocale(index) : "simple",
+                                 Strings.isFilled(collationLocale) ? collationLocale : "simple");
+                    }
+                }
             }
+        } catch (Exception e) {
+            Exceptions.handle()
+                      .to(LOG)
+                      .error(e)
+                      .withSystemErrorMessage("Failed to check the index collations of database %s: %s (%s)",
+                                              database)
+                      .handle();
+        }
+    }
+
+    /**
+     * Determines if the given index has a collation which differs from the one used by queries.
+     * <p>
+     * The primary key index (<tt>_id_</tt>) as well as text indices are ignored, as these cannot be created with a
+     * custom collation.
+     *
+     * @param index the index as reported by <tt>listIndexes</tt>
+     * @return <tt>true</tt> if the collation of the index doesn't match the configured one, <tt>false</tt> otherwise
+     */
+    protected boolean hasMismatchingCollation(Document index) {
+        if (INDEX_PRIMARY_KEY.equals(index.getString(INDEX_NAME))) {
+            return false;
+        }
+
+        Document keys = index.get("key", Document.class);
+        if (keys != null && keys.values().contains(Mango.INDEX_AS_FULLTEXT)) {
+            return false;
         }
+
+        Collation collation = determineCollation();
+        String expectedLocale = collation == null ? null : collation.getLocale();
+        return !Strings.areEqual(expectedLocale, determineIndexLocale(index));
+    }
+
+    @Nullable
+    private String determineIndexLocale(Document index) {
+        Document collation = index.get("collation", Document.class);
+        if (collation == null || COLLATION_SIMPLE.equals(collation.getString("locale"))) {
+            return null;
+        }
+
+        return collation.getString("locale");
+    }
+
+    /**
+     * Determines if indices with a mismatching collation are dropped and re-created by {@link Mango}.
+     *
+     * @return <tt>true</tt> if such indices are rebuilt, <tt>false</tt> if they are only reported
+     */
+    protected boolean shouldRebuildIndicesOnCollationMismatch() {
+        return rebuildIndicesOnCollationMismatch;
     }
 
     @Override
@@ -173,14 +491,35 @@ public class Mongo implements Startable, Stoppable {
 
     @Override
     public void started() {
-        if (isConfigured()) {
-            // Force the creation of indices and the initialization of the database connection...
-            db();
+        configuredDatabases = Sirius.getSettings()
+                                    .getExtensions("mongo.databases")
+                                    .stream()
+                                    .map(Extension::getId)
+                                    .filter(this::isConfigured)
+                                    .collect(Collectors.toList());
+
+        for (String database : configuredDatabases) {
+            try {
+                // Force the initialization of the database connection, which also starts the creation of indices...
+                db(database);
+            } catch (Exception e) {
+                failReadyFuture(Exceptions.handle()
+                                          .to(LOG)
+                                          .error(e)
+                                          .withSystemErrorMessage("Failed to set up the database %s: %s (%s)",
+                                                                  database)
+                                          .handle());
+            }
         }
+
+        // Databases which have been set up before might already be completed (or none is configured at all)...
+        completeReadyFutureIfInitialized();
     }
 
     @Override
     public void stopped() {
+        new ArrayList<>(changeStreams).forEach(MongoChangeStream::stop);
+
         mongoClients.values().stream().map(Tuple::getFirst).forEach(client -> {
             try {
                 client.close();
@@ -230,6 +569,39 @@ public class Mongo implements Startable, Stoppable {
         return find(Mixing.DEFAULT_REALM);
     }
 
+    /**
+     * Returns a fluent builder to execute an aggregation pipeline in the database.
+     *
+     * @param database the name of the database configuration to use
+     * @return a builder to create and execute an aggregation pipeline
+     */
+    public Aggregation aggregate(String database) {
+        return new Aggregation(this, database);
+    }
+
+    /**
+     * Returns a fluent builder to execute an aggregation pipeline in the default database.
+     *
+     * @return a builder to create and execute an aggregation pipeline
+     */
+    public Aggregation aggregate() {
+        return aggregate(Mixing.DEFAULT_REALM);
+    }
+
+    /**
+     * Creates a subscription to the changes of one or more types of entities.
+     * <p>
+     * Note that the subscription has to be {@link MongoChangeStream#start() started} once all types to watch and the
+     * handler have been specified.
+     *
+     * @param name the name of the subscription, which is used to persist its position in the stream. Therefore it
+     *             must be unique and remain stable across restarts.
+     * @return a new subscription which can be configured and started
+     */
+    public MongoChangeStream changeStream(String name) {
+        return new MongoChangeStream(this, name);
+    }
+
     /**
      * Returns a fluent query builder to update one or more documents in the database.
      *
@@ -290,6 +662,61 @@ public class Mongo implements Startable, Stoppable {
         }
     }
 
+    /**
+     * Returns the decoder which reads entities of the given type directly from the fetched BSON documents.
+     * <p>
+     * The decoders are created on demand (once per entity type), as the descriptors are only available once
+     * {@link Mixing} is fully initialized.
+     *
+     * @param descriptor the descriptor of the entities to decode
+     * @param <E>        the type of entities to decode
+     * @return the decoder for the given type of entities
+     */
+    @SuppressWarnings("unchecked")
+    protected <E extends MongoEntity> MongoEntityDecoder<E> getEntityDecoder(EntityDescriptor descriptor) {
+        return (MongoEntityDecoder<E>) entityDecoders.computeIfAbsent(descriptor.getType(),
+                                                                      ignored -> new MongoEntityDecoder<>(descriptor));
+    }
+
+    /**
+     * Notifies all {@link MongoWriteListener listeners} about a write against the given collection.
+     *
+     * @param database   the name of the database (in the configuration) which has been modified
+     * @param collection the name of the collection which has been modified
+     */
+    protected void notifyWrite(String database, String collection) {
+        for (MongoWriteListener listener : writeListeners) {
+            try {
+                listener.onWrite(database, collection);
+            } catch (Exception e) {
+                Exceptions.handle(LOG, e);
+            }
+        }
+    }
+
+    /**
+     * Records the execution of an operation for the per collection statistics.
+     *
+     * @param operation  the operation being executed, like {@link #OPERATION_FIND}
+     * @param collection the collection on which the operation was executed
+     * @param watch      the watch which was started along with the operation
+     * @param documents  the number of documents read or written
+     */
+    protected void recordOperation(String operation, String collection, Watch watch, long documents) {
+        operationStatistics.computeIfAbsent(operation + "-" + collection,
+                                            ignored -> new MongoOperationStatistics(operation, collection))
+                           .record(watch.elapsedMillis(), documents);
+    }
+
+    /**
+     * Returns the statistics of all operations executed so far.
+     *
+     * @return the statistics per collection and operation
+     */
+    public Collection<MongoOperationStatistics> getOperationStatistics() {
+        return operationStatistics.values();
+    }
+
     /**
      * Returns the query log threshold in millis.
      * <p>
@@ -0,0 +1,137 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.mongo;
+
+import sirius.db.mixing.EntityDescriptor;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Represents a change of an entity as reported by a {@link MongoChangeStream}.
+ */
+public class MongoChangeEvent {
+
+    /**
+     * Enumerates the kinds of changes which are reported.
+     */
+    public enum Type {
+        INSERT, UPDATE, REPLACE, DELETE
+    }
+
+    private final EntityDescriptor descriptor;
+    private final Type type;
+    private final Object objectId;
+    private final String id;
+    private final Set<String> updatedFields;
+    private final Set<String> removedFields;
+    private final Doc document;
+
+    protected MongoChangeEvent(EntityDescriptor descriptor,
+                               Type type,
+                               Object objectId,
+                               @Nullable String id,
+                               Set<String> updatedFields,
+                               Set<String> removedFields,
+                               @Nullable Doc document) {
+        this.descriptor = descriptor;
+        this.type = type;
+        this.objectId = objectId;
+        this.id = id;
+        this.updatedFields = updatedFields;
+        this.removedFields = removedFields;
+        this.document = document;
+    }
+
+    /**
+     * Returns the descriptor of the changed entity.
+     *
+     * @return the descriptor of the entity type which has been changed
+     */
+    public EntityDescriptor getDescriptor() {
+        return descriptor;
+    }
+
+    /**
+     * Returns the kind of change.
+     *
+     * @return the type of the change
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the internal <tt>_id</tt> of the changed document.
+     * <p>
+     * This is always present, even for deletes.
+     *
+     * @return the internal id of the document as assigned by Mongo DB
+     */
+    public Object getObjectId() {
+        return objectId;
+    }
+
+    /**
+     * Returns the {@link MongoEntity#ID id} of the changed entity.
+     * <p>
+     * Note that this is only known if the current state of the document is available, which isn't the case for
+     * deletes or for updates of documents which have been deleted in the meantime.
+     *
+     * @return the id of the entity or <tt>null</tt> if it is unknown
+     */
+    @Nullable
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Returns the names of the fields which have been set by an update.
+     *
+     * @return the names of the updated fields. This is empty for all events other than {@link Type#UPDATE}.
+     */
+    public Set<String> getUpdatedFields() {
+        return Collections.unmodifiableSet(updatedFields);
+    }
+
+    /**
+     * Returns the names of the fields which have been removed by an update.
+     *
+     * @return the names of the removed fields. This is empty for all events other than {@link Type#UPDATE}.
+     */
+    public Set<String> getRemovedFields() {
+        return Collections.unmodifiableSet(removedFields);
+    }
+
+    /**
+     * Determines if the given field was changed by an update.
+     *
+     * @param field the name of the field to check
+     * @return <tt>true</tt> if the field was updated or removed by an update, <tt>false</tt> otherwise
+     */
+    public boolean isChanged(String field) {
+        return updatedFields.contains(field) || removedFields.contains(field);
+    }
+
+    /**
+     * Returns the current state of the changed document.
+     *
+     * @return the current document or <tt>null</tt> if it isn't available (e.g. for deletes)
+     */
+    @Nullable
+    public Doc getDocument() {
+        return document;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + descriptor.getRelationName() + " " + (id != null ? id : objectId);
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.mongo;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.UpdateDescription;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import sirius.db.mixing.EntityDescriptor;
+import sirius.db.mixing.FieldLookupCache;
+import sirius.db.mixing.Mixing;
+import sirius.kernel.async.Tasks;
+import sirius.kernel.commons.Wait;
+import sirius.kernel.di.std.Part;
+import sirius.kernel.health.Exceptions;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Subscribes to the changes of one or more types of entities using the change streams of Mongo DB.
+ * <p>
+ * This can be used to keep derived data (search indices, caches) up to date without re-scanning whole collections.
+ * A subscription is created via {@link Mongo#changeStream(String)}, the types to watch are added via
+ * {@link #watch(Class)} and the handler via {@link #onChange(Consumer)}. Once {@link #start() started}, one task per
+ * database is forked in the <tt>mongo-change-streams</tt> executor, which delivers the changes of all watched
+ * collections of this database to the handler (in the order in which they occurred).
+ * <p>
+ * The position within the stream (the resume token) is persisted in the collection
+ * <tt>change_stream_resume_tokens</tt> of the respective database, using the name of the subscription as id.
+ * Therefore a restarted subscription continues where it left off. As the token is only persisted once per
+ * second, some changes might be delivered twice after a crash.
+ * <p>
+ * For each change of an entity, the cached values of the {@link FieldLookupCache} are invalidated before the handler
+ * is invoked. If the handler throws an exception, the resume token isn't advanced. Instead, the change is delivered
+ * again after a short delay.
+ * <p>
+ * Note that this requires Mongo DB 4.0 or newer, running as replica set or sharded cluster.
+ */
+public class MongoChangeStream {
+
+    /**
+     * Contains the name of the executor which runs the change stream cursors.
+     */
+    protected static final String EXECUTOR_CHANGE_STREAMS = "mongo-change-streams";
+
+    private static final String COLLECTION_RESUME_TOKENS = "change_stream_resume_tokens";
+    private static final String FIELD_RESUME_TOKEN = "token";
+    private static final long MAX_AWAIT_TIME_MILLIS = 1000;
+    private static final long RESUME_TOKEN_PERSIST_INTERVAL_MILLIS = 1000;
+    private static final int RETRY_DELAY_SECONDS = 10;
+    private static final long STOP_TIMEOUT_SECONDS = 10;
+
+    @Part
+    private static Tasks tasks;
+
+    @Part
+    private static Mixing mixing;
+
+    @Part
+    private static FieldLookupCache fieldLookupCache;
+
+    private final Mongo mongo;
+    private final String name;
+    private final Map<String, Map<String, EntityDescriptor>> collectionsPerRealm = new HashMap<>();
+    private Consumer<MongoChangeEvent> handler;
+    private volatile boolean running;
+    private CountDownLatch activeWatches = new CountDownLatch(0);
+
+    protected MongoChangeStream(Mongo mongo, String name) {
+        this.mongo = mongo;
+        this.name = name;
+    }
+
+    /**
+     * Adds the given type of entities to the types being watched.
+     *
+     * @param type the type of entities to watch
+     * @return the subscription itself for fluent method calls
+     */
+    public MongoChangeStream watch(Class<? extends MongoEntity> type) {
+        EntityDescriptor descriptor = mixing.getDescriptor(type);
+        collectionsPerRealm.computeIfAbsent(descriptor.getRealm(), ignored -> new HashMap<>())
+                           .put(descriptor.getRelationName(), descriptor);
+        return this;
+    }
+
+    /**
+     * Specifies the handler which is invoked for each change.
+     * <p>
+     * The handler is invoked by one thread per database, therefore it has to be thread safe if entities of
+     * several databases are watched.
+     *
+     * @param handler the handler to invoke
+     * @return the subscription itself for fluent method calls
+     */
+    public MongoChangeStream onChange(Consumer<MongoChangeEvent> handler) {
+        this.handler = handler;
+        return this;
+    }
+
+    /**
+     * Starts to watch the changes of all given types of entities.
+     *
+     * @return the subscription itself, which can be used to {@link #stop()} it
+     */
+    public MongoChangeStream start() {
+        if (running) {
+            return this;
+        }
+
+        running = true;
+        mongo.changeStreams.add(this);
+        activeWatches = new CountDownLatch(collectionsPerRealm.size());
+        collectionsPerRealm.forEach((realm, collections) -> tasks.executor(EXECUTOR_CHANGE_STREAMS).fork(() -> {
+            try {
+                watchRealm(realm, collections);
+            } finally {
+                activeWatches.countDown();
+            }
+        }));
+
+        return this;
+    }
+
+    /**
+     * Stops the subscription.
+     * <p>
+     * This blocks until the underlying cursors are closed (which happens within about a second). Changes which have
+     * been delivered up to this point are recorded in the persisted resume token.
+     */
+    public void stop() {
+        running = false;
+        mongo.changeStreams.remove(this);
+        try {
+            if (!activeWatches.await(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Mongo.LOG.WARN("The change stream '%s' didn't stop within %s seconds.", name, STOP_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Exceptions.ignore(e);
+        }
+    }
+
+    /**
+     * Determines if the subscription is active.
+     *
+     * @return <tt>true</tt> if the subscription has been started and not yet stopped, <tt>false</tt> otherwise
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Returns the name of the subscription.
+     *
+     * @return the name which is used to persist the resume tokens
+     */
+    public String getName() {
+        return name;
+    }
+
+    private void watchRealm(String realm, Map<String, EntityDescriptor> collections) {
+        while (running) {
+            try {
+                consumeChanges(realm, collections);
+            } catch (Exception e) {
+                Exceptions.handle()
+                          .to(Mongo.LOG)
+                          .error(e)
+                          .withSystemErrorMessage("The change stream '%s' failed for database '%s': %s (%s)",
+                                                  name,
+                                                  realm)
+                          .handle();
+                awaitRetry();
+            }
+        }
+    }
+
+    private void awaitRetry() {
+        for (int i = 0; i < RETRY_DELAY_SECONDS && running; i++) {
+            Wait.seconds(1);
+        }
+    }
+
+    private void consumeChanges(String realm, Map<String, EntityDescriptor> collections) {
+        Document collectionFilter = new Document("ns.coll", new Document("$in", new ArrayList<>(collections.keySet())));
+        List<Document> pipeline = Collections.singletonList(new Document("$match", collectionFilter));
+        ChangeStreamIterable<Document> changes = mongo.db(realm)
+                                                      .watch(pipeline)
+                                                      .fullDocument(FullDocument.UPDATE_LOOKUP)
+                                                      .maxAwaitTime(MAX_AWAIT_TIME_MILLIS, TimeUnit.MILLISECONDS);
+        BsonDocument resumeToken = loadResumeToken(realm);
+        if (resumeToken != null) {
+            changes.resumeAfter(resumeToken);
+        }
+
+        BsonDocument unpersistedToken = null;
+        long lastPersisted = System.currentTimeMillis();
+        try (MongoCursor<ChangeStreamDocument<Document>> cursor = changes.iterator()) {
+            while (running) {
+                ChangeStreamDocument<Document> change = cursor.tryNext();
+                if (change != null) {
+                    handleChange(change, collections);
+                    unpersistedToken = change.getResumeToken();
+                }
+
+                if (unpersistedToken != null
+                    && System.currentTimeMillis() - lastPersisted > RESUME_TOKEN_PERSIST_INTERVAL_MILLIS) {
+                    persistResumeToken(realm, unpersistedToken);
+                    unpersistedToken = null;
+                    lastPersisted = System.currentTimeMillis();
+                }
+            }
+        } finally {
+            if (unpersistedToken != null) {
+                persistResumeToken(realm, unpersistedToken);
+            }
+        }
+    }
+
+    private void handleChange(ChangeStreamDocument<Document> change, Map<String, EntityDescriptor> collections) {
+        MongoChangeEvent.Type type = determineType(change);
+        if (type == null || change.getNamespace() == null) {
+            return;
+        }
+
+        EntityDescriptor descriptor = collections.get(change.getNamespace().getCollectionName());
+        if (descriptor == null) {
+            return;
+        }
+
+        MongoChangeEvent event = createEvent(change, type, descriptor);
+        if (event.getId() != null) {
+            fieldLookupCache.invalidate(descriptor, event.getId());
+        }
+
+        try {
+            if (handler != null) {
+                handler.accept(event);
+            }
+        } catch (Exception e) {
+            // Aborts consuming the stream, so that the resume token isn't advanced and the change is re-delivered...
+            throw Exceptions.handle()
+                            .to(Mongo.LOG)
+                            .error(e)
+                            .withSystemErrorMessage("The change stream '%s' failed to handle the change '%s': %s (%s)",
+                                                    name,
+                                                    event)
+                            .handle();
+        }
+    }
+
+    @Nullable
+    private MongoChangeEvent.Type determineType(ChangeStreamDocument<Document> change) {
+        switch (change.getOperationType()) {
+            case INSERT:
+                return MongoChangeEvent.Type.INSERT;
+            case UPDATE:
+                return MongoChangeEvent.Type.UPDATE;
+            case REPLACE:
+                return MongoChangeEvent.Type.REPLACE;
+            case DELETE:
+                return MongoChangeEvent.Type.DELETE;
+            default:
+                return null;
+        }
+    }
+
+    private MongoChangeEvent createEvent(ChangeStreamDocument<Document> change,
+                                         MongoChangeEvent.Type type,
+                                         EntityDescriptor descriptor) {
+        Set<String> updatedFields = new HashSet<>();
+        Set<String> removedFields = new HashSet<>();
+        UpdateDescription updateDescription = change.getUpdateDescription();
+        if (updateDescription != null) {
+            if (updateDescription.getUpdatedFields() != null) {
+                updatedFields.addAll(updateDescription.getUpdatedFields().keySet());
+            }
+            if (updateDescription.getRemovedFields() != null) {
+                removedFields.addAll(updateDescription.getRemovedFields());
+            }
+        }
+
+        Document fullDocument = change.getFullDocument();
+        return new MongoChangeEvent(descriptor,
+                                    type,
+                                    determineObjectId(change),
+                                    fullDocument == null ? null : fullDocument.getString(MongoEntity.ID.toString()),
+                                    updatedFields,
+                                    removedFields,
+                                    fullDocument == null ? null : new Doc(fullDocument));
+    }
+
+    @Nullable
+    private Object determineObjectId(ChangeStreamDocument<Document> change) {
+        if (change.getDocumentKey() == null) {
+            return null;
+        }
+
+        BsonValue objectId = change.getDocumentKey().get(Mango.ID_FIELD);
+        if (objectId != null && objectId.isObjectId()) {
+            return objectId.asObjectId().getValue();
+        }
+
+        return objectId;
+    }
+
+    @Nullable
+    private BsonDocument loadResumeToken(String realm) {
+        return mongo.find(realm)
+                    .where(MongoEntity.ID, name)
+                    .singleIn(COLLECTION_RESUME_TOKENS)
+                    .map(doc -> doc.getUnderlyingObject().get(FIELD_RESUME_TOKEN, Document.class))
+                    .map(token -> token.toBsonDocument(BsonDocument.class, MongoClient.getDefaultCodecRegistry()))
+                    .orElse(null);
+    }
+
+    private void persistResumeToken(String realm, BsonDocument resumeToken) {
+        try {
+            mongo.update(realm)
+                 .upsert()
+                 .set(FIELD_RESUME_TOKEN, resumeToken)
+                 .where(MongoEntity.ID, name)
+                 .executeFor(COLLECTION_RESUME_TOKENS);
+        } catch (Exception e) {
+            Exceptions.handle()
+                      .to(Mongo.LOG)
+                      .error(e)
+                      .withSystemErrorMessage("Failed to persist the resume token of the change stream '%s': %s (%s)",
+                                              name)
+                      .handle();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.mongo;
+
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionPoolListenerAdapter;
+import com.mongodb.event.ConnectionPoolWaitQueueEnteredEvent;
+import com.mongodb.event.ConnectionPoolWaitQueueExitedEvent;
+import sirius.kernel.health.Average;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the statistics of all connection pools of all {@link Mongo} clients.
+ * <p>
+ * These are reported by the {@link MongoMetricsProvider}.
+ */
+class MongoConnectionPoolMonitor extends ConnectionPoolListenerAdapter {
+
+    private final AtomicInteger checkedOutConnections = new AtomicInteger();
+    private final AtomicInteger waitQueueSize = new AtomicInteger();
+    private final Average waitTime = new Average();
+
+    /**
+     * The wait queue events are emitted by the thread which requests a connection, therefore we can measure
+     * the wait time per thread.
+     */
+    private final ThreadLocal<Long> waitQueueEntered = new ThreadLocal<>();
+
+    @Override
+    public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+        checkedOutConnections.incrementAndGet();
+    }
+
+    @Override
+    public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+        checkedOutConnections.decrementAndGet();
+    }
+
+    @Override
+    public void waitQueueEntered(ConnectionPoolWaitQueueEnteredEvent event) {
+        waitQueueSize.incrementAndGet();
+        waitQueueEntered.set(System.nanoTime());
+    }
+
+    @Override
+    public void waitQueueExited(ConnectionPoolWaitQueueExitedEvent event) {
+        waitQueueSize.decrementAndGet();
+        Long enteredAt = waitQueueEntered.get();
+        if (enteredAt != null) {
+            waitQueueEntered.remove();
+            waitTime.addValue((System.nanoTime() - enteredAt) / 1_000_000);
+        }
+    }
+
+    /**
+     * Returns the number of connections which are currently in use.
+     *
+     * @return the number of checked out connections of all pools
+     */
+    public int getCheckedOutConnections() {
+        return checkedOutConnections.get();
+    }
+
+    /**
+     * Returns the number of threads which are currently waiting for a connection.
+     *
+     * @return the number of threads in the wait queues of all pools
+     */
+    public int getWaitQueueSize() {
+        return waitQueueSize.get();
+    }
+
+    /**
+     * Returns the average time threads had to wait for a connection.
+     *
+     * @return the average wait time in milliseconds
+     */
+    public Average getWaitTime() {
+        return waitTime;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.mongo;
+
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import sirius.db.mixing.CounterBuffer;
+import sirius.db.mixing.EntityDescriptor;
+import sirius.kernel.Stoppable;
+import sirius.kernel.commons.Watch;
+import sirius.kernel.di.std.Part;
+import sirius.kernel.di.std.Register;
+import sirius.kernel.timer.EveryTenSeconds;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Provides a {@link CounterBuffer} for {@link MongoEntity mongo entities}.
+ * <p>
+ * All pending deltas of a document are written by a single <tt>$inc</tt> update. The updates of all documents of a
+ * collection are sent as one unordered bulk write.
+ */
+@Register(classes = {MongoCounterBuffer.class, EveryTenSeconds.class, Stoppable.class})
+public class MongoCounterBuffer extends CounterBuffer<MongoEntity> {
+
+    @Part
+    private static Mongo mongo;
+
+    @Override
+    protected void writeDeltas(EntityDescriptor ed, Map<Object, Map<String, Long>> deltas) throws Exception {
+        List<WriteModel<Document>> updates = new ArrayList<>(deltas.size());
+        for (Map.Entry<Object, Map<String, Long>> document : deltas.entrySet()) {
+            Document increments = new Document();
+            increments.putAll(document.getValue());
+            updates.add(new UpdateOneModel<>(Filters.eq(MongoEntity.ID.getName(), document.getKey()),
+                                             new Document("$inc", increments)));
+        }
+
+        Watch w = Watch.start();
+        try {
+            mongo.db(ed.getRealm())
+                 .getCollection(ed.getRelationName())
+                 .bulkWrite(updates, new BulkWriteOptions().ordered(false));
+        } finally {
+            mongo.notifyWrite(ed.getRealm(), ed.getRelationName());
+            mongo.callDuration.addValue(w.elapsedMillis());
+            mongo.recordOperation(Mongo.OPERATION_BULK_WRITE, ed.getRelationName(), w, updates.size());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.mongo;
+
+import com.mongodb.MongoClient;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonTypeClassMap;
+import org.bson.codecs.BsonTypeCodecMap;
+import org.bson.codecs.Decoder;
+import org.bson.codecs.DecoderContext;
+import org.bson.io.ByteBufferBsonInput;
+import sirius.db.mixing.BaseMapper;
+import sirius.db.mixing.EntityDescriptor;
+import sirius.db.mixing.Property;
+import sirius.kernel.commons.Value;
+import sirius.kernel.health.Exceptions;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes BSON documents directly into entities of a given type.
+ * <p>
+ * Instead of decoding the whole document into a {@link org.bson.Document}, wrapping it in a {@link Doc} and then
+ * copying the values into the entity, this reads the BSON stream field by field and loads each value directly into
+ * its property. Fields which aren't mapped by the entity are skipped without being materialized. Mapped fields are
+ * decoded just like the default document codec would (nested documents become {@link org.bson.Document documents},
+ * arrays become lists), so that each property receives the same value as before.
+ * <p>
+ * Note that this is only a {@link Decoder} and not a full codec, as entities are always written via {@link Mango}.
+ * Therefore it isn't part of any codec registry, but applied by {@link Finder} to the raw documents it reads.
+ *
+ * @param <E> the type of entities being decoded
+ * @see Mongo#getEntityDecoder(EntityDescriptor)
+ */
+class MongoEntityDecoder<E extends MongoEntity> implements Decoder<E> {
+
+    private static final DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+
+    private final EntityDescriptor descriptor;
+    private final Map<String, Property> properties = new HashMap<>();
+    private final BsonTypeCodecMap codecs =
+            new BsonTypeCodecMap(new BsonTypeClassMap(), MongoClient.getDefaultCodecRegistry());
+
+    MongoEntityDecoder(EntityDescriptor descriptor) {
+        this.descriptor = descriptor;
+
+        for (Property property : descriptor.getProperties()) {
+            properties.put(property.getPropertyName(), property);
+        }
+    }
+
+    /**
+     * Decodes the given raw document into an entity.
+     *
+     * @param document the document as fetched from the database
+     * @return the entity which contains the mapped fields of the document
+     */
+    E decode(RawBsonDocument document) {
+        try (BsonBinaryReader reader = new BsonBinaryReader(new ByteBufferBsonInput(document.getByteBuffer()))) {
+            return decode(reader, DECODER_CONTEXT);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E decode(BsonReader reader, DecoderContext decoderContext) {
+        try {
+            E entity = (E) descriptor.newInstance();
+
+            reader.readStartDocument();
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                String fieldName = reader.readName();
+                Property property = properties.get(fieldName);
+                if (property != null) {
+                    descriptor.loadProperty(Mango.class, entity, property, Value.of(readValue(reader, decoderContext)));
+                } else if (descriptor.isVersioned() && BaseMapper.VERSION.equals(fieldName)) {
+                    entity.setVersion(Value.of(readValue(reader, decoderContext)).asInt(0));
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.readEndDocument();
+
+            return entity;
+        } catch (Exception e) {
+            throw Exceptions.handle(Mongo.LOG, e);
+        }
+    }
+
+    private Object readValue(BsonReader reader, DecoderContext decoderContext) {
+        BsonType bsonType = reader.getCurrentBsonType();
+        if (bsonType == BsonType.NULL) {
+            reader.readNull();
+            return null;
+        }
+
+        return codecs.get(bsonType).decode(reader, decoderContext);
+    }
+}
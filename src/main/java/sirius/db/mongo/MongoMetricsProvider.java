@@ -32,6 +32,52 @@ public class MongoMetricsProvider implements MetricProvider {
                                          "MongoDB Slow Queries",
                                          mongo.numSlowQueries.getCount(),
                                          "/min");
+            collector.metric("mongo_pool_checked_out",
+                             "mongo-pool-checked-out",
+                             "MongoDB Connections In Use",
+                             mongo.poolMonitor.getCheckedOutConnections(),
+                             null);
+            collector.metric("mongo_pool_wait_queue",
+                             "mongo-pool-wait-queue",
+                             "MongoDB Connection Wait Queue",
+                             mongo.poolMonitor.getWaitQueueSize(),
+                             null);
+            collector.metric("mongo_pool_wait_time",
+                             "mongo-pool-wait-time",
+                             "MongoDB Connection Wait Time",
+                             mongo.poolMonitor.getWaitTime().getAndClear(),
+                             "ms");
+
+            for (MongoOperationStatistics statistics : mongo.getOperationStatistics()) {
+                gatherOperationStatistics(collector, statistics);
+            }
+        }
+    }
+
+    /**
+     * Reports the latency percentiles and number of documents for a collection and operation.
+     * <p>
+     * To keep the number of metrics manageable, only pairs which were actually used within the last interval are
+     * reported.
+     */
+    private void gatherOperationStatistics(MetricsCollector collector, MongoOperationStatistics statistics) {
+        MongoOperationStatistics.Snapshot snapshot = statistics.getAndClear();
+        if (snapshot.getCalls() == 0) {
+            return;
         }
+
+        String code = "mongo_" + statistics.getOperation() + "_" + statistics.getCollection();
+        String name = "mongo-" + statistics.getOperation() + "-" + statistics.getCollection();
+        String label = "MongoDB " + statistics.getOperation() + " " + statistics.getCollection();
+
+        collector.metric(code + "_calls", name + "-calls", label + " Calls", snapshot.getCalls(), "/min");
+        collector.metric(code + "_documents",
+                         name + "-documents",
+                         label + " Documents",
+                         snapshot.getDocuments(),
+                         "/min");
+        collector.metric(code + "_p50", name + "-p50", label + " (p50)", snapshot.getPercentileMillis(50), "ms");
+        collector.metric(code + "_p95", name + "-p95", label + " (p95)", snapshot.getPercentileMillis(95), "ms");
+        collector.metric(code + "_p99", name + "-p99", label + " (p99)", snapshot.getPercentileMillis(99), "ms");
     }
 }
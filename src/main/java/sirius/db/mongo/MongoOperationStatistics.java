@@ -0,0 +1,168 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.mongo;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the latency and number of documents of a single kind of operation on a single collection.
+ * <p>
+ * Latencies are collected in a histogram with fixed (roughly logarithmic) buckets, so that percentiles can be
+ * estimated without keeping individual measurements. Estimated percentiles are reported as upper bound of the bucket
+ * which contains the requested rank.
+ *
+ * @see Mongo#getOperationStatistics()
+ */
+public class MongoOperationStatistics {
+
+    /**
+     * Contains the upper bounds (in milliseconds) of the latency buckets. Everything above the last bound is
+     * counted in an additional overflow bucket.
+     */
+    private static final long[] BUCKET_BOUNDS =
+            {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10_000, 30_000, 60_000, 300_000};
+
+    private final String operation;
+    private final String collection;
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong documents = new AtomicLong();
+    private final AtomicLong totalMillis = new AtomicLong();
+
+    /**
+     * Represents the statistics of an interval as returned by {@link #getAndClear()}.
+     */
+    public static class Snapshot {
+        private final long calls;
+        private final long documents;
+        private final long totalMillis;
+        private final long[] buckets;
+
+        protected Snapshot(long calls, long documents, long totalMillis, long[] buckets) {
+            this.calls = calls;
+            this.documents = documents;
+            this.totalMillis = totalMillis;
+            this.buckets = buckets;
+        }
+
+        /**
+         * Returns the number of recorded operations.
+         *
+         * @return the number of operations
+         */
+        public long getCalls() {
+            return calls;
+        }
+
+        /**
+         * Returns the number of documents read or written by the recorded operations.
+         *
+         * @return the number of documents
+         */
+        public long getDocuments() {
+            return documents;
+        }
+
+        /**
+         * Returns the average latency.
+         *
+         * @return the average latency in milliseconds
+         */
+        public double getAverageMillis() {
+            return calls == 0 ? 0 : (double) totalMillis / calls;
+        }
+
+        /**
+         * Estimates the given percentile of the latency.
+         *
+         * @param percentile the percentile to estimate (e.g. 95 or 99.9)
+         * @return the estimated upper bound of the percentile in milliseconds. If the percentile falls into the
+         * overflow bucket, the maximal bucket bound is reported.
+         */
+        public long getPercentileMillis(double percentile) {
+            long total = 0;
+            for (long bucket : buckets) {
+                total += bucket;
+            }
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(total * percentile / 100d);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return BUCKET_BOUNDS[i];
+                }
+            }
+
+            return BUCKET_BOUNDS[BUCKET_BOUNDS.length - 1];
+        }
+    }
+
+    protected MongoOperationStatistics(String operation, String collection) {
+        this.operation = operation;
+        this.collection = collection;
+    }
+
+    /**
+     * Records a single operation.
+     *
+     * @param millis    the duration of the operation in milliseconds
+     * @param documents the number of documents read or written
+     */
+    public void record(long millis, long documents) {
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS.length && millis > BUCKET_BOUNDS[bucket]) {
+            bucket++;
+        }
+
+        buckets.incrementAndGet(bucket);
+        calls.incrementAndGet();
+        totalMillis.addAndGet(millis);
+        this.documents.addAndGet(documents);
+    }
+
+    /**
+     * Returns the statistics recorded since the last call and resets all counters.
+     * <p>
+     * Note that the counters are reset one after another, so that an operation which is recorded concurrently might
+     * be partially attributed to the next interval.
+     *
+     * @return a snapshot of the recorded statistics
+     */
+    public Snapshot getAndClear() {
+        long[] bucketCounts = new long[buckets.length()];
+        for (int i = 0; i < bucketCounts.length; i++) {
+            bucketCounts[i] = buckets.getAndSet(i, 0);
+        }
+
+        return new Snapshot(calls.getAndSet(0), documents.getAndSet(0), totalMillis.getAndSet(0), bucketCounts);
+    }
+
+    /**
+     * Returns the operation being recorded.
+     *
+     * @return the name of the operation like {@link Mongo#OPERATION_FIND}
+     */
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * Returns the collection on which the operations are performed.
+     *
+     * @return the name of the collection
+     */
+    public String getCollection() {
+        return collection;
+    }
+}
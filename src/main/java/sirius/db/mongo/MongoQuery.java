@@ -8,21 +8,39 @@
 
 package sirius.db.mongo;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.ReadPreference;
+import sirius.db.mixing.BaseMapper;
+import sirius.db.mixing.CountAccuracy;
+import sirius.db.mixing.CountCache;
 import sirius.db.mixing.EntityDescriptor;
 import sirius.db.mixing.Mapping;
 import sirius.db.mixing.Mixing;
+import sirius.db.mixing.ParallelScan;
+import sirius.db.mixing.Property;
+import sirius.db.mixing.annotations.ProjectMappedFields;
 import sirius.db.mixing.query.Query;
 import sirius.db.mixing.query.constraints.FilterFactory;
 import sirius.db.mongo.constraints.MongoConstraint;
 import sirius.db.mongo.facets.MongoFacet;
+import sirius.kernel.async.TaskContext;
+import sirius.kernel.commons.Tuple;
 import sirius.kernel.di.std.Part;
 import sirius.kernel.health.Exceptions;
 
 import javax.annotation.Nullable;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 /**
  * Creates a new query against MongoDB.
@@ -34,10 +52,39 @@ public class MongoQuery<E extends MongoEntity> extends Query<MongoQuery<E>, E, M
     private final Finder finder;
 
     private List<MongoFacet> facets;
+    private Mapping[] selectedFields;
+    private boolean mappedFieldsOnly;
+    private Set<String> excludedFields;
+    private List<Tuple<Mapping, Boolean>> sortFields;
+    private boolean useCountCache;
+
+    /**
+     * Contains the number of ids sampled per partition to determine the split points of a parallel scan.
+     */
+    private static final int SAMPLES_PER_PARTITION = 10;
+
+    /**
+     * Contains the number of partitions created per thread of a parallel scan, so that threads which process
+     * sparse ranges can pick up further work.
+     */
+    private static final int PARTITIONS_PER_THREAD = 4;
+
+    /**
+     * Contains the number of entities fetched per query by {@link #iterateBlockwise(Predicate)}.
+     */
+    private static final int BLOCK_SIZE = 1000;
+
+    /**
+     * Contains the name of the executor used to run parallel scans.
+     */
+    private static final String EXECUTOR_PARALLEL_SCAN = "mongo-parallel-scan";
 
     @Part
     private static Mango mango;
 
+    @Part
+    private static CountCache countCache;
+
     @Part
     private static Mongo mongo;
 
@@ -49,6 +96,7 @@ public class MongoQuery<E extends MongoEntity> extends Query<MongoQuery<E>, E, M
     protected MongoQuery(EntityDescriptor descriptor) {
         super(descriptor);
         this.finder = mongo.find(descriptor.getRealm());
+        this.mappedFieldsOnly = descriptor.getAnnotation(ProjectMappedFields.class).isPresent();
     }
 
     /**
@@ -59,10 +107,138 @@ public class MongoQuery<E extends MongoEntity> extends Query<MongoQuery<E>, E, M
      */
     public MongoQuery<E> fields(Mapping... fieldsToReturn) {
         finder.selectFields(fieldsToReturn);
+        this.selectedFields = fieldsToReturn;
 
         return this;
     }
 
+    /**
+     * Only fetches the fields which are mapped by the entity.
+     * <p>
+     * Fields which are present in the documents but not known to the entity (e.g. legacy fields) are then neither
+     * transferred nor decoded. This is the default for entities which wear {@link ProjectMappedFields}. This has no
+     * effect if {@link #fields(Mapping...)} is used.
+     *
+     * @return the query itself for fluent method calls
+     */
+    public MongoQuery<E> mappedFieldsOnly() {
+        this.mappedFieldsOnly = true;
+        return this;
+    }
+
+    /**
+     * Skips the given fields when fetching entities.
+     * <p>
+     * This can be used to skip expensive fields (like large embedded lists) which aren't required by the caller.
+     * This has no effect if {@link #fields(Mapping...)} is used. Note that the excluded fields of the resulting
+     * entities are left empty. As only changed fields are written, updating such an entity won't clear these fields
+     * in the database. However, the in-memory values don't reflect the stored data, therefore any logic which reads
+     * them (e.g. save handlers, validations or values derived from these fields) will see empty or stale values.
+     *
+     * @param fieldsToExclude the fields to skip
+     * @return the query itself for fluent method calls
+     */
+    public MongoQuery<E> excludeFields(Mapping... fieldsToExclude) {
+        if (excludedFields == null) {
+            excludedFields = new HashSet<>();
+        }
+        for (Mapping field : fieldsToExclude) {
+            excludedFields.add(field.toString());
+        }
+
+        return this;
+    }
+
+    /**
+     * Applies the default projection unless the fields have been selected explicitly.
+     *
+     * @param target the finder to apply the projection to
+     */
+    private void applyProjection(Finder target) {
+        applyProjection(target, Collections.emptyList());
+    }
+
+    /**
+     * Applies the default projection but ensures that the given fields are fetched in any case.
+     *
+     * @param target         the finder to apply the projection to
+     * @param requiredFields the fields which have to be present in the fetched entities
+     */
+    private void applyProjection(Finder target, List<Mapping> requiredFields) {
+        Set<String> requiredFieldNames = requiredFields.stream().map(Mapping::toString).collect(Collectors.toSet());
+        if (selectedFields != null) {
+            Set<String> fields = Arrays.stream(selectedFields).map(Mapping::toString).collect(Collectors.toSet());
+            fields.addAll(requiredFieldNames);
+            target.selectFields(fields.toArray(new String[0]));
+        } else if (mappedFieldsOnly) {
+            String[] fields = determineMappedFields().stream()
+                                                     .filter(field -> excludedFields == null
+                                                                      || !excludedFields.contains(field)
+                                                                      || requiredFieldNames.contains(field))
+                                                     .toArray(String[]::new);
+            if (fields.length == 0) {
+                // An empty projection would fetch all fields, therefore we only fetch the id...
+                target.selectFields(MongoEntity.ID);
+            } else {
+                target.selectFields(fields);
+            }
+        } else if (excludedFields != null) {
+            target.excludeFields(excludedFields.stream()
+                                               .filter(field -> !requiredFieldNames.contains(field))
+                                               .toArray(String[]::new));
+        }
+    }
+
+    private List<String> determineMappedFields() {
+        List<String> mappedFields = new ArrayList<>();
+        for (Property property : descriptor.getProperties()) {
+            mappedFields.add(property.getPropertyName());
+        }
+        if (descriptor.isVersioned()) {
+            mappedFields.add(BaseMapper.VERSION);
+        }
+
+        return mappedFields;
+    }
+
+    /**
+     * Executes the query without the collation configured in <tt>mongo.collationLocale</tt>.
+     *
+     * @return the query itself for fluent method calls
+     * @see Finder#withoutCollation()
+     */
+    public MongoQuery<E> withoutCollation() {
+        finder.withoutCollation();
+        return this;
+    }
+
+    /**
+     * Specifies which members of a replica set may be used to execute this query.
+     *
+     * @param readPreference the read preference to use
+     * @return the query itself for fluent method calls
+     * @see Finder#readPreference(ReadPreference)
+     */
+    public MongoQuery<E> readPreference(ReadPreference readPreference) {
+        finder.readPreference(readPreference);
+        return this;
+    }
+
+    /**
+     * Permits to execute the query on a secondary, as long as it doesn't lag behind the primary for more than the
+     * given duration.
+     * <p>
+     * This should be used for exports, facets and other heavy reads which can tolerate slightly outdated data.
+     *
+     * @param maxStaleness the maximal replication lag of a secondary to be used
+     * @return the query itself for fluent method calls
+     * @see Finder#readFromSecondary(Duration)
+     */
+    public MongoQuery<E> readFromSecondary(Duration maxStaleness) {
+        finder.readFromSecondary(maxStaleness);
+        return this;
+    }
+
     @Override
     public MongoQuery<E> eq(Mapping key, Object value) {
         finder.where(key.toString(), value);
@@ -90,15 +266,24 @@ public class MongoQuery<E extends MongoEntity> extends Query<MongoQuery<E>, E, M
     @Override
     public MongoQuery<E> orderAsc(Mapping field) {
         finder.orderByAsc(field.toString());
+        addSortField(field, true);
         return this;
     }
 
     @Override
     public MongoQuery<E> orderDesc(Mapping field) {
         finder.orderByDesc(field.toString());
+        addSortField(field, false);
         return this;
     }
 
+    private void addSortField(Mapping field, boolean ascending) {
+        if (sortFields == null) {
+            sortFields = new ArrayList<>();
+        }
+        sortFields.add(Tuple.create(field, ascending));
+    }
+
     /**
      * Adds a limit to the query.
      *
@@ -130,12 +315,383 @@ public class MongoQuery<E extends MongoEntity> extends Query<MongoQuery<E>, E, M
 
     @Override
     public void iterate(Predicate<E> resultHandler) {
-        finder.eachIn(descriptor.getRelationName(), doc -> resultHandler.test(Mango.make(descriptor, doc)));
+        applyProjection(finder);
+        finder.eachEntityIn(descriptor, resultHandler);
+    }
+
+    /**
+     * Calls the given function on all items in the result, as long as it returns <tt>true</tt>.
+     * <p>
+     * In contrast to {@link #iterate(Predicate)}, this method is suitable for large result sets or long processing
+     * times. As <tt>iterate</tt> keeps a cursor open while the handler is invoked, the server might discard the cursor
+     * after being idle for too long (10 minutes by default). Therefore we fetch a block of entities, close the cursor
+     * and then invoke the handler for each of them. The next block is then selected by starting right after the
+     * {@link MongoEntity#ID id} of the last processed entity. If the query has a sort order, the next block starts
+     * right after the sort values of the last processed entity, using the id as tiebreaker. Note that a blockwise
+     * iteration can only sort by properties of the entity.
+     * <p>
+     * Note however, that there is a possibility, that we either miss an entity or even process an entity twice if a
+     * concurrent modification happens, which then changes the result set of this query.
+     *
+     * @param handler the handler to be invoked for each item in the result. Should return <tt>true</tt>
+     *                to continue processing or <tt>false</tt> to abort processing of the result set.
+     */
+    public void iterateBlockwise(Predicate<E> handler) {
+        iterateBlockwiseAfter(null, handler);
+    }
+
+    /**
+     * Calls the given function on all items in the result.
+     *
+     * @param handler the handler to be invoked for each item in the result
+     * @see #iterateBlockwise(Predicate)
+     */
+    public void iterateBlockwiseAll(Consumer<E> handler) {
+        iterateBlockwise(entity -> {
+            handler.accept(entity);
+            return true;
+        });
+    }
+
+    /**
+     * Resumes a blockwise iteration right after the entity with the given id.
+     * <p>
+     * This can be used to restart a long running job which was interrupted, by remembering the id of the last
+     * successfully processed entity. For queries with a sort order, the entity has to still match the query, as its
+     * sort values determine where to resume. If these values have been changed in the meantime, the iteration
+     * resumes at the new position of the entity.
+     *
+     * @param lastProcessedId the id of the last entity which has already been processed or <tt>null</tt> to start at
+     *                        the beginning
+     * @param handler         the handler to be invoked for each item in the result. Should return <tt>true</tt>
+     *                        to continue processing or <tt>false</tt> to abort processing of the result set.
+     * @see #iterateBlockwise(Predicate)
+     */
+    public void iterateBlockwiseAfter(@Nullable String lastProcessedId, Predicate<E> handler) {
+        if (limit > 0 || skip > 0) {
+            throw Exceptions.handle()
+                            .to(Mongo.LOG)
+                            .withSystemErrorMessage(
+                                    "A blockwise iteration doesn't support 'limit' or 'skip'. Query: %s",
+                                    this)
+                            .handle();
+        }
+
+        List<Tuple<Mapping, Boolean>> keyFields = determineBlockwiseKeyFields();
+        List<Object> lastKey = lastProcessedId == null ? null : loadBlockwiseKey(lastProcessedId, keyFields);
+        TaskContext context = TaskContext.get();
+        while (context.isActive()) {
+            Finder blockFinder = finder.copyFilters();
+            applyProjection(blockFinder, keyFields.stream().map(Tuple::getFirst).collect(Collectors.toList()));
+            for (Tuple<Mapping, Boolean> keyField : keyFields) {
+                if (Boolean.TRUE.equals(keyField.getSecond())) {
+                    blockFinder.orderByAsc(keyField.getFirst());
+                } else {
+                    blockFinder.orderByDesc(keyField.getFirst());
+                }
+            }
+            if (lastKey != null) {
+                blockFinder.where(buildBlockwiseKeyConstraint(keyFields, lastKey));
+            }
+            List<E> block = fetchBlock(blockFinder.limit(BLOCK_SIZE));
+
+            if (!processBlock(block, handler, context) || block.size() < BLOCK_SIZE) {
+                return;
+            }
+
+            // Start the next query right after the last entity of this block...
+            lastKey = extractBlockwiseKey(block.get(block.size() - 1), keyFields);
+        }
+    }
+
+    /**
+     * Determines the fields which identify the position within a blockwise iteration.
+     * <p>
+     * These are the sort fields of the query followed by the {@link MongoEntity#ID id} as unique tiebreaker.
+     *
+     * @return the fields along with <tt>true</tt> for an ascending or <tt>false</tt> for a descending order
+     */
+    private List<Tuple<Mapping, Boolean>> determineBlockwiseKeyFields() {
+        List<Tuple<Mapping, Boolean>> keyFields = new ArrayList<>();
+        if (sortFields != null) {
+            for (Tuple<Mapping, Boolean> sortField : sortFields) {
+                if (descriptor.findProperty(sortField.getFirst().toString()) == null) {
+                    throw Exceptions.handle()
+                                    .to(Mongo.LOG)
+                                    .withSystemErrorMessage(
+                                            "A blockwise iteration can only sort by properties of the entity but"
+                                            + " '%s' isn't one. Query: %s",
+                                            sortField.getFirst(),
+                                            this)
+                                    .handle();
+                }
+                keyFields.add(sortField);
+                if (MongoEntity.ID.equals(sortField.getFirst())) {
+                    // The id is unique, therefore all subsequent sort fields are irrelevant...
+                    return keyFields;
+                }
+            }
+        }
+        keyFields.add(Tuple.create(MongoEntity.ID, true));
+
+        return keyFields;
+    }
+
+    private List<Object> loadBlockwiseKey(String lastProcessedId, List<Tuple<Mapping, Boolean>> keyFields) {
+        if (keyFields.size() == 1 && MongoEntity.ID.equals(keyFields.get(0).getFirst())) {
+            return Collections.singletonList(lastProcessedId);
+        }
+
+        // For a sorted query, we need the sort values of the last processed entity to resume...
+        Finder keyFinder = finder.copyFilters();
+        applyProjection(keyFinder, keyFields.stream().map(Tuple::getFirst).collect(Collectors.toList()));
+        List<E> lastProcessed = fetchBlock(keyFinder.where(MongoEntity.ID, lastProcessedId).limit(1));
+        if (lastProcessed.isEmpty()) {
+            throw Exceptions.handle()
+                            .to(Mongo.LOG)
+                            .withSystemErrorMessage(
+                                    "Cannot resume a blockwise iteration after %s, as this entity no longer matches"
+                                    + " the query. Query: %s",
+                                    lastProcessedId,
+                                    this)
+                            .handle();
+        }
+
+        return extractBlockwiseKey(lastProcessed.get(0), keyFields);
+    }
+
+    private List<Object> extractBlockwiseKey(E entity, List<Tuple<Mapping, Boolean>> keyFields) {
+        List<Object> key = new ArrayList<>(keyFields.size());
+        for (Tuple<Mapping, Boolean> keyField : keyFields) {
+            if (MongoEntity.ID.equals(keyField.getFirst())) {
+                key.add(entity.getId());
+            } else {
+                key.add(descriptor.findProperty(keyField.getFirst().toString())
+                                  .getValueForDatasource(Mango.class, entity));
+            }
+        }
+
+        return key;
+    }
+
+    /**
+     * Builds a constraint which matches all entities which are sorted after the given key.
+     * <p>
+     * For the sort fields <tt>a</tt>, <tt>b</tt> and the <tt>id</tt> this yields
+     * <tt>a &gt; a0 OR (a = a0 AND b &gt; b0) OR (a = a0 AND b = b0 AND id &gt; id0)</tt>, where the comparisons
+     * are flipped for descending fields. As MongoDB sorts <tt>null</tt> before all other values, these are handled
+     * explicitly.
+     *
+     * @param keyFields the fields which make up the key
+     * @param lastKey   the key of the last processed entity
+     * @return a constraint which selects all subsequent entities
+     */
+    private MongoConstraint buildBlockwiseKeyConstraint(List<Tuple<Mapping, Boolean>> keyFields,
+                                                        List<Object> lastKey) {
+        List<MongoConstraint> alternatives = new ArrayList<>();
+        List<MongoConstraint> equalPrefix = new ArrayList<>();
+        for (int i = 0; i < keyFields.size(); i++) {
+            Mapping field = keyFields.get(i).getFirst();
+            boolean ascending = Boolean.TRUE.equals(keyFields.get(i).getSecond());
+            Object value = lastKey.get(i);
+            MongoConstraint after = buildSortedAfterConstraint(field, ascending, value);
+            if (after != null) {
+                List<MongoConstraint> alternative = new ArrayList<>(equalPrefix);
+                alternative.add(after);
+                alternatives.add(QueryBuilder.FILTERS.and(alternative));
+            }
+            equalPrefix.add(QueryBuilder.FILTERS.eq(field, value));
+        }
+
+        return QueryBuilder.FILTERS.or(alternatives);
+    }
+
+    @Nullable
+    private MongoConstraint buildSortedAfterConstraint(Mapping field, boolean ascending, @Nullable Object value) {
+        if (ascending) {
+            return value == null ? QueryBuilder.FILTERS.filled(field) : QueryBuilder.FILTERS.gt(field, value);
+        }
+
+        // In descending order, null values come last...
+        return value == null ?
+               null :
+               QueryBuilder.FILTERS.or(QueryBuilder.FILTERS.lt(field, value), QueryBuilder.FILTERS.notFilled(field));
+    }
+
+    private List<E> fetchBlock(Finder blockFinder) {
+        List<E> block = new ArrayList<>(BLOCK_SIZE);
+        blockFinder.eachEntityIn(descriptor, (E entity) -> {
+            block.add(entity);
+            return true;
+        });
+
+        return block;
+    }
+
+    private boolean processBlock(List<E> block, Predicate<E> handler, TaskContext context) {
+        for (E entity : block) {
+            if (!context.isActive() || !handler.test(entity)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Processes all matching entities using several threads.
+     * <p>
+     * The {@link MongoEntity#ID id} space of the matching documents is split into ranges (using split points
+     * determined by a <tt>$sample</tt> of the matching ids). These ranges are then processed by up to
+     * <tt>parallelism</tt> threads, each one using its own cursor. Therefore the handler has to be thread-safe and the
+     * entities are passed in no particular order. Once the current {@link TaskContext} is cancelled or the handler
+     * throws an exception, all threads stop processing. This call blocks until all threads have completed and reports
+     * its progress to the current {@link TaskContext}.
+     * <p>
+     * Note that a limit or skip value cannot be applied to a parallel scan. Also note that the scan is performed
+     * {@link #withoutCollation() without collation}, as the id ranges are determined using a binary comparison.
+     *
+     * @param parallelism the maximal number of threads to use
+     * @param handler     the handler to invoke for each entity
+     */
+    public void iterateParallel(int parallelism, Consumer<E> handler) {
+        if (limit > 0 || skip > 0) {
+            throw Exceptions.handle()
+                            .to(Mongo.LOG)
+                            .withSystemErrorMessage("A parallel scan doesn't support 'limit' or 'skip'. Query: %s",
+                                                    this)
+                            .handle();
+        }
+
+        if (parallelism <= 1) {
+            iterateAll(handler);
+            return;
+        }
+
+        Queue<Tuple<String, String>> partitions =
+                new ConcurrentLinkedQueue<>(determinePartitions(parallelism * PARTITIONS_PER_THREAD));
+        ParallelScan scan = new ParallelScan(Mongo.LOG, EXECUTOR_PARALLEL_SCAN, descriptor.getRelationName());
+        int numberOfWorkers = Math.min(parallelism, partitions.size());
+        for (int i = 0; i < numberOfWorkers; i++) {
+            scan.fork(() -> scanPartitions(partitions, handler, scan));
+        }
+
+        scan.await();
+    }
+
+    /**
+     * Determines the ranges of ids to process in parallel.
+     *
+     * @param numberOfPartitions the desired number of partitions
+     * @return a list of ranges (lower bound inclusive, upper bound exclusive) where <tt>null</tt> represents an open
+     * bound
+     */
+    private List<Tuple<String, String>> determinePartitions(int numberOfPartitions) {
+        List<String> sampledIds = new ArrayList<>();
+        finder.copyFilters()
+              .withoutCollation()
+              .selectFields(MongoEntity.ID)
+              .limit(numberOfPartitions * SAMPLES_PER_PARTITION)
+              .sample(descriptor.getRelationName(), doc -> {
+                  sampledIds.add(doc.getString(MongoEntity.ID));
+                  return true;
+              });
+        Collections.sort(sampledIds);
+
+        List<Tuple<String, String>> partitions = new ArrayList<>();
+        String lowerBound = null;
+        for (int i = 1; i < numberOfPartitions && !sampledIds.isEmpty(); i++) {
+            String splitPoint = sampledIds.get(i * sampledIds.size() / numberOfPartitions);
+            if (lowerBound == null || splitPoint.compareTo(lowerBound) > 0) {
+                partitions.add(Tuple.create(lowerBound, splitPoint));
+                lowerBound = splitPoint;
+            }
+        }
+        partitions.add(Tuple.create(lowerBound, null));
+
+        return partitions;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void scanPartitions(Queue<Tuple<String, String>> partitions, Consumer<E> handler, ParallelScan scan) {
+        Tuple<String, String> partition = partitions.poll();
+        while (partition != null && scan.isActive()) {
+            // The id ranges are determined by a binary comparison, therefore they must not be evaluated using a
+            // collation...
+            Finder partitionFinder = finder.copyFilters().withoutCollation();
+            applyProjection(partitionFinder);
+            BasicDBObject range = new BasicDBObject();
+            if (partition.getFirst() != null) {
+                range.put("$gte", partition.getFirst());
+            }
+            if (partition.getSecond() != null) {
+                range.put("$lt", partition.getSecond());
+            }
+            if (!range.isEmpty()) {
+                partitionFinder.where(new MongoConstraint(MongoEntity.ID.toString(), range));
+            }
+
+            partitionFinder.eachEntityIn(descriptor, (E entity) -> {
+                handler.accept(entity);
+                scan.processed(1);
+                return scan.isActive();
+            });
+            partition = partitions.poll();
+        }
+    }
+
+    /**
+     * Enables caching of the results of {@link #count(CountAccuracy)}.
+     * <p>
+     * This is intended for list views or dashboards, which repeatedly show the same counts. Cached counts are
+     * invalidated once an entity of the queried type is written via {@link Mango} or otherwise expire after a short
+     * time (see <tt>cache.mixing-count</tt>).
+     *
+     * @return the query itself for fluent method calls
+     */
+    public MongoQuery<E> withCountCache() {
+        this.useCountCache = true;
+        return this;
     }
 
     @Override
     public long count() {
-        return finder.countIn(descriptor.getRelationName());
+        return count(CountAccuracy.EXACT);
+    }
+
+    /**
+     * Counts the number of matches using the given accuracy.
+     * <p>
+     * An estimated count uses the document count stored in the collection metadata, as long as the query has no
+     * constraints. A bounded count stops counting once the bound is reached and therefore reports "at least n"
+     * matches.
+     *
+     * @param accuracy determines if an exact count is required or if an estimated or bounded count is sufficient
+     * @return the (possibly estimated or bounded) number of matches
+     */
+    public long count(CountAccuracy accuracy) {
+        String cacheKey = useCountCache ?
+                          countCache.computeKey(descriptor, accuracy + ": " + descriptor.getRealm() + ": " + finder) :
+                          null;
+        if (cacheKey != null) {
+            Long cachedCount = countCache.get(cacheKey);
+            if (cachedCount != null) {
+                return cachedCount;
+            }
+        }
+
+        long result;
+        if (accuracy.isEstimated() && !finder.hasFilters()) {
+            result = finder.estimatedCountIn(descriptor.getRelationName());
+        } else {
+            result = finder.countIn(descriptor.getRelationName(), accuracy.isBounded() ? accuracy.getBound() : 0);
+        }
+
+        if (cacheKey != null) {
+            countCache.put(cacheKey, result);
+        }
+
+        return result;
     }
 
     @Override
@@ -164,6 +720,7 @@ public class MongoQuery<E extends MongoEntity> extends Query<MongoQuery<E>, E, M
                             .handle();
         }
 
+        applyProjection(finder);
         finder.sample(descriptor.getRelationName(), doc -> {
             result.add(Mango.make(descriptor, doc));
             failOnOverflow(result);
@@ -211,6 +768,17 @@ public class MongoQuery<E extends MongoEntity> extends Query<MongoQuery<E>, E, M
         return this;
     }
 
+    /**
+     * Enables caching of the results of {@link #executeFacets()}.
+     *
+     * @return the query itself for fluent method calls
+     * @see Finder#withFacetCache()
+     */
+    public MongoQuery<E> withFacetCache() {
+        finder.withFacetCache();
+        return this;
+    }
+
     /**
      * Executes all previously attached facets in one go.
      */
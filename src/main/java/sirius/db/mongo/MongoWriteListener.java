@@ -0,0 +1,27 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sirius.db.mongo;
+
+/**
+ * Gets notified about each write which is performed via {@link Inserter}, {@link Updater} or {@link Deleter}.
+ * <p>
+ * This permits higher level components (like {@link Mango}) to react on writes, without having the low level
+ * builders depend on these. To be discovered, the class has to wear a {@link sirius.kernel.di.std.Register}
+ * annotation.
+ */
+public interface MongoWriteListener {
+
+    /**
+     * Invoked once a write against the given collection has been executed (successfully or not).
+     *
+     * @param database   the name of the database (in the configuration) which has been modified
+     * @param collection the name of the collection which has been modified
+     */
+    void onWrite(String database, String collection);
+}
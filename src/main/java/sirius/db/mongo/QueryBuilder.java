@@ -10,17 +10,24 @@ package sirius.db.mongo;
 
 import com.google.common.collect.Lists;
 import com.mongodb.BasicDBObject;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoIterable;
 import sirius.db.DB;
 import sirius.db.mixing.Mapping;
 import sirius.db.mixing.Mixing;
 import sirius.db.mongo.constraints.MongoConstraint;
 import sirius.db.mongo.constraints.MongoFilterFactory;
 import sirius.kernel.async.ExecutionPoint;
+import sirius.kernel.async.TaskContext;
+import sirius.kernel.commons.Monoflop;
 import sirius.kernel.commons.Watch;
 import sirius.kernel.di.std.Part;
+import sirius.kernel.health.Microtiming;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.function.Predicate;
 
 /**
  * Base class for queries providing a filter builder.
@@ -29,6 +36,8 @@ import java.util.Objects;
  */
 public abstract class QueryBuilder<S> {
 
+    protected static final String KEY_MONGO = "mongo";
+
     protected final String database;
     protected final Mongo mongo;
     protected BasicDBObject filterObject = new BasicDBObject();
@@ -107,7 +116,10 @@ public abstract class QueryBuilder<S> {
         if (filterObject.containsField(filter.getKey())) {
             Object other = filterObject.get(filter.getKey());
             if ("$and".equals(filter.getKey())) {
-                ((List<MongoConstraint>) other).addAll((List<MongoConstraint>) filter.getObject());
+                // The list might be shared with another builder (see transferFilters) so we must not modify it...
+                List<Object> constraints = new ArrayList<>((List<Object>) other);
+                constraints.addAll((List<Object>) filter.getObject());
+                filterObject.put(filter.getKey(), constraints);
                 return (S) this;
             }
 
@@ -136,13 +148,55 @@ public abstract class QueryBuilder<S> {
         target.filterObject.putAll(filterObject.toMap());
     }
 
+    /**
+     * Drains the given cursor into the given processor.
+     * <p>
+     * The time until the first document arrives is reported as call duration and used for the slow query log.
+     * The whole lifetime of the cursor along with the number of processed documents is recorded in the
+     * {@link Mongo#getOperationStatistics() operation statistics}. Note that the lifetime includes the time spent
+     * in the processor, as the cursor keeps fetching batches while the documents are being processed.
+     */
+    protected <T> void processCursor(MongoIterable<T> cursor,
+                                     Predicate<T> processor,
+                                     String collection,
+                                     String operation) {
+        Watch watch = Watch.start();
+        TaskContext ctx = TaskContext.get();
+        Monoflop mf = Monoflop.create();
+        long numDocuments = 0;
+        try (MongoCursor<T> iterator = cursor.iterator()) {
+            while (iterator.hasNext()) {
+                T doc = iterator.next();
+                if (mf.firstCall()) {
+                    handleTracingAndReporting(collection, operation, watch);
+                }
+
+                numDocuments++;
+                boolean keepGoing = processor.test(doc);
+                if (!keepGoing || !ctx.isActive()) {
+                    return;
+                }
+            }
+        } finally {
+            mongo.recordOperation(operation, collection, watch, numDocuments);
+        }
+    }
+
+    private void handleTracingAndReporting(String collection, String operation, Watch w) {
+        mongo.callDuration.addValue(w.elapsedMillis());
+        if (Microtiming.isEnabled()) {
+            w.submitMicroTiming(KEY_MONGO, operation.toUpperCase() + " ALL - " + collection + ": " + this);
+        }
+        traceIfRequired(collection, w);
+    }
+
     protected void traceIfRequired(String collection, Watch w) {
         if (w.elapsedMillis() > mongo.getLogQueryThresholdMillis()) {
             mongo.numSlowQueries.inc();
             DB.SLOW_DB_LOG.INFO("A slow MongoDB query was executed (%s): %s\n%s\n%s",
                                 w.duration(),
                                 collection,
-                                filterObject,
+                                this,
                                 ExecutionPoint.snapshot().toString());
         }
     }
@@ -10,7 +10,12 @@ package sirius.db.mongo;
 
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
 import com.mongodb.client.result.UpdateResult;
 import org.bson.Document;
 import sirius.db.mixing.Mapping;
@@ -20,6 +25,7 @@ import sirius.kernel.health.Microtiming;
 
 import javax.annotation.Nonnull;
 import java.util.Collection;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 /**
@@ -28,9 +34,11 @@ import java.util.stream.Collectors;
 public class Updater extends QueryBuilder<Updater> {
 
     private BasicDBObject setObject;
+    private BasicDBObject setOnInsertObject;
     private BasicDBObject unsetObject;
     private BasicDBObject incObject;
     private BasicDBObject addToSetObject;
+    private BasicDBObject pushObject;
     private BasicDBObject pullAllObject;
     private BasicDBObject pullObject;
     private boolean upsert = false;
@@ -91,6 +99,33 @@ public class Updater extends QueryBuilder<Updater> {
         return this;
     }
 
+    /**
+     * Sets a field to the given value, but only if a new document is created by an {@link #upsert()}.
+     *
+     * @param field the field to set
+     * @param value the value of the field
+     * @return the builder itself for fluent method calls
+     */
+    public Updater setOnInsert(Mapping field, Object value) {
+        return setOnInsert(field.toString(), value);
+    }
+
+    /**
+     * Sets a field to the given value, but only if a new document is created by an {@link #upsert()}.
+     *
+     * @param field the field to set
+     * @param value the value of the field
+     * @return the builder itself for fluent method calls
+     */
+    public Updater setOnInsert(String field, Object value) {
+        if (setOnInsertObject == null) {
+            setOnInsertObject = new BasicDBObject();
+        }
+        setOnInsertObject.put(field, QueryBuilder.FILTERS.transform(value));
+
+        return this;
+    }
+
     /**
      * Unsets a field.
      *
@@ -233,6 +268,41 @@ public class Updater extends QueryBuilder<Updater> {
         return this;
     }
 
+    /**
+     * Appends the given values to the list in the given field.
+     * <p>
+     * In contrast to {@link #addEachToSet(String, Collection)} this doesn't check if the values are already contained.
+     *
+     * @param field  the field containing the list
+     * @param values a collection of values to append
+     * @return the builder itself for fluent method calls
+     */
+    public Updater pushEach(Mapping field, Collection<?> values) {
+        return pushEach(field.toString(), values);
+    }
+
+    /**
+     * Appends the given values to the list in the given field.
+     * <p>
+     * In contrast to {@link #addEachToSet(String, Collection)} this doesn't check if the values are already contained.
+     *
+     * @param field  the field containing the list
+     * @param values a collection of values to append
+     * @return the builder itself for fluent method calls
+     */
+    public Updater pushEach(String field, Collection<?> values) {
+        if (pushObject == null) {
+            pushObject = new BasicDBObject();
+        }
+        pushObject.put(field,
+                       new Document("$each",
+                                    values.stream()
+                                          .map(QueryBuilder.FILTERS::transform)
+                                          .collect(Collectors.toList())));
+
+        return this;
+    }
+
     /**
      * Removes all occurences of the given values from the list in the given field.
      *
@@ -323,22 +393,30 @@ public class Updater extends QueryBuilder<Updater> {
         Document updateObject = prepareUpdate(collection);
 
         Watch w = Watch.start();
+        UpdateResult result = null;
         try {
             if (Mongo.LOG.isFINE()) {
                 Mongo.LOG.FINE("UPDATE: %s\nFilter: %s\n Update:%s", collection, filterObject, updateObject);
             }
             UpdateOptions updateOptions = new UpdateOptions().upsert(this.upsert).collation(mongo.determineCollation());
             if (many) {
-                return mongo.db(database)
-                            .getCollection(collection)
-                            .updateMany(filterObject, updateObject, updateOptions);
+                result = mongo.db(database)
+                              .getCollection(collection)
+                              .updateMany(filterObject, updateObject, updateOptions);
             } else {
-                return mongo.db(database)
-                            .getCollection(collection)
-                            .updateOne(filterObject, updateObject, updateOptions);
+                result = mongo.db(database)
+                              .getCollection(collection)
+                              .updateOne(filterObject, updateObject, updateOptions);
             }
+
+            return result;
         } finally {
+            mongo.notifyWrite(database, collection);
             mongo.callDuration.addValue(w.elapsedMillis());
+            mongo.recordOperation(Mongo.OPERATION_UPDATE,
+                                  collection,
+                                  w,
+                                  result != null && result.wasAcknowledged() ? result.getModifiedCount() : 0);
             if (Microtiming.isEnabled()) {
                 w.submitMicroTiming("mongo", "UPDATE - " + collection + ": " + filterObject);
             }
@@ -346,12 +424,76 @@ public class Updater extends QueryBuilder<Updater> {
         }
     }
 
+    /**
+     * Executes the update for a single document on the given collection and returns the document as it was before
+     * the update.
+     * <p>
+     * This can be used to determine if an {@link #upsert()} created a new document (in which case an empty
+     * optional is returned) or which document was updated - all in a single round trip. Note that {@link #many()}
+     * is ignored by this method.
+     *
+     * @param collection     the collection to update
+     * @param fieldsToReturn the fields of the previous document to return
+     * @return the document as it was before the update or an empty optional if no matching document was present
+     */
+    public Optional<Doc> fetchAndExecuteFor(String collection, Mapping... fieldsToReturn) {
+        Document updateObject = prepareUpdate(collection);
+
+        Watch w = Watch.start();
+        try {
+            if (Mongo.LOG.isFINE()) {
+                Mongo.LOG.FINE("UPDATE: %s\nFilter: %s\n Update:%s", collection, filterObject, updateObject);
+            }
+            FindOneAndUpdateOptions options = new FindOneAndUpdateOptions().upsert(this.upsert)
+                                                                           .returnDocument(ReturnDocument.BEFORE)
+                                                                           .collation(mongo.determineCollation());
+            if (fieldsToReturn.length > 0) {
+                Document projection = new Document();
+                for (Mapping field : fieldsToReturn) {
+                    projection.put(field.toString(), 1);
+                }
+                options.projection(projection);
+            }
+
+            return Optional.ofNullable(mongo.db(database)
+                                            .getCollection(collection)
+                                            .findOneAndUpdate(filterObject, updateObject, options)).map(Doc::new);
+        } finally {
+            mongo.notifyWrite(database, collection);
+            mongo.callDuration.addValue(w.elapsedMillis());
+            mongo.recordOperation(Mongo.OPERATION_UPDATE, collection, w, 1);
+            if (Microtiming.isEnabled()) {
+                w.submitMicroTiming("mongo", "UPDATE - " + collection + ": " + filterObject);
+            }
+            traceIfRequired(collection, w);
+        }
+    }
+
+    /**
+     * Converts the update into a write model which can be executed by a {@link MangoBatchContext}.
+     *
+     * @param collection the collection to update
+     * @return the update as write model
+     */
+    protected WriteModel<Document> toWriteModel(String collection) {
+        Document updateObject = prepareUpdate(collection);
+        UpdateOptions updateOptions = new UpdateOptions().upsert(this.upsert).collation(mongo.determineCollation());
+        if (many) {
+            return new UpdateManyModel<>(filterObject, updateObject, updateOptions);
+        } else {
+            return new UpdateOneModel<>(filterObject, updateObject, updateOptions);
+        }
+    }
+
     @Nonnull
     protected Document prepareUpdate(String collection) {
         Document updateObject = new Document();
         if (setObject != null) {
             updateObject.put("$set", setObject);
         }
+        if (setOnInsertObject != null) {
+            updateObject.put("$setOnInsert", setOnInsertObject);
+        }
         if (unsetObject != null) {
             updateObject.put("$unset", unsetObject);
         }
@@ -361,6 +503,9 @@ public class Updater extends QueryBuilder<Updater> {
         if (addToSetObject != null) {
             updateObject.put("$addToSet", addToSetObject);
         }
+        if (pushObject != null) {
+            updateObject.put("$push", pushObject);
+        }
         if (pullAllObject != null) {
             updateObject.put("$pullAll", pullAllObject);
         }
@@ -26,12 +26,20 @@ import java.util.function.Consumer;
 /**
  * Represents a term facet which aggregates a given field (counts individual values).
  * <p>
- * This will generate a $sortByCount for the given field.
+ * This will generate a $sortByCount for the given field. For fields with many distinct values, the number of buckets
+ * should be limited via {@link #withMaxBuckets(int)} so that the result of the <tt>$facet</tt> stage (which is a
+ * single document) remains small.
  */
 public class MongoTermFacet extends MongoFacet {
 
+    private static final String SUFFIX_TOTAL = "_total";
+    private static final String FIELD_TOTAL = "total";
+
     private final Mapping field;
+    private int maxBuckets;
+    private boolean computeOtherCount;
     private List<Tuple<String, Integer>> values;
+    private int otherCount;
     private Consumer<MongoTermFacet> completionCallback;
 
     /**
@@ -65,14 +73,50 @@ public class MongoTermFacet extends MongoFacet {
         return this;
     }
 
+    /**
+     * Limits the number of buckets (terms) to compute.
+     * <p>
+     * Only the most frequent terms are returned.
+     *
+     * @param maxBuckets the maximal number of buckets to return or 0 to return all terms
+     * @return the facet itself for fluent method calls
+     */
+    public MongoTermFacet withMaxBuckets(int maxBuckets) {
+        this.maxBuckets = maxBuckets;
+        return this;
+    }
+
+    /**
+     * Also computes the number of values which are not covered by the returned buckets.
+     * <p>
+     * This is only sensible if the number of buckets is {@link #withMaxBuckets(int) limited} and can be obtained via
+     * {@link #getOtherCount()}. Note that this adds another (counting) pipeline to the <tt>$facet</tt> stage.
+     *
+     * @return the facet itself for fluent method calls
+     */
+    public MongoTermFacet withOtherCount() {
+        this.computeOtherCount = true;
+        return this;
+    }
+
     @Override
     public void emitFacets(EntityDescriptor descriptor, BiConsumer<String, DBObject> facetConsumer) {
         BasicDBList facet = new BasicDBList();
         String fieldName = descriptor.findProperty(field.toString()).getPropertyName();
         facet.add(new BasicDBObject().append("$unwind", "$" + fieldName));
         facet.add(new BasicDBObject().append("$sortByCount", "$" + fieldName));
+        if (maxBuckets > 0) {
+            facet.add(new BasicDBObject().append("$limit", maxBuckets));
+        }
 
         facetConsumer.accept(name, facet);
+
+        if (computeOtherCount) {
+            BasicDBList totalFacet = new BasicDBList();
+            totalFacet.add(new BasicDBObject().append("$unwind", "$" + fieldName));
+            totalFacet.add(new BasicDBObject().append("$count", FIELD_TOTAL));
+            facetConsumer.accept(name + SUFFIX_TOTAL, totalFacet);
+        }
     }
 
     @Override
@@ -87,11 +131,27 @@ public class MongoTermFacet extends MongoFacet {
             values.add(Tuple.create(term, count));
         }
 
+        this.otherCount = 0;
+        if (computeOtherCount) {
+            digestOtherCount(result);
+        }
+
         if (completionCallback != null) {
             completionCallback.accept(this);
         }
     }
 
+    private void digestOtherCount(Doc result) {
+        List<Object> totals = result.getList(name + SUFFIX_TOTAL);
+        if (totals.isEmpty()) {
+            return;
+        }
+
+        int total = ((Document) totals.get(0)).getInteger(FIELD_TOTAL, 0);
+        int bucketCount = values.stream().mapToInt(Tuple::getSecond).sum();
+        this.otherCount = Math.max(0, total - bucketCount);
+    }
+
     /**
      * Returns the list of filter values.
      *
@@ -100,4 +160,14 @@ public class MongoTermFacet extends MongoFacet {
     public List<Tuple<String, Integer>> getValues() {
         return Collections.unmodifiableList(values);
     }
+
+    /**
+     * Returns the number of values which are not covered by the returned buckets.
+     *
+     * @return the number of values not contained in {@link #getValues()} or 0 if {@link #withOtherCount()} wasn't
+     * enabled
+     */
+    public int getOtherCount() {
+        return otherCount;
+    }
 }
@@ -8,6 +8,7 @@
 
 package sirius.db.es
 
+import com.alibaba.fastjson.JSONObject
 import sirius.kernel.BaseSpecification
 import sirius.kernel.di.std.Part
 import sirius.kernel.health.HandledException
@@ -37,6 +38,60 @@ class BulkContextSpec extends BaseSpecification {
         elastic.select(BatchTestEntity.class).count() == 3
     }
 
+    def "batch insert with compressed requests works"() {
+        setup:
+        BulkContext btx = new BulkContext(new LowLevelClient(elastic.getLowLevelClient().getRestClient(), true))
+        elastic.select(BatchTestEntity.class).delete()
+        when:
+        btx.tryUpdate(new BatchTestEntity().withValue(1))
+        btx.tryUpdate(new BatchTestEntity().withValue(2))
+        btx.tryUpdate(new BatchTestEntity().withValue(3))
+        btx.commit()
+        elastic.refresh(BatchTestEntity.class)
+        then:
+        elastic.select(BatchTestEntity.class).count() == 3
+    }
+
+    def "bulk requests spanning several chunks work"() {
+        setup:
+        LowLevelClient client = new LowLevelClient(elastic.getLowLevelClient().getRestClient(), compress)
+        String index = "bulk-chunks-" + (compress ? "compressed" : "plain")
+        String padding = "x" * 1024
+        List<JSONObject> commands = []
+        for (int i = 0; i < 500; i++) {
+            commands << new JSONObject().fluentPut("index",
+                                                   new JSONObject().fluentPut("_index", index)
+                                                                   .fluentPut("_id", String.valueOf(i)))
+            commands << new JSONObject().fluentPut("value", i).fluentPut("padding", padding)
+        }
+        when:
+        JSONObject response = client.bulk(commands)
+        client.refresh(index)
+        then:
+        !response.getBooleanValue("errors")
+        and:
+        client.count(index, null, new JSONObject()).getIntValue("count") == 500
+        cleanup:
+        client.deleteIndex(index)
+        where:
+        compress << [false, true]
+    }
+
+    def "upsert in bulkContext invokes afterSave once committed"() {
+        setup:
+        BulkContext btx = elastic.batch()
+        ElasticWasCreatedTestEntity entity = new ElasticWasCreatedTestEntity()
+        entity.setValue("bulk-upsert-" + System.currentTimeMillis())
+        when:
+        btx.upsert(entity, ElasticWasCreatedTestEntity.VALUE)
+        then:
+        !entity.hasJustBeenCreated()
+        when:
+        btx.commit().throwFailures()
+        then:
+        entity.hasJustBeenCreated()
+    }
+
     def "batch insert with routing works"() {
         setup:
         BulkContext btx = elastic.batch()
@@ -22,6 +22,7 @@ import sirius.kernel.di.std.Part
 import sirius.kernel.health.HandledException
 
 import java.time.Duration
+import java.util.concurrent.atomic.AtomicInteger
 
 class ElasticQuerySpec extends BaseSpecification {
 
@@ -241,6 +242,70 @@ class ElasticQuerySpec extends BaseSpecification {
         sum == (1500 * 1501) / 2
     }
 
+    def "iterating with an explicit order and skip works"() {
+        when:
+        for (int i = 1; i <= 5; i++) {
+            QueryTestEntity entity = new QueryTestEntity()
+            entity.setValue("SEARCHAFTER")
+            entity.setCounter(i)
+            elastic.update(entity)
+        }
+        elastic.refresh(QueryTestEntity.class)
+        and:
+        List<Integer> counters = []
+        elastic.select(QueryTestEntity.class).
+                eq(QueryTestEntity.VALUE, "SEARCHAFTER").
+                orderDesc(QueryTestEntity.COUNTER).
+                skip(1).
+                iterateAll({ e -> counters.add(e.getCounter()) })
+        then:
+        counters == [4, 3, 2, 1]
+    }
+
+    def "iterating over several pages visits each entity exactly once"() {
+        when:
+        for (int i = 1; i <= 35; i++) {
+            QueryTestEntity entity = new QueryTestEntity()
+            entity.setValue("PAGES")
+            entity.setCounter(i)
+            elastic.update(entity)
+        }
+        elastic.refresh(QueryTestEntity.class)
+        and:
+        List<Integer> unordered = []
+        elastic.select(QueryTestEntity.class).
+                eq(QueryTestEntity.VALUE, "PAGES").
+                iterateAll({ e -> unordered.add(e.getCounter()) })
+        and:
+        List<Integer> ordered = []
+        elastic.select(QueryTestEntity.class).
+                eq(QueryTestEntity.VALUE, "PAGES").
+                orderAsc(QueryTestEntity.COUNTER).
+                iterateAll({ e -> ordered.add(e.getCounter()) })
+        then:
+        unordered.sort() == (1..35).toList()
+        and:
+        ordered == (1..35).toList()
+    }
+
+    def "iterating in parallel slices works"() {
+        when:
+        for (int i = 1; i <= 20; i++) {
+            QueryTestEntity entity = new QueryTestEntity()
+            entity.setValue("PARALLEL")
+            entity.setCounter(i)
+            elastic.update(entity)
+        }
+        elastic.refresh(QueryTestEntity.class)
+        and:
+        AtomicInteger sum = new AtomicInteger()
+        elastic.select(QueryTestEntity.class).
+                eq(QueryTestEntity.VALUE, "PARALLEL").
+                iterateParallel(3, { e -> sum.addAndGet(e.getCounter()) })
+        then:
+        sum.get() == (20 * 21) / 2
+    }
+
     def "queries with multiple occurences of the same constraint works"() {
         when:
         QueryTestEntity entity = new QueryTestEntity()
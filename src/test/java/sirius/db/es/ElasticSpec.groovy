@@ -11,6 +11,7 @@ package sirius.db.es
 
 import sirius.db.mixing.Mixing
 import sirius.db.mixing.OptimisticLockException
+import sirius.db.mixing.UpsertResult
 import sirius.kernel.BaseSpecification
 import sirius.kernel.di.std.Part
 import sirius.kernel.health.HandledException
@@ -249,4 +250,28 @@ class ElasticSpec extends BaseSpecification {
         then: "The first entity is no longer visible as it has never been written into the write index"
         !elastic.find(ElasticTestEntity.class, testEntity.getId()).isPresent()
     }
+
+    def "upsert inserts or updates an entity by its natural key"() {
+        when:
+        ElasticTestEntity entity = new ElasticTestEntity()
+        entity.setFirstname("Upsert")
+        entity.setLastname("Test")
+        entity.setAge(12)
+        UpsertResult firstResult = elastic.upsert(entity, ElasticTestEntity.FIRSTNAME, ElasticTestEntity.LASTNAME)
+        and:
+        ElasticTestEntity sameEntity = new ElasticTestEntity()
+        sameEntity.setFirstname("Upsert")
+        sameEntity.setLastname("Test")
+        sameEntity.setAge(13)
+        UpsertResult secondResult =
+                elastic.upsert(sameEntity, ElasticTestEntity.FIRSTNAME, ElasticTestEntity.LASTNAME)
+        and:
+        elastic.refresh(ElasticTestEntity.class)
+        then:
+        firstResult == UpsertResult.INSERTED
+        secondResult == UpsertResult.UPDATED
+        sameEntity.getId() == entity.getId()
+        elastic.findOrFail(ElasticTestEntity.class, entity.getId()).getAge() == 13
+    }
+
 }
@@ -36,4 +36,23 @@ class FieldLookupCacheSpec extends BaseSpecification {
         value3.asString() == "Cache Test"
     }
 
+    def "invalidate removes the cached values of an entity"() {
+        given:
+        SmartQueryTestEntity entity = new SmartQueryTestEntity()
+        entity.setValue("Before")
+        entity.setTestNumber(12346)
+        oma.update(entity)
+        and:
+        lookupCache.lookup(SmartQueryTestEntity.class, entity.getId(), SmartQueryTestEntity.VALUE)
+        when:
+        entity.setValue("After")
+        oma.update(entity)
+        then:
+        lookupCache.lookup(SmartQueryTestEntity.class, entity.getId(), SmartQueryTestEntity.VALUE).asString() == "Before"
+        when:
+        lookupCache.invalidate(entity.getDescriptor(), entity.getId())
+        then:
+        lookupCache.lookup(SmartQueryTestEntity.class, entity.getId(), SmartQueryTestEntity.VALUE).asString() == "After"
+    }
+
 }
@@ -131,6 +131,20 @@ class JDBCSpec extends BaseSpecification {
         qry.queryList().size() == 1
     }
 
+    def "the statement compiler re-evaluates a cached template for each execution"() {
+        given:
+        def db = dbs.get("test")
+        def sql = 'SELECT * FROM test_a [WHERE a = ${filter}]'
+        when:
+        def unfiltered = db.createQuery(sql).set("filter", null).queryList()
+        def filtered = db.createQuery(sql).set("filter", "Hello").queryList()
+        then:
+        unfiltered.size() == 2
+        filtered.size() == 1
+        and:
+        StatementTemplate.parse(sql).is(StatementTemplate.parse(sql))
+    }
+
     def "SQLQuery#iterate is evaluated correctly"() {
         given:
         def db = dbs.get("test")
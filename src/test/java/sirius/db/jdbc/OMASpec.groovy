@@ -10,6 +10,7 @@ package sirius.db.jdbc
 
 import sirius.db.mixing.IntegrityConstraintFailedException
 import sirius.db.mixing.OptimisticLockException
+import sirius.db.mixing.UpsertResult
 import sirius.kernel.BaseSpecification
 import sirius.kernel.di.std.Part
 
@@ -236,4 +237,43 @@ class OMASpec extends BaseSpecification {
         !e.hasJustBeenCreated()
     }
 
+    def "upsert inserts or updates an entity by its natural key"() {
+        setup:
+        oma.select(SQLUniqueTestEntity.class).eq(SQLUniqueTestEntity.VALUE, "Upsert").delete()
+        when:
+        SQLUniqueTestEntity entity = new SQLUniqueTestEntity()
+        entity.setValue("Upsert")
+        UpsertResult firstResult = oma.upsert(entity, SQLUniqueTestEntity.VALUE)
+        and:
+        SQLUniqueTestEntity sameEntity = new SQLUniqueTestEntity()
+        sameEntity.setValue("Upsert")
+        UpsertResult secondResult = oma.upsert(sameEntity, SQLUniqueTestEntity.VALUE)
+        then:
+        firstResult == UpsertResult.INSERTED
+        secondResult == UpsertResult.UPDATED
+        sameEntity.getId() == entity.getId()
+        oma.select(SQLUniqueTestEntity.class).eq(SQLUniqueTestEntity.VALUE, "Upsert").count() == 1
+    }
+
+    def "upsert without key fields updates an already persisted entity by its id"() {
+        setup:
+        oma.select(SQLUniqueTestEntity.class).where(OMA.FILTERS.like(SQLUniqueTestEntity.VALUE)
+                                                           .startsWith("UpsertById")
+                                                           .build()).delete()
+        SQLUniqueTestEntity entity = new SQLUniqueTestEntity()
+        entity.setValue("UpsertById")
+        oma.update(entity)
+        when:
+        entity.setValue("UpsertById-Changed")
+        UpsertResult result = oma.upsert(entity)
+        then:
+        result == UpsertResult.UPDATED
+        and:
+        oma.select(SQLUniqueTestEntity.class).where(OMA.FILTERS.like(SQLUniqueTestEntity.VALUE)
+                                                           .startsWith("UpsertById")
+                                                           .build()).count() == 1
+        and:
+        oma.refreshOrFail(entity).getValue() == "UpsertById-Changed"
+    }
+
 }
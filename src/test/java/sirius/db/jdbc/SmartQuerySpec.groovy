@@ -8,7 +8,14 @@
 
 package sirius.db.jdbc
 
+import sirius.db.jdbc.facets.SQLDateHistogramFacet
+import sirius.db.jdbc.facets.SQLDateRangeFacet
+import sirius.db.jdbc.facets.SQLMinMaxFacet
+import sirius.db.jdbc.facets.SQLTermFacet
 import sirius.db.jdbc.schema.Schema
+import sirius.db.mixing.CountAccuracy
+import sirius.db.mixing.DateRange
+import sirius.db.mixing.Mapping
 import sirius.db.mixing.Mixing
 import sirius.kernel.BaseSpecification
 import sirius.kernel.Scope
@@ -17,11 +24,15 @@ import sirius.kernel.di.std.Part
 import sirius.kernel.health.HandledException
 import spock.lang.Stepwise
 
+import java.time.LocalDate
+import java.time.LocalDateTime
 import java.util.function.Function
 import java.util.stream.Collectors
 
 class SmartQuerySpec extends BaseSpecification {
 
+    private static final Mapping LOCAL_DATE_VALUE = Mapping.named("localDateValue")
+
     @Part
     static OMA oma
 
@@ -409,4 +420,117 @@ class SmartQuerySpec extends BaseSpecification {
         then:
         thrown(HandledException)
     }
+
+    def "facets are computed within the database"() {
+        given:
+        SQLTermFacet termFacet = new SQLTermFacet(SmartQueryTestEntity.VALUE)
+        SQLMinMaxFacet minMaxFacet = new SQLMinMaxFacet(SmartQueryTestEntity.TEST_NUMBER)
+        when:
+        oma.select(SmartQueryTestEntity.class).
+                where(OMA.FILTERS.gt(SmartQueryTestEntity.TEST_NUMBER, 1)).
+                addFacet(termFacet).
+                addFacet(minMaxFacet).
+                executeFacets()
+        then:
+        termFacet.getValues().collect { it.getFirst() }.sort() == ["Hello", "World"]
+        termFacet.getValues().every { it.getSecond() == 1 }
+        and:
+        minMaxFacet.getMin().asInt(0) == 2
+        minMaxFacet.getMax().asInt(0) == 3
+    }
+
+    private void fillDataTypesEntitiesForDateFacets() {
+        oma.select(DataTypesEntity.class).where(OMA.FILTERS.gte(LOCAL_DATE_VALUE, LocalDate.of(1990, 1, 1))).
+                where(OMA.FILTERS.lt(LOCAL_DATE_VALUE, LocalDate.of(1991, 1, 1))).
+                delete()
+        [LocalDate.of(1990, 1, 15), LocalDate.of(1990, 1, 31), LocalDate.of(1990, 3, 1)].each {
+            DataTypesEntity e = new DataTypesEntity()
+            e.setLocalDateValue(it)
+            oma.update(e)
+        }
+    }
+
+    private SmartQuery<DataTypesEntity> queryDataTypesEntitiesForDateFacets() {
+        return oma.select(DataTypesEntity.class).
+                where(OMA.FILTERS.gte(LOCAL_DATE_VALUE, LocalDate.of(1990, 1, 1))).
+                where(OMA.FILTERS.lt(LOCAL_DATE_VALUE, LocalDate.of(1991, 1, 1)))
+    }
+
+    def "date histogram facets only report non-empty buckets"() {
+        given:
+        fillDataTypesEntitiesForDateFacets()
+        SQLDateHistogramFacet years = new SQLDateHistogramFacet("years",
+                                                                LOCAL_DATE_VALUE,
+                                                                SQLDateHistogramFacet.Interval.YEAR)
+        SQLDateHistogramFacet months = new SQLDateHistogramFacet("months",
+                                                                 LOCAL_DATE_VALUE,
+                                                                 SQLDateHistogramFacet.Interval.MONTH)
+        SQLDateHistogramFacet days = new SQLDateHistogramFacet("days",
+                                                               LOCAL_DATE_VALUE,
+                                                               SQLDateHistogramFacet.Interval.DAY)
+        when:
+        queryDataTypesEntitiesForDateFacets().addFacet(years).addFacet(months).addFacet(days).executeFacets()
+        then:
+        years.getBuckets().collect { [it.getFirst(), it.getSecond()] } == [[LocalDate.of(1990, 1, 1), 3]]
+        and: "the empty february is omitted and the 31st of january ends up in the bucket of january"
+        months.getBuckets().collect { [it.getFirst(), it.getSecond()] } == [[LocalDate.of(1990, 1, 1), 2],
+                                                                            [LocalDate.of(1990, 3, 1), 1]]
+        and:
+        days.getBuckets().collect { [it.getFirst(), it.getSecond()] } == [[LocalDate.of(1990, 1, 15), 1],
+                                                                          [LocalDate.of(1990, 1, 31), 1],
+                                                                          [LocalDate.of(1990, 3, 1), 1]]
+    }
+
+    def "date range facets include both boundaries and report empty ranges"() {
+        given:
+        fillDataTypesEntitiesForDateFacets()
+        SQLDateRangeFacet facet = new SQLDateRangeFacet(LOCAL_DATE_VALUE,
+                                                        [new DateRange("january",
+                                                                       "january",
+                                                                       LocalDateTime.of(1990, 1, 15, 0, 0),
+                                                                       LocalDateTime.of(1990, 1, 31, 0, 0)),
+                                                         new DateRange("february",
+                                                                       "february",
+                                                                       LocalDateTime.of(1990, 2, 1, 0, 0),
+                                                                       LocalDateTime.of(1990, 2, 28, 23, 59, 59)),
+                                                         new DateRange("untilJanuary30",
+                                                                       "untilJanuary30",
+                                                                       null,
+                                                                       LocalDateTime.of(1990, 1, 30, 23, 59, 59)),
+                                                         new DateRange("fromMarch",
+                                                                       "fromMarch",
+                                                                       LocalDateTime.of(1990, 3, 1, 0, 0),
+                                                                       null)])
+        when:
+        queryDataTypesEntitiesForDateFacets().addFacet(facet).executeFacets()
+        then:
+        facet.getRanges().collect { [it.getFirst().getKey(), it.getSecond()] } == [["january", 2],
+                                                                                  ["february", 0],
+                                                                                  ["untilJanuary30", 1],
+                                                                                  ["fromMarch", 1]]
+    }
+
+    def "bounded and estimated counts work"() {
+        expect:
+        oma.select(SmartQueryTestEntity.class).count(CountAccuracy.boundedBy(2)) == 2
+        oma.select(SmartQueryTestEntity.class).count(CountAccuracy.boundedBy(10)) == 3
+        oma.select(SmartQueryTestEntity.class).
+                eq(SmartQueryTestEntity.VALUE, "Test").
+                count(CountAccuracy.boundedBy(10)) == 1
+        oma.select(SmartQueryTestEntity.class).count(CountAccuracy.ESTIMATED) >= 0
+    }
+
+    def "cached counts are invalidated by writes via OMA"() {
+        given:
+        SmartQuery<SQLWasCreatedTestEntity> query = oma.select(SQLWasCreatedTestEntity.class).
+                eq(SQLWasCreatedTestEntity.VALUE, "countCache").
+                withCountCache()
+        long initialCount = query.count()
+        when:
+        SQLWasCreatedTestEntity e = new SQLWasCreatedTestEntity()
+        e.setValue("countCache")
+        oma.update(e)
+        then:
+        query.count() == initialCount + 1
+    }
 }
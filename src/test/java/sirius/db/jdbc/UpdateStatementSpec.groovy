@@ -8,6 +8,7 @@
 
 package sirius.db.jdbc
 
+import sirius.db.mixing.EntityDescriptor
 import sirius.kernel.BaseSpecification
 import sirius.kernel.di.std.Part
 
@@ -16,6 +17,9 @@ class UpdateStatementSpec extends BaseSpecification {
     @Part
     private static OMA oma;
 
+    @Part
+    private static SQLCounterBuffer counterBuffer
+
     def "an update statement updates the expected entities"() {
         given:
         GeneratedStatementTestEntity e1 = new GeneratedStatementTestEntity()
@@ -70,4 +74,49 @@ class UpdateStatementSpec extends BaseSpecification {
         thrown(IllegalArgumentException)
     }
 
+    def "a counter buffer coalesces increments into a single update"() {
+        given:
+        GeneratedStatementTestEntity e = new GeneratedStatementTestEntity()
+        e.setTestNumber(10)
+        e.setValue("counter")
+        oma.update(e)
+        when:
+        counterBuffer.inc(e, GeneratedStatementTestEntity.TEST_NUMBER)
+        counterBuffer.inc(e, GeneratedStatementTestEntity.TEST_NUMBER, 4)
+        and:
+        counterBuffer.flush()
+        then: "all increments are applied at once"
+        oma.refreshOrFail(e).getTestNumber() == 15
+    }
+
+    def "a failed flush of a counter buffer keeps the deltas for the next flush"() {
+        given:
+        GeneratedStatementTestEntity e = new GeneratedStatementTestEntity()
+        e.setTestNumber(20)
+        e.setValue("failing-counter")
+        oma.update(e)
+        and:
+        SQLCounterBuffer failingBuffer = new SQLCounterBuffer() {
+            boolean failNextWrite = true
+
+            @Override
+            protected void writeDeltas(EntityDescriptor ed, Map<Object, Map<String, Long>> deltas) throws Exception {
+                if (failNextWrite) {
+                    failNextWrite = false
+                    throw new IllegalStateException("Simulated failure")
+                }
+                super.writeDeltas(ed, deltas)
+            }
+        }
+        when:
+        failingBuffer.inc(e, GeneratedStatementTestEntity.TEST_NUMBER, 3)
+        failingBuffer.flush()
+        then: "nothing is written"
+        oma.refreshOrFail(e).getTestNumber() == 20
+        when:
+        failingBuffer.inc(e, GeneratedStatementTestEntity.TEST_NUMBER, 2)
+        failingBuffer.flush()
+        then: "the deltas of the failed flush are written along with the new ones"
+        oma.refreshOrFail(e).getTestNumber() == 25
+    }
 }
@@ -98,4 +98,61 @@ class FacetSpec extends BaseSpecification {
         superPowersFacet.getValues().get(2).getFirst() == "Time travel"
         superPowersFacet.getValues().get(2).getSecond() == 1
     }
+
+    def "term facets can be limited and report the remaining values"() {
+        given:
+        mango.select(MangoTestEntity.class).eq(MangoTestEntity.AGE, 4711).delete()
+        and:
+        ["A", "A", "A", "B", "B", "C"].each { lastname ->
+            MangoTestEntity entity = new MangoTestEntity()
+            entity.setFirstname("Bucket")
+            entity.setLastname(lastname)
+            entity.setAge(4711)
+            mango.update(entity)
+        }
+        and:
+        MongoTermFacet lastnameFacet = new MongoTermFacet(MangoTestEntity.LASTNAME).withMaxBuckets(1).withOtherCount()
+        when:
+        mango.select(MangoTestEntity.class).eq(MangoTestEntity.AGE, 4711).addFacet(lastnameFacet).executeFacets()
+        then:
+        lastnameFacet.getValues().size() == 1
+        lastnameFacet.getValues().get(0).getFirst() == "A"
+        lastnameFacet.getValues().get(0).getSecond() == 3
+        lastnameFacet.getOtherCount() == 3
+    }
+
+    def "facet results can be cached"() {
+        given:
+        mango.select(MangoTestEntity.class).eq(MangoTestEntity.AGE, 4712).delete()
+        and:
+        MangoTestEntity entity = new MangoTestEntity()
+        entity.setFirstname("Cached")
+        entity.setLastname("Facet")
+        entity.setAge(4712)
+        mango.update(entity)
+        and:
+        MongoTermFacet firstFacet = new MongoTermFacet(MangoTestEntity.LASTNAME)
+        MongoTermFacet secondFacet = new MongoTermFacet(MangoTestEntity.LASTNAME)
+        when:
+        mango.select(MangoTestEntity.class)
+             .eq(MangoTestEntity.AGE, 4712)
+             .withFacetCache()
+             .addFacet(firstFacet)
+             .executeFacets()
+        and: "another entity is written which isn't reflected by the cached result"
+        entity = new MangoTestEntity()
+        entity.setFirstname("Cached")
+        entity.setLastname("Facet")
+        entity.setAge(4712)
+        mango.update(entity)
+        and:
+        mango.select(MangoTestEntity.class)
+             .eq(MangoTestEntity.AGE, 4712)
+             .withFacetCache()
+             .addFacet(secondFacet)
+             .executeFacets()
+        then:
+        firstFacet.getValues().get(0).getSecond() == 1
+        secondFacet.getValues().get(0).getSecond() == 1
+    }
 }
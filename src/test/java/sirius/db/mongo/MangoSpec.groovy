@@ -9,18 +9,59 @@
 package sirius.db.mongo
 
 
+import sirius.db.mixing.CountAccuracy
+import sirius.db.mixing.EntityDescriptor
 import sirius.db.mixing.IntegrityConstraintFailedException
+import sirius.db.mixing.Mixing
 import sirius.db.mixing.OptimisticLockException
+import sirius.db.mixing.UpsertResult
 import sirius.kernel.BaseSpecification
 import sirius.kernel.Scope
+import sirius.kernel.async.Future
 import sirius.kernel.di.std.Part
 import sirius.kernel.health.HandledException
+import spock.util.concurrent.PollingConditions
+
+import java.time.Duration
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
 
 class MangoSpec extends BaseSpecification {
 
     @Part
     private static Mango mango
 
+    @Part
+    private static Mongo mongo
+
+    @Part
+    private static Mixing mixing
+
+    def setupSpec() {
+        mango.getReadyFuture().await(Duration.ofSeconds(60))
+    }
+
+    def "a failing index definition fails the index creation"() {
+        given:
+        EntityDescriptor ed = mixing.getDescriptor(MangoIndexFailureTestEntity.class)
+        mongo.db().getCollection(ed.getRelationName()).dropIndex("unique_value")
+        mango.select(MangoIndexFailureTestEntity.class).delete()
+        and:
+        mongo.insert().set(MangoIndexFailureTestEntity.VALUE, "Duplicate").into(MangoIndexFailureTestEntity.class)
+        mongo.insert().set(MangoIndexFailureTestEntity.VALUE, "Duplicate").into(MangoIndexFailureTestEntity.class)
+        when:
+        Future future = mango.createIndicesInBackground([ed])
+        then:
+        new PollingConditions(timeout: 30).eventually {
+            assert future.isCompleted()
+        }
+        and:
+        future.isFailed()
+        cleanup:
+        mango.select(MangoIndexFailureTestEntity.class).delete()
+        mango.createIndicesInBackground([ed]).await(Duration.ofSeconds(30))
+    }
+
     def "write a test entity and read it back"() {
         given:
         MangoTestEntity e = new MangoTestEntity()
@@ -192,4 +233,331 @@ class MangoSpec extends BaseSpecification {
         then:
         !e.hasJustBeenCreated()
     }
+
+    def "upsert inserts or updates an entity by its natural key"() {
+        setup:
+        mango.select(MongoUniqueTestEntity.class).eq(MongoUniqueTestEntity.VALUE, "Upsert").delete()
+        when:
+        MongoUniqueTestEntity entity = new MongoUniqueTestEntity()
+        entity.setValue("Upsert")
+        UpsertResult firstResult = mango.upsert(entity, MongoUniqueTestEntity.VALUE)
+        and:
+        MongoUniqueTestEntity sameEntity = new MongoUniqueTestEntity()
+        sameEntity.setValue("Upsert")
+        UpsertResult secondResult = mango.upsert(sameEntity, MongoUniqueTestEntity.VALUE)
+        then:
+        firstResult == UpsertResult.INSERTED
+        secondResult == UpsertResult.UPDATED
+        sameEntity.getId() == entity.getId()
+        mango.select(MongoUniqueTestEntity.class).eq(MongoUniqueTestEntity.VALUE, "Upsert").count() == 1
+    }
+
+    def "a batch context writes entities and maps failures back to them"() {
+        setup:
+        mango.select(MongoUniqueTestEntity.class).
+                where(QueryBuilder.FILTERS.prefix(MongoUniqueTestEntity.VALUE, "batch")).
+                delete()
+        when:
+        MongoUniqueTestEntity first = new MongoUniqueTestEntity()
+        first.setValue("batch1")
+        MongoUniqueTestEntity second = new MongoUniqueTestEntity()
+        second.setValue("batch2")
+        MongoUniqueTestEntity duplicate = new MongoUniqueTestEntity()
+        duplicate.setValue("batch1")
+        MangoBatchResult result = mango.batch().unordered().tryUpdate(first).tryUpdate(second).tryUpdate(duplicate).
+                commit()
+        then:
+        !result.isSuccessful()
+        result.getInsertedCount() == 2
+        result.getFailedEntities() == [duplicate]
+        result.getFailures().get(0).isDuplicateKey()
+        duplicate.isNew()
+        !first.isNew()
+        mango.select(MongoUniqueTestEntity.class).
+                where(QueryBuilder.FILTERS.prefix(MongoUniqueTestEntity.VALUE, "batch")).
+                count() == 2
+        when:
+        first.setValue("batch3")
+        result = mango.batch().tryUpdate(first).forceDelete(second).commit()
+        then:
+        result.isSuccessful()
+        result.getModifiedCount() == 1
+        result.getDeletedCount() == 1
+        mango.refreshOrFail(first).getValue() == "batch3"
+        !mango.find(MongoUniqueTestEntity.class, second.getId()).isPresent()
+    }
+
+    def "a batch context reports optimistic locking conflicts"() {
+        given:
+        MongoLockedTestEntity entity = new MongoLockedTestEntity()
+        entity.setValue("Batch")
+        mango.update(entity)
+        MongoLockedTestEntity outdated = mango.refreshOrFail(entity)
+        MongoLockedTestEntity other = new MongoLockedTestEntity()
+        other.setValue("Batch")
+        mango.update(other)
+        and:
+        entity.setValue("Batch2")
+        mango.update(entity)
+        when:
+        outdated.setValue("Batch3")
+        other.setValue("Batch3")
+        MangoBatchResult result = mango.batch().tryUpdate(outdated).tryUpdate(other).commit()
+        then:
+        !result.isSuccessful()
+        result.getFailedEntities() == [outdated]
+        result.getFailures().get(0).isOptimisticLockError()
+        outdated.getVersion() == 1
+        other.getVersion() == 2
+        mango.refreshOrFail(entity).getValue() == "Batch2"
+        mango.refreshOrFail(other).getValue() == "Batch3"
+        when:
+        result = mango.batch().tryDelete(outdated).commit()
+        then:
+        result.getFailures().get(0).isOptimisticLockError()
+        mango.find(MongoLockedTestEntity.class, entity.getId()).isPresent()
+    }
+
+    def "entities are decoded directly and unmapped fields are skipped"() {
+        given:
+        MangoTestEntity e = new MangoTestEntity()
+        e.setFirstname("Codec")
+        e.setLastname("Entity")
+        e.setAge(42)
+        e.getSuperPowers().add("Decoding")
+        mango.update(e)
+        and:
+        mongo.update().
+                set("unmappedField", "ignored").
+                where(MongoEntity.ID, e.getId()).
+                executeFor(MangoTestEntity.class)
+        when:
+        MangoTestEntity decoded = mango.select(MangoTestEntity.class).eq(MongoEntity.ID, e.getId()).queryFirst()
+        then:
+        decoded.getFirstname() == "Codec"
+        decoded.getAge() == 42
+        decoded.getSuperPowers().data() == ["Decoding"]
+        !mango.select(MangoTestEntity.class).eq(MongoEntity.ID, e.getId()).queryFirst().isChanged(MangoTestEntity.AGE)
+    }
+
+    def "mapped fields can be projected and single fields can be excluded"() {
+        given:
+        MangoTestEntity e = new MangoTestEntity()
+        e.setFirstname("Projected")
+        e.setLastname("Entity")
+        e.setAge(7)
+        mango.update(e)
+        when:
+        MangoTestEntity mappedOnly = mango.select(MangoTestEntity.class)
+                                          .eq(MongoEntity.ID, e.getId())
+                                          .mappedFieldsOnly()
+                                          .queryFirst()
+        and:
+        MangoTestEntity excluded = mango.select(MangoTestEntity.class)
+                                        .eq(MongoEntity.ID, e.getId())
+                                        .excludeFields(MangoTestEntity.LASTNAME)
+                                        .queryFirst()
+        then:
+        mappedOnly.getFirstname() == "Projected"
+        mappedOnly.getLastname() == "Entity"
+        mappedOnly.getVersion() == e.getVersion()
+        and:
+        excluded.getFirstname() == "Projected"
+        excluded.getLastname() == null
+        excluded.getAge() == 7
+    }
+
+    def "entities wearing ProjectMappedFields skip unmapped fields and still fetch the id if all fields are excluded"() {
+        given:
+        String id = "projected-" + System.currentTimeMillis()
+        mongo.insert().
+                set(MongoEntity.ID, id).
+                set(MangoProjectedTestEntity.VALUE, "Mapped").
+                set("legacyField", "Legacy").
+                into(MangoProjectedTestEntity.class)
+        when:
+        MangoProjectedTestEntity projected = mango.select(MangoProjectedTestEntity.class)
+                                                  .eq(MongoEntity.ID, id)
+                                                  .queryFirst()
+        and:
+        MangoProjectedTestEntity idOnly = mango.select(MangoProjectedTestEntity.class)
+                                               .eq(MongoEntity.ID, id)
+                                               .excludeFields(MongoEntity.ID, MangoProjectedTestEntity.VALUE)
+                                               .queryFirst()
+        then:
+        projected.getValue() == "Mapped"
+        and:
+        idOnly.getId() == id
+        idOnly.getValue() == null
+    }
+
+    def "changes of list properties are written incrementally where possible"() {
+        given:
+        MangoTestEntity e = new MangoTestEntity()
+        e.setFirstname("Incremental")
+        e.setLastname("Lists")
+        e.getSuperPowers().add("a").add("b").add("c")
+        mango.update(e)
+        when:
+        e.getSuperPowers().add("d")
+        then:
+        mango.createUpdater(e, false, e.getDescriptor()).prepareUpdate("test").containsKey("\$push")
+        when:
+        mango.update(e)
+        and:
+        e.getSuperPowers().remove("b")
+        then:
+        mango.createUpdater(e, false, e.getDescriptor()).prepareUpdate("test").containsKey("\$pullAll")
+        when:
+        mango.update(e)
+        and:
+        e.getSuperPowers().modify().add(0, "x")
+        then:
+        mango.createUpdater(e, false, e.getDescriptor()).prepareUpdate("test").get("\$set").containsKey("superPowers")
+        when:
+        mango.update(e)
+        then:
+        mango.refreshOrFail(e).getSuperPowers().data() == ["x", "a", "c", "d"]
+    }
+
+    def "iterateParallel visits each matching entity exactly once"() {
+        given:
+        mango.select(MangoTestEntity.class).eq(MangoTestEntity.FIRSTNAME, "ParallelScan").delete()
+        for (int i = 0; i < 100; i++) {
+            MangoTestEntity e = new MangoTestEntity()
+            e.setFirstname("ParallelScan")
+            e.setLastname("Entity")
+            e.setAge(i)
+            mango.update(e)
+        }
+        and:
+        Set<String> visited = ConcurrentHashMap.newKeySet()
+        AtomicInteger calls = new AtomicInteger()
+        when:
+        mango.select(MangoTestEntity.class).eq(MangoTestEntity.FIRSTNAME, "ParallelScan").iterateParallel(4, {
+            entity ->
+                visited.add(entity.getId())
+                calls.incrementAndGet()
+        })
+        then:
+        visited.size() == 100
+        calls.get() == 100
+    }
+
+    def "iterateParallel visits each id exactly once even if the collation orders ids differently"() {
+        given:
+        mango.select(MangoTestEntity.class).eq(MangoTestEntity.FIRSTNAME, "CollationScan").delete()
+        List<String> prefixes = ["a", "B", "c", "D", "\u00e4", "Z"]
+        for (int i = 0; i < 120; i++) {
+            mongo.insert().
+                    set(MongoEntity.ID, prefixes.get(i % prefixes.size()) + String.format("%03d", i)).
+                    set(MangoTestEntity.FIRSTNAME, "CollationScan").
+                    into(MangoTestEntity.class)
+        }
+        and:
+        Map<String, AtomicInteger> visits = new ConcurrentHashMap<>()
+        when:
+        mango.select(MangoTestEntity.class).eq(MangoTestEntity.FIRSTNAME, "CollationScan").iterateParallel(4, {
+            entity -> visits.computeIfAbsent(entity.getId(), { id -> new AtomicInteger() }).incrementAndGet()
+        })
+        then:
+        visits.size() == 120
+        visits.values().every { count -> count.get() == 1 }
+    }
+
+    def "iterateBlockwise pages through all entities and can be resumed"() {
+        given:
+        mango.select(MangoTestEntity.class).eq(MangoTestEntity.FIRSTNAME, "Blockwise").delete()
+        MangoBatchContext batch = mango.batch()
+        for (int i = 0; i < 1500; i++) {
+            MangoTestEntity e = new MangoTestEntity()
+            e.setFirstname("Blockwise")
+            e.setLastname("Entity")
+            e.setAge(i)
+            batch.tryUpdate(e)
+        }
+        batch.commit().throwFailures()
+        and:
+        List<String> ids = []
+        when:
+        mango.select(MangoTestEntity.class).eq(MangoTestEntity.FIRSTNAME, "Blockwise").iterateBlockwiseAll({
+            entity -> ids.add(entity.getId())
+        })
+        and:
+        List<String> resumedIds = []
+        mango.select(MangoTestEntity.class)
+             .eq(MangoTestEntity.FIRSTNAME, "Blockwise")
+             .iterateBlockwiseAfter(ids.get(1199), { entity -> resumedIds.add(entity.getId()) })
+        then:
+        ids.size() == 1500
+        ids.toSet().size() == 1500
+        resumedIds == ids.subList(1200, 1500)
+    }
+
+    def "iterateBlockwise pages through sorted results and can be resumed"() {
+        given:
+        mango.select(MangoTestEntity.class).eq(MangoTestEntity.FIRSTNAME, "SortedBlockwise").delete()
+        MangoBatchContext batch = mango.batch()
+        for (int i = 0; i < 1500; i++) {
+            MangoTestEntity e = new MangoTestEntity()
+            e.setFirstname("SortedBlockwise")
+            e.setLastname("Entity")
+            e.setAge(i % 7)
+            batch.tryUpdate(e)
+        }
+        batch.commit().throwFailures()
+        and:
+        List<String> ids = []
+        List<Integer> ages = []
+        when:
+        mango.select(MangoTestEntity.class)
+             .eq(MangoTestEntity.FIRSTNAME, "SortedBlockwise")
+             .orderDesc(MangoTestEntity.AGE)
+             .iterateBlockwiseAll({ entity ->
+                 ids.add(entity.getId())
+                 ages.add(entity.getAge())
+             })
+        and:
+        List<String> resumedIds = []
+        mango.select(MangoTestEntity.class)
+             .eq(MangoTestEntity.FIRSTNAME, "SortedBlockwise")
+             .orderDesc(MangoTestEntity.AGE)
+             .iterateBlockwiseAfter(ids.get(1199), { entity -> resumedIds.add(entity.getId()) })
+        then:
+        ids.size() == 1500
+        ids.toSet().size() == 1500
+        ages == ages.sort(false).reverse()
+        resumedIds == ids.subList(1200, 1500)
+    }
+
+    def "bounded, estimated and cached counts work"() {
+        given:
+        mango.select(MangoTestEntity.class).eq(MangoTestEntity.FIRSTNAME, "Counting").delete()
+        for (int i = 0; i < 5; i++) {
+            MangoTestEntity e = new MangoTestEntity()
+            e.setFirstname("Counting")
+            e.setLastname("Entity")
+            mango.update(e)
+        }
+        and:
+        MongoQuery<MangoTestEntity> query = mango.select(MangoTestEntity.class).
+                eq(MangoTestEntity.FIRSTNAME, "Counting").
+                withCountCache()
+        expect:
+        mango.select(MangoTestEntity.class).
+                eq(MangoTestEntity.FIRSTNAME, "Counting").
+                count(CountAccuracy.boundedBy(3)) == 3
+        mango.select(MangoTestEntity.class).
+                eq(MangoTestEntity.FIRSTNAME, "Counting").
+                count(CountAccuracy.ESTIMATED) == 5
+        mango.select(MangoTestEntity.class).count(CountAccuracy.ESTIMATED) >= 5
+        query.count() == 5
+        when:
+        MangoTestEntity e = new MangoTestEntity()
+        e.setFirstname("Counting")
+        e.setLastname("Entity")
+        mango.update(e)
+        then:
+        query.count() == 6
+    }
 }
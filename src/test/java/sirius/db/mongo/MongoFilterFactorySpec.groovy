@@ -13,6 +13,8 @@ import sirius.kernel.BaseSpecification
 import sirius.kernel.commons.Value
 import sirius.kernel.di.std.Part
 
+import java.time.Duration
+
 class MongoFilterFactorySpec extends BaseSpecification {
 
     @Part
@@ -21,6 +23,10 @@ class MongoFilterFactorySpec extends BaseSpecification {
     @Part
     private static Mongo mongo
 
+    def setupSpec() {
+        mango.getReadyFuture().await(Duration.ofSeconds(60))
+    }
+
     private Optional<PrefixTestEntity> prefixSearch(String query) {
         return mongo.find().where(QueryBuilder.FILTERS.prefix(PrefixTestEntity.PREFIX, query))
                     .singleIn(PrefixTestEntity.class)
@@ -8,11 +8,17 @@
 
 package sirius.db.mongo
 
+import com.mongodb.ReadPreference
+import com.mongodb.WriteConcern
+import org.bson.Document
 import sirius.db.KeyGenerator
 import sirius.db.mixing.Mapping
 import sirius.kernel.BaseSpecification
+import sirius.kernel.Sirius
 import sirius.kernel.di.std.Part
 
+import java.time.Duration
+
 class MongoSpec extends BaseSpecification {
 
     @Part
@@ -92,4 +98,117 @@ class MongoSpec extends BaseSpecification {
              .where(QueryBuilder.FILTERS.gte(Mapping.named("filter"), 2))
              .aggregateIn("test2", Mapping.named("value"), "\$push").get(List.class, []) == [29, 22]
     }
+
+    def "aggregation pipelines group within the database"() {
+        given:
+        mongo.insert().set("category", "a").set("value", 1).set("id", keyGen.generateId()).into("aggregation")
+        mongo.insert().set("category", "a").set("value", 2).set("id", keyGen.generateId()).into("aggregation")
+        mongo.insert().set("category", "b").set("value", 5).set("id", keyGen.generateId()).into("aggregation")
+        mongo.insert().set("category", "c").set("value", 7).set("id", keyGen.generateId()).into("aggregation")
+        when:
+        List<Doc> groups = []
+        mongo.aggregate()
+             .where(QueryBuilder.FILTERS.ne(Mapping.named("category"), "c"))
+             .group(Mapping.named("category"))
+             .sum("total", Mapping.named("value"))
+             .count("count")
+             .match(QueryBuilder.FILTERS.gte(Mapping.named("total"), 3))
+             .orderByDesc(Mapping.named("total"))
+             .batchSize(1)
+             .allowDiskUse()
+             .allIn("aggregation", { doc -> groups.add(doc) })
+        then:
+        groups.size() == 2
+        groups.get(0).getString("_id") == "b"
+        groups.get(0).get("total").asInt(0) == 5
+        groups.get(1).getString("_id") == "a"
+        groups.get(1).get("total").asInt(0) == 3
+        groups.get(1).get("count").asInt(0) == 2
+        and:
+        mongo.aggregate()
+             .bucket(Mapping.named("value"), [0, 5, 10], null)
+             .singleIn("aggregation")
+             .map({ doc -> doc.get("count").asInt(0) })
+             .orElse(0) == 2
+    }
+
+    def "accumulators require a group stage"() {
+        when:
+        mongo.aggregate().unwind(Mapping.named("value")).count("count")
+        then:
+        thrown(IllegalStateException)
+    }
+
+    def "reads with a read preference fall back to the primary"() {
+        when:
+        def result = mongo.insert().set("secondary", "yes").set("id", keyGen.generateId()).into("test")
+        then:
+        mongo.find()
+             .readFromSecondary(Duration.ofSeconds(90))
+             .where("id", result.getString("id"))
+             .singleIn("test")
+             .isPresent()
+        and:
+        mongo.find()
+             .readPreference(ReadPreference.primaryPreferred())
+             .where("id", result.getString("id"))
+             .countIn("test") == 1
+    }
+
+    def "full cursors are recorded in the operation statistics"() {
+        given:
+        mongo.insert().set("stats", 1).set("id", keyGen.generateId()).into("test3")
+        mongo.insert().set("stats", 2).set("id", keyGen.generateId()).into("test3")
+        mongo.getOperationStatistics().each { stats -> stats.getAndClear() }
+        when:
+        mongo.find().allIn("test3", { doc -> })
+        and:
+        def statistics = mongo.getOperationStatistics().find { stats ->
+            stats.getOperation() == Mongo.OPERATION_FIND && stats.getCollection() == "test3"
+        }.getAndClear()
+        then:
+        statistics.getCalls() == 1
+        statistics.getDocuments() >= 2
+        statistics.getPercentileMillis(99) >= statistics.getPercentileMillis(50)
+    }
+
+    def "queries can skip the collation and mismatching index collations are detected"() {
+        given:
+        mongo.insert().set("collation", 42).set("id", keyGen.generateId()).into("test4")
+        expect:
+        mongo.find().withoutCollation().where("collation", 42).countIn("test4") == 1
+        mongo.find().withoutCollation().where("collation", 42).copyFilters().singleIn("test4").isPresent()
+        and:
+        !mongo.hasMismatchingCollation(new Document("name", "_id_").append("key", new Document("_id", 1)))
+        !mongo.hasMismatchingCollation(new Document("name", "text").append("key", new Document("text", "text")))
+        mongo.hasMismatchingCollation(new Document("name", "test").append("key", new Document("test", 1)))
+        !mongo.hasMismatchingCollation(new Document("name", "test").
+                append("key", new Document("test", 1)).
+                append("collation", new Document("locale", "de").append("strength", 3)))
+    }
+
+    def "client options are built from the database configuration"() {
+        when:
+        def options = mongo.buildOptions("options", Sirius.getSettings().getExtension("mongo.databases", "options"))
+        then:
+        options.getConnectionsPerHost() == 7
+        options.getMaxWaitTime() == 5000
+        and: "unsupported compressors are skipped"
+        options.getCompressorList().collect { it.getName() } == ["zlib"]
+        and:
+        options.getReadPreference() == ReadPreference.secondaryPreferred()
+        options.getWriteConcern() == WriteConcern.MAJORITY
+        and:
+        options.getConnectionPoolListeners().contains(mongo.poolMonitor)
+    }
+
+    def "client options fall back to the defaults"() {
+        when:
+        def options = mongo.buildOptions("mixing", Sirius.getSettings().getExtension("mongo.databases", "mixing"))
+        then:
+        options.getConnectionsPerHost() == 100
+        options.getCompressorList().isEmpty()
+        options.getReadPreference() == ReadPreference.primary()
+        options.getWriteConcern() == WriteConcern.ACKNOWLEDGED
+    }
 }
@@ -10,6 +10,7 @@ package sirius.db.mongo.properties
 
 import sirius.db.mongo.Mango
 import sirius.db.mongo.Mongo
+import sirius.db.mongo.MongoEntity
 import sirius.kernel.BaseSpecification
 import sirius.kernel.di.std.Part
 
@@ -55,4 +56,15 @@ class MongoNestedListPropertySpec extends BaseSpecification {
         resolved.getList().size() == 0
     }
 
+    def "nested lists are decoded by the entity codec"() {
+        when:
+        def test = new MongoNestedListEntity()
+        test.getList().add(new MongoNestedListEntity.NestedEntity().withValue1("A").withValue2("B"))
+        mango.update(test)
+        def resolved = mango.select(MongoNestedListEntity.class).eq(MongoEntity.ID, test.getId()).queryFirst()
+        then:
+        resolved.getList().size() == 1
+        resolved.getList().data().get(0).getValue1() == "A"
+        resolved.getList().data().get(0).getValue2() == "B"
+    }
 }